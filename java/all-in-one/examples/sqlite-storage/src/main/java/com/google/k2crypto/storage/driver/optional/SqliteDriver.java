@@ -359,7 +359,8 @@ public class SqliteDriver implements Driver, ReadableDriver, WritableDriver {
     // Convert key contents to byte array
     ByteString bytes;
     try {
-      bytes = key.buildData().build().toByteString();
+      // the key caches its serialized data until it is modified
+      bytes = key.getDataBytes();
     } catch (RuntimeException ex) {
       throw new StoreIOException(StoreIOException.Reason.SERIALIZATION_ERROR, ex);
     }
@@ -20,6 +20,8 @@ import com.google.k2crypto.Key;
 import com.google.k2crypto.exceptions.BuilderException;
 import com.google.k2crypto.exceptions.KeyVersionException;
 import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.ECDSAPrivateKeyVersion;
+import com.google.k2crypto.keyversions.ECDSAPublicKeyVersion;
 import com.google.k2crypto.keyversions.HMACKeyVersion;
 import com.google.k2crypto.keyversions.KeyVersionRegistry;
 import com.google.k2crypto.storage.K2Storage;
@@ -68,6 +70,8 @@ public final class StorageExample {
     try {
       registry.register(AESKeyVersion.class);
       registry.register(HMACKeyVersion.class);
+      registry.register(ECDSAPrivateKeyVersion.class);
+      registry.register(ECDSAPublicKeyVersion.class);
     } catch (KeyVersionException ex) {
       // Something wrong with a key version
       throw ex;
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares encrypting a file with the stream API against the channel API at several buffer sizes.
+ *
+ * <p>The default file size keeps the benchmark short. To measure multi-gigabyte files, pass the size
+ * in megabytes on the command line, e.g. {@code -p fileMegabytes=4096}. The input and output files
+ * are created in the system temporary directory, so make sure it has room for both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChannelEncryptionBenchmark {
+
+  @Param({"64"})
+  public int fileMegabytes;
+
+  @Param({"65536", "1048576", "8388608"})
+  public int bufferSize;
+
+  private AESKeyVersion keyVersion;
+
+  private File plainFile;
+
+  private File encryptedFile;
+
+  @Setup
+  public void setUp() throws BuilderException, IOException {
+    keyVersion = new AESKeyVersion.Builder().build();
+    plainFile = File.createTempFile("k2bench", ".plain");
+    encryptedFile = File.createTempFile("k2bench", ".encrypted");
+    byte[] chunk = new byte[1 << 20];
+    new Random(fileMegabytes).nextBytes(chunk);
+    OutputStream out = new FileOutputStream(plainFile);
+    try {
+      for (int i = 0; i < fileMegabytes; ++i) {
+        out.write(chunk);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    plainFile.delete();
+    encryptedFile.delete();
+  }
+
+  @Benchmark
+  public long encryptStream() throws EncryptionException, IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(plainFile), bufferSize);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(encryptedFile), bufferSize);
+    try {
+      SymmetricEncryption.encryptStream(keyVersion, in, out);
+    } finally {
+      in.close();
+      out.close();
+    }
+    return encryptedFile.length();
+  }
+
+  @Benchmark
+  public long encryptChannel() throws EncryptionException, IOException {
+    FileChannel in = new FileInputStream(plainFile).getChannel();
+    FileChannel out = new FileOutputStream(encryptedFile).getChannel();
+    try {
+      return SymmetricEncryption.encryptChannel(keyVersion, in, out, bufferSize);
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.KeyProto.KeyData;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.KeyVersion;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures loading a Key with many AES key versions from protobuf data. Only the primary is built
+ * when the key is loaded; {@code loadAndUseAll} also builds every other key version, which is what
+ * loading used to cost.
+ *
+ * <p>Run with {@code -prof gc} to see the bytes allocated per load, most of which the loaded key
+ * retains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyLoadBenchmark {
+
+  @Param({"1", "30", "300"})
+  public int versions;
+
+  private K2Context context;
+
+  private KeyData data;
+
+  @Setup
+  public void setUp() throws Exception {
+    context = new K2Context();
+    context.getKeyVersionRegistry().register(AESKeyVersion.class);
+    KeyModifier keymod = new KeyModifier();
+    for (int i = 0; i < versions; ++i) {
+      keymod.setPrimary(keymod.addKeyVersion());
+    }
+    data = keymod.getKey().buildData().build();
+  }
+
+  @Benchmark
+  public Key load() throws Exception {
+    return new Key(context, data);
+  }
+
+  @Benchmark
+  public Key loadAndUseAll() throws Exception {
+    Key key = new Key(context, data);
+    for (KeyVersionData kvData : data.getKeyVersionList()) {
+      key.getKeyVersion(KeyVersion.computeId(kvData.getCore()));
+    }
+    return key;
+  }
+}
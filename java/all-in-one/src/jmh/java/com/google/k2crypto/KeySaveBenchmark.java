@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.KeyProto.KeyData;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.KeyVersion;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Measures serializing an unchanged Key with many AES key versions, which is what the storage
+ * drivers do on every save. {@code cachedBytes} copies the bytes the key caches, while
+ * {@code rebuiltBytes} builds and serializes the protobuf data from scratch, as saving used to.
+ *
+ * <p>Run with {@code -prof gc} to see the bytes allocated per save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeySaveBenchmark {
+
+  @Param({"1", "30", "300"})
+  public int versions;
+
+  private Key key;
+
+  @Setup
+  public void setUp() throws Exception {
+    KeyModifier keymod = new KeyModifier();
+    for (int i = 0; i < versions; ++i) {
+      keymod.addPrimaryKeyVersion(new AESKeyVersion.Builder().build());
+    }
+    key = keymod.getKey();
+  }
+
+  @Benchmark
+  public byte[] cachedBytes() {
+    return key.getDataBytes().toByteArray();
+  }
+
+  @Benchmark
+  public byte[] rebuiltBytes() throws Exception {
+    // build the data of every key version again, the way Key.buildData used to
+    Key.Snapshot snapshot = key.getSnapshot();
+    KeyData.Builder builder = KeyData.newBuilder().setCore(key.getCore());
+    int i = 0;
+    for (ByteString id : snapshot.getKeyVersionIds()) {
+      KeyVersion kv = snapshot.getKeyVersion(id);
+      builder.addKeyVersion(kv.buildData());
+      if (kv == snapshot.getPrimary()) {
+        builder.setPrimary(i);
+      }
+      ++i;
+    }
+    return builder.build().toByteArray();
+  }
+}
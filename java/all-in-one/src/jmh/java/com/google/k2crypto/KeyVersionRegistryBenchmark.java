@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.KeyProto.KeyData;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.KeyVersion;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+import com.google.k2crypto.keyversions.KeyVersionProto.Type;
+import com.google.k2crypto.keyversions.KeyVersionRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures looking up registered key versions from many threads at once, as happens when many keys
+ * are loaded concurrently. Every key version of a loaded key goes through the registry for its
+ * builder and the proto extensions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class KeyVersionRegistryBenchmark {
+
+  private K2Context context;
+
+  private KeyVersionRegistry registry;
+
+  private KeyData data;
+
+  @Setup
+  public void setUp() throws Exception {
+    context = new K2Context();
+    registry = context.getKeyVersionRegistry();
+    registry.register(AESKeyVersion.class);
+    KeyModifier keymod = new KeyModifier();
+    for (int i = 0; i < 3; ++i) {
+      keymod.setPrimary(keymod.addKeyVersion());
+    }
+    data = keymod.getKey().buildData().build();
+  }
+
+  @Benchmark
+  public KeyVersion.Builder newBuilder() throws Exception {
+    return registry.newBuilder(Type.AES);
+  }
+
+  @Benchmark
+  public Object getProtoExtensions() {
+    return registry.getProtoExtensions();
+  }
+
+  @Benchmark
+  public Key loadAndUseAll() throws Exception {
+    Key key = new Key(context, data);
+    for (KeyVersionData kvData : data.getKeyVersionList()) {
+      key.getKeyVersion(KeyVersion.computeId(kvData.getCore()));
+    }
+    return key;
+  }
+}
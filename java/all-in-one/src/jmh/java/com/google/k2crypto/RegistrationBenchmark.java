@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.ChaCha20KeyVersion;
+import com.google.k2crypto.keyversions.ECDSAPrivateKeyVersion;
+import com.google.k2crypto.keyversions.HMACKeyVersion;
+import com.google.k2crypto.keyversions.KeyVersionRegistry;
+import com.google.k2crypto.storage.K2Storage;
+import com.google.k2crypto.storage.driver.impl.K2FileSystemDriver;
+import com.google.k2crypto.storage.driver.impl.K2MemoryDriver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures registering all the built-in key versions and installing all the built-in storage
+ * drivers, as an application does when it starts up.
+ *
+ * <p>{@code coldStartup} runs once in each of many fresh JVMs, so it includes loading and
+ * verifying the classes. {@code warmStartup} repeats the registrations in a warmed-up JVM. To see
+ * the cost of registering through reflection, compile the library without the registration
+ * processor (e.g. with {@code -proc:none}), which makes the registries fall back to reflection.
+ */
+public class RegistrationBenchmark {
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  @Fork(20)
+  public Object coldStartup() throws Exception {
+    return registerAll();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Warmup(iterations = 5, time = 1)
+  @Measurement(iterations = 5, time = 1)
+  @Fork(1)
+  public Object warmStartup() throws Exception {
+    return registerAll();
+  }
+
+  private static K2Storage registerAll() throws Exception {
+    K2Context context = new K2Context();
+    KeyVersionRegistry registry = context.getKeyVersionRegistry();
+    registry.register(AESKeyVersion.class);
+    registry.register(ChaCha20KeyVersion.class);
+    registry.register(HMACKeyVersion.class);
+    registry.register(ECDSAPrivateKeyVersion.class);
+    K2Storage storage = new K2Storage(context);
+    storage.installDriver(K2FileSystemDriver.class);
+    storage.installDriver(K2MemoryDriver.class);
+    return storage;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.DecryptionException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures streaming AEAD file encryption and decryption with different numbers of worker threads.
+ * Throughput in GB/s is {@code fileMegabytes / 1024} divided by the reported time in seconds. The
+ * {@code 0} thread count decrypts sequentially through a decrypting stream, for comparison.
+ *
+ * <p>The input and output files are created in the system temporary directory. Pass e.g.
+ * {@code -p fileMegabytes=2048} for larger files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StreamingAEADBenchmark {
+
+  @Param({"64"})
+  public int fileMegabytes;
+
+  @Param({"0", "1", "2", "4", "8"})
+  public int threads;
+
+  private StreamingAEAD aead;
+
+  private ExecutorService executor;
+
+  private File plainFile;
+
+  private File encryptedFile;
+
+  private File outputFile;
+
+  @Setup
+  public void setUp() throws BuilderException, EncryptionException, IOException {
+    aead = new StreamingAEAD(new AESKeyVersion.Builder().build());
+    executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    plainFile = File.createTempFile("k2bench", ".plain");
+    encryptedFile = File.createTempFile("k2bench", ".encrypted");
+    outputFile = File.createTempFile("k2bench", ".output");
+    byte[] chunk = new byte[1 << 20];
+    new Random(fileMegabytes).nextBytes(chunk);
+    OutputStream out = new FileOutputStream(plainFile);
+    try {
+      for (int i = 0; i < fileMegabytes; ++i) {
+        out.write(chunk);
+      }
+    } finally {
+      out.close();
+    }
+    FileChannel in = new RandomAccessFile(plainFile, "r").getChannel();
+    FileChannel encrypted = new RandomAccessFile(encryptedFile, "rw").getChannel();
+    try {
+      aead.encryptFile(in, encrypted, executor);
+    } finally {
+      in.close();
+      encrypted.close();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+    plainFile.delete();
+    encryptedFile.delete();
+    outputFile.delete();
+  }
+
+  @Benchmark
+  public long encrypt() throws EncryptionException, IOException {
+    FileChannel in = new RandomAccessFile(plainFile, "r").getChannel();
+    FileChannel out = new RandomAccessFile(outputFile, "rw").getChannel();
+    try {
+      return aead.encryptFile(in, out, executor);
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  @Benchmark
+  public long decrypt() throws DecryptionException, IOException {
+    if (threads == 0) {
+      InputStream in = aead.newDecryptingStream(new FileInputStream(encryptedFile));
+      OutputStream out = new FileOutputStream(outputFile);
+      try {
+        byte[] buffer = new byte[1 << 16];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, count);
+          total += count;
+        }
+        return total;
+      } finally {
+        in.close();
+        out.close();
+      }
+    }
+    FileChannel in = new RandomAccessFile(encryptedFile, "r").getChannel();
+    FileChannel out = new RandomAccessFile(outputFile, "rw").getChannel();
+    try {
+      return aead.decryptFile(in, out, executor);
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.DecryptionException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.ChaCha20KeyVersion;
+import com.google.k2crypto.keyversions.SymmetricKeyVersion;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures byte array encryption and decryption throughput with a single AES or ChaCha20-Poly1305 key
+ * version shared by all benchmark threads.
+ *
+ * <p>The {@code OneThread} and {@code AllThreads} variants give a quick picture of how throughput
+ * scales with the number of cores. For a full scaling curve, run the unsuffixed benchmarks with
+ * increasing thread counts, e.g. {@code -t 1}, {@code -t 2}, {@code -t 4}...
+ *
+ * <p>The buffer benchmarks compare the allocating byte array API with the caller-supplied array and
+ * {@code ByteBuffer} APIs. Run them with {@code -prof gc} to see the bytes allocated per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymmetricEncryptionBenchmark {
+
+  @Param({"AES", "CHACHA20"})
+  public String algorithm;
+
+  @Param({"64", "1024", "16384"})
+  public int size;
+
+  private SymmetricKeyVersion keyVersion;
+
+  private byte[] plaintext;
+
+  private byte[] ciphertext;
+
+  @State(Scope.Thread)
+  public static class Buffers {
+    ByteBuffer heapSrc;
+    ByteBuffer heapDst;
+    ByteBuffer directSrc;
+    ByteBuffer directDst;
+    byte[] output;
+
+    @Setup
+    public void setUp(SymmetricEncryptionBenchmark benchmark) {
+      heapSrc = ByteBuffer.wrap(benchmark.plaintext);
+      heapDst = ByteBuffer.allocate(benchmark.ciphertext.length);
+      directSrc = ByteBuffer.allocateDirect(benchmark.plaintext.length);
+      directSrc.put(benchmark.plaintext);
+      directDst = ByteBuffer.allocateDirect(benchmark.ciphertext.length);
+      output = new byte[benchmark.ciphertext.length];
+    }
+  }
+
+  @Setup
+  public void setUp() throws BuilderException, EncryptionException {
+    keyVersion = "CHACHA20".equals(algorithm) ? new ChaCha20KeyVersion.Builder().build()
+        : new AESKeyVersion.Builder().build();
+    plaintext = new byte[size];
+    new Random(size).nextBytes(plaintext);
+    ciphertext = SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws EncryptionException {
+    return SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+  }
+
+  @Benchmark
+  public byte[] decrypt() throws DecryptionException {
+    return SymmetricEncryption.decryptBytes(keyVersion, ciphertext);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] encryptOneThread() throws EncryptionException {
+    return SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public byte[] encryptAllThreads() throws EncryptionException {
+    return SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+  }
+
+  @Benchmark
+  public byte[] encryptIntoArray(Buffers buffers) throws EncryptionException {
+    SymmetricEncryption.encryptBytes(keyVersion, plaintext, 0, plaintext.length, buffers.output, 0);
+    return buffers.output;
+  }
+
+  @Benchmark
+  public ByteBuffer encryptHeapBuffer(Buffers buffers) throws EncryptionException {
+    buffers.heapSrc.clear();
+    buffers.heapDst.clear();
+    SymmetricEncryption.encrypt(keyVersion, buffers.heapSrc, buffers.heapDst);
+    return buffers.heapDst;
+  }
+
+  @Benchmark
+  public ByteBuffer encryptDirectBuffer(Buffers buffers) throws EncryptionException {
+    buffers.directSrc.clear();
+    buffers.directDst.clear();
+    SymmetricEncryption.encrypt(keyVersion, buffers.directSrc, buffers.directDst);
+    return buffers.directDst;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.EncryptionException;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures HMAC computation and verification with a single HMAC key version shared by all
+ * benchmark threads. The {@code uncached} benchmarks create and initialize a new {@code Mac} for
+ * every call, which is what the key version used to do, for comparison.
+ *
+ * <p>The {@code verify} benchmark should not allocate, while {@code verifyByComputing} shows the
+ * cost of computing a new HMAC array and comparing it. Run with {@code -prof gc} to see the bytes
+ * allocated per call.
+ *
+ * <p>With {@code precomputePads} set, byte array HMACs start from cloned digest states instead of
+ * the JCE {@code Mac}, which mostly pays off for short messages. Compare the {@code compute} results
+ * of both settings with the JCE path, and pass e.g.
+ * {@code -p algorithm=HmacSHA384,HmacSHA512} to cover the other SHA-2 digests.
+ *
+ * <p>For results at other thread counts, run with e.g. {@code -t 1}, {@code -t 4}...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class HMACKeyVersionBenchmark {
+
+  @Param({"32", "64", "1024"})
+  public int size;
+
+  @Param({HMACKeyVersion.HMAC_SHA256})
+  public String algorithm;
+
+  @Param({"false", "true"})
+  public boolean precomputePads;
+
+  private HMACKeyVersion keyVersion;
+
+  private byte[] message;
+
+  private byte[] hmac;
+
+  @Setup
+  public void setUp() throws BuilderException, EncryptionException {
+    keyVersion = new HMACKeyVersion.Builder()
+        .algorithm(algorithm).precomputePads(precomputePads).build();
+    message = new byte[size];
+    new Random(size).nextBytes(message);
+    hmac = keyVersion.getRawHMAC(message);
+  }
+
+  @Benchmark
+  public byte[] compute() throws EncryptionException {
+    return keyVersion.getRawHMAC(message);
+  }
+
+  @Benchmark
+  public boolean verify() throws EncryptionException {
+    return keyVersion.verifyHMAC(hmac, message);
+  }
+
+  @Benchmark
+  public boolean verifyByComputing() throws EncryptionException {
+    return Arrays.equals(hmac, keyVersion.getRawHMAC(message));
+  }
+
+  @Benchmark
+  public byte[] computeUncached() throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(algorithm);
+    mac.init(new SecretKeySpec(keyVersion.getKeyVersionMatter(), algorithm));
+    return mac.doFinal(message);
+  }
+}
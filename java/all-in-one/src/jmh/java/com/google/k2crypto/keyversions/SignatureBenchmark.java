@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.ECDSAPrivateKeyVersion.Curve;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures signing and verification with a single key version pair shared by all benchmark
+ * threads, and building new key versions, for DSA and for ECDSA on each curve. For results at
+ * other thread counts, run with e.g. {@code -t 1}, {@code -t 4}...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class SignatureBenchmark {
+
+  @Param({"1024"})
+  public int size;
+
+  private DSAPrivateKeyVersion dsaPrivate;
+
+  private DSAPublicKeyVersion dsaPublic;
+
+  private byte[] data;
+
+  private byte[] dsaSignature;
+
+  private ECDSAPrivateKeyVersion p256Private;
+
+  private ECDSAPublicKeyVersion p256Public;
+
+  private byte[] p256Signature;
+
+  private ECDSAPrivateKeyVersion p384Private;
+
+  private ECDSAPublicKeyVersion p384Public;
+
+  private byte[] p384Signature;
+
+  @Setup
+  public void setUp() throws BuilderException, EncryptionException {
+    data = new byte[size];
+    new Random(size).nextBytes(data);
+    dsaPrivate = new DSAPrivateKeyVersion.Builder().build();
+    dsaPublic = dsaPrivate.getPublic();
+    dsaSignature = dsaPrivate.signData(data);
+    p256Private = new ECDSAPrivateKeyVersion.Builder().curve(Curve.P256).build();
+    p256Public = p256Private.getPublic();
+    p256Signature = p256Private.signData(data);
+    p384Private = new ECDSAPrivateKeyVersion.Builder().curve(Curve.P384).build();
+    p384Public = p384Private.getPublic();
+    p384Signature = p384Private.signData(data);
+  }
+
+  @Benchmark
+  public byte[] dsaSign() throws EncryptionException {
+    return dsaPrivate.signData(data);
+  }
+
+  @Benchmark
+  public boolean dsaVerify() throws EncryptionException {
+    return dsaPublic.verifySig(data, dsaSignature);
+  }
+
+  @Benchmark
+  public DSAPrivateKeyVersion dsaKeyGen() throws BuilderException {
+    return new DSAPrivateKeyVersion.Builder().build();
+  }
+
+  @Benchmark
+  public byte[] ecdsaP256Sign() throws EncryptionException {
+    return p256Private.signData(data);
+  }
+
+  @Benchmark
+  public boolean ecdsaP256Verify() throws EncryptionException {
+    return p256Public.verifySig(data, p256Signature);
+  }
+
+  @Benchmark
+  public ECDSAPrivateKeyVersion ecdsaP256KeyGen() throws BuilderException {
+    return new ECDSAPrivateKeyVersion.Builder().curve(Curve.P256).build();
+  }
+
+  @Benchmark
+  public byte[] ecdsaP384Sign() throws EncryptionException {
+    return p384Private.signData(data);
+  }
+
+  @Benchmark
+  public boolean ecdsaP384Verify() throws EncryptionException {
+    return p384Public.verifySig(data, p384Signature);
+  }
+
+  @Benchmark
+  public ECDSAPrivateKeyVersion ecdsaP384KeyGen() throws BuilderException {
+    return new ECDSAPrivateKeyVersion.Builder().curve(Curve.P384).build();
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.k2crypto;
 
 import com.google.k2crypto.i18n.K2Strings;
+import com.google.k2crypto.keyversions.KeyMaterialPool;
 import com.google.k2crypto.keyversions.KeyVersionRegistry;
 
 import java.util.Locale;
@@ -36,6 +37,9 @@ public class K2Context {
   // Registry for all available key versions
   private KeyVersionRegistry keyVersionRegistry;
 
+  // Pool of pre-generated key material for new key versions (null if none)
+  private volatile KeyMaterialPool keyMaterialPool;
+
   /**
    * Constructs a new K2 context.
    */
@@ -57,4 +61,22 @@ public class K2Context {
   public KeyVersionRegistry getKeyVersionRegistry() {
     return keyVersionRegistry;
   }
+
+  /**
+   * Returns the pool of pre-generated key material used by key version
+   * builders obtained from the registry, or null if there is none.
+   */
+  public KeyMaterialPool getKeyMaterialPool() {
+    return keyMaterialPool;
+  }
+
+  /**
+   * Sets the pool of pre-generated key material used by key version builders
+   * obtained from the registry. No pool is used by default.
+   *
+   * @param keyMaterialPool The pool, or null to generate synchronously.
+   */
+  public void setKeyMaterialPool(KeyMaterialPool keyMaterialPool) {
+    this.keyMaterialPool = keyMaterialPool;
+  }
 }
@@ -23,8 +23,12 @@ import com.google.k2crypto.exceptions.UnregisteredKeyVersionException;
 import com.google.k2crypto.keyversions.KeyVersion;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
 import com.google.k2crypto.keyversions.KeyVersionRegistry;
+import com.google.k2crypto.keyversions.RegisteredKeyVersion;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import com.google.protobuf.ByteString;
@@ -35,6 +39,23 @@ import com.google.protobuf.InvalidProtocolBufferException;
  * This class represents a Key in K2. It holds a list of KeyVersions and a
  * reference to the primary KeyVersion.
  *
+ * <p>The key versions are indexed by their identifiers, so looking up, adding
+ * and removing a key version takes constant time however many versions the
+ * key has accumulated. A key never holds the same key version twice, nor two
+ * key versions with the same short identifier, so that ciphertext tagged with
+ * a short identifier always leads back to exactly one key version.
+ *
+ * <p>When a key is loaded from protobuf data, only the primary key version is
+ * built straight away. The other key versions are built the first time they
+ * are used, since most operations only need the primary.
+ *
+ * <p>The key versions and the primary are held in an immutable {@link Snapshot}.
+ * Modifying the key builds a new snapshot and publishes it in one step, so
+ * threads using the key concurrently never block and always see a consistent
+ * set of key versions and primary, even while the key is being rotated.
+ * Operations that use the key more than once should take a snapshot with
+ * {@link #getSnapshot()} and work with that.
+ *
  * @author John Maheswaran (maheswaran@google.com)
  */
 public class Key {
@@ -44,19 +65,16 @@ public class Key {
   private ByteString coreBytes = null;
 
   /**
-   * The list of key versions
-   */
-  private ArrayList<KeyVersion> keyVersions = new ArrayList<KeyVersion>();
-
-  /**
-   *
+   * The current key versions and primary, replaced as a whole by modifications
    */
-  private KeyVersion primary;
+  private volatile Snapshot state;
 
   /**
    * Empty constructor - construct an empty Key
    */
-  public Key() {}
+  public Key() {
+    state = new Snapshot();
+  }
 
   /**
    * Construct a Key with a single KeyVersion
@@ -64,15 +82,23 @@ public class Key {
    * @param kv A KeyVersion to initialize the Key with
    */
   public Key(KeyVersion kv) {
-    // Add the key version to the key
-    this.keyVersions.add(kv);
+    // Add the key version to the key, and
     // set the primary to the key version (the only key version in the key)
-    this.primary = kv;
+    Snapshot snapshot = new Snapshot();
+    Entry entry = new Entry(kv);
+    snapshot.put(entry);
+    snapshot.primary = entry;
+    state = snapshot;
   }
 
   /**
    * Construct a Key from protobuf data.
    *
+   * <p>The primary key version is built immediately. The other key versions
+   * are only checked to have a registered type and a core; they are built on
+   * first use, and if that fails, every use of the key version throws an
+   * {@link InvalidKeyDataException} with the same reason.
+   *
    * @param context Context of the K2 session.
    * @param data Protobuf data of the key.
    *
@@ -107,51 +133,58 @@ public class Key {
 
     // Extract the key version list
     final int kvCount = data.getKeyVersionCount();
-    keyVersions.ensureCapacity(kvCount);
+    ArrayList<Entry> entries = new ArrayList<Entry>(kvCount);
+    Snapshot snapshot = new Snapshot();
 
     UnregisteredKeyVersionException unregisteredException = null;
-    InvalidKeyDataException buildException = null;
+    InvalidKeyDataException duplicateException = null;
 
     for (KeyVersionData kvData : data.getKeyVersionList()) {
-      if (!kvData.hasType()) {
-        // Type field is required
+      if (!kvData.hasType() || !kvData.hasCore()) {
+        // Type and core fields are required
         throw new InvalidKeyDataException(InvalidKeyDataException.Reason.PROTO_PARSE, null);
       }
-      try {
-        KeyVersion kv =
-            registry.newBuilder(kvData.getType()).withData(kvData, protoRegistry).build();
-        keyVersions.add(kv);
-      } catch (InvalidProtocolBufferException ex) {
-        // Throw proto parsing exceptions immediately
-        throw new InvalidKeyDataException(InvalidKeyDataException.Reason.PROTO_PARSE, ex);
-      } catch (RuntimeException ex) {
-        // We consider runtime exceptions to be parsing exceptions
-        throw new InvalidKeyDataException(InvalidKeyDataException.Reason.PROTO_PARSE, ex);
-      } catch (BuilderException ex) {
-        // Delay-throw builder exceptions...
-        buildException =
-            new InvalidKeyDataException(InvalidKeyDataException.Reason.KEY_VERSION_BUILD, ex);
-      } catch (UnregisteredKeyVersionException ex) {
-        // ...and unregistered key version exceptions
-        unregisteredException = ex;
+      RegisteredKeyVersion rkv = registry.getRegistration(kvData.getType());
+      if (rkv == null) {
+        // Delay-throw unregistered key version exceptions...
+        unregisteredException = new UnregisteredKeyVersionException(kvData.getType());
+        continue;
+      }
+      // The identifiers can be computed from the core without building the key version
+      Entry entry = new Entry(rkv.getKeyVersionClass(), kvData, registry);
+      entries.add(entry);
+      if (!snapshot.put(entry)) {
+        // ...and duplicates, since the primary index would be ambiguous
+        duplicateException = new InvalidKeyDataException(
+            InvalidKeyDataException.Reason.DUPLICATE_KEY_VERSION, null);
       }
     }
 
-    // Unregistered key versions take precedence over build exceptions
+    // Unregistered key versions take precedence over duplicates
     if (unregisteredException != null) {
       throw unregisteredException;
-    } else if (buildException != null) {
-      throw buildException;
+    } else if (duplicateException != null) {
+      throw duplicateException;
     }
 
-    // Extract the primary
+    // Extract the primary and build it now, so that a key that loads can be used
     if (kvCount > 0) {
       int primaryIndex = (data.hasPrimary() ? data.getPrimary() : -1);
-      if (primaryIndex < 0 || primaryIndex >= keyVersions.size()) {
+      if (primaryIndex < 0 || primaryIndex >= entries.size()) {
         throw new InvalidKeyDataException(InvalidKeyDataException.Reason.CORRUPTED_PRIMARY, null);
       }
-      primary = keyVersions.get(primaryIndex);
+      snapshot.primary = entries.get(primaryIndex);
+      snapshot.primary.get();
     }
+    state = snapshot;
+  }
+
+  /**
+   * Returns the current state of the key. The snapshot does not change when the
+   * key is modified afterwards.
+   */
+  public Snapshot getSnapshot() {
+    return state;
   }
 
   /**
@@ -182,20 +215,67 @@ public class Key {
    * Returns a builder for building the protobuf data of the key.
    *
    * <p>The data contains the core as well as the key versions in the key.
+   * Key versions that have not been built yet are written out as they were
+   * loaded, without building them.
    */
   public KeyData.Builder buildData() {
+    // work with one snapshot so that the primary index matches the key versions
+    return buildData(state);
+  }
+
+  /**
+   * Returns the protobuf data of the key. The data is built on the first call
+   * and cached until the key is modified, so saving an unchanged key again
+   * does not rebuild it.
+   */
+  public KeyData getData() {
+    return getData(state);
+  }
+
+  /**
+   * Returns the serialized protobuf data of the key, i.e. the bytes of
+   * {@link #getData()}. The bytes are cached until the key is modified, so
+   * saving an unchanged key again only needs to copy them.
+   */
+  public ByteString getDataBytes() {
+    // work with one snapshot so that the bytes match the data
+    Snapshot snapshot = state;
+    ByteString bytes = snapshot.dataBytes;
+    if (bytes == null) {
+      // ByteStrings are immutable, so the bytes are safe to share between threads
+      snapshot.dataBytes = bytes = getData(snapshot).toByteString();
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the protobuf data of the key in the given state, cached in the
+   * snapshot, which never changes
+   */
+  private KeyData getData(Snapshot snapshot) {
+    KeyData data = snapshot.data;
+    if (data == null) {
+      snapshot.data = data = buildData(snapshot).build();
+    }
+    return data;
+  }
+
+  /**
+   * Returns a builder for building the protobuf data of the key in the given
+   * state
+   */
+  private KeyData.Builder buildData(Snapshot snapshot) {
     KeyData.Builder builder = KeyData.newBuilder();
     builder.setCore(getCore());
-    List<KeyVersion> keyVersions = this.keyVersions;
-    final int size = keyVersions.size();
-    for (int i = 0; i < size; ++i) {
-      KeyVersion kv = keyVersions.get(i);
-      builder.addKeyVersion(kv.buildData());
-      if (kv == primary) {
+    int i = 0;
+    for (Entry entry : snapshot.keyVersions.values()) {
+      builder.addKeyVersion(entry.buildData());
+      if (entry == snapshot.primary) {
         builder.setPrimary(i);
       }
+      ++i;
     }
-    if (size > 0 && !builder.hasPrimary()) {
+    if (i > 0 && !builder.hasPrimary()) {
       throw new AssertionError("Corrupted key state.");
     }
     return builder;
@@ -205,14 +285,54 @@ public class Key {
    * Method to add a KeyVersion to this Key
    *
    * @param keyVersion
+   * @throws KeyModifierException if the key version is already in the Key
    */
-  protected void addKeyVersion(KeyVersion keyVersion) {
-    // TODO: duplicate checking
-    this.keyVersions.add(keyVersion);
-    // If there is only one keyversion in the key, set it as the primary
-    if (this.keyVersions.size() == 1) {
-      this.primary = keyVersion;
-    }
+  protected synchronized void addKeyVersion(KeyVersion keyVersion) throws KeyModifierException {
+    Snapshot snapshot = new Snapshot(state);
+    snapshot.add(new Entry(keyVersion));
+    state = snapshot;
+  }
+
+  /**
+   * Method to add a KeyVersion to this Key and make it the primary at the same
+   * time, so that no thread sees the key with the KeyVersion but the old primary
+   *
+   * @param keyVersion
+   * @throws KeyModifierException if the key version is already in the Key
+   */
+  protected synchronized void addPrimaryKeyVersion(KeyVersion keyVersion)
+      throws KeyModifierException {
+    Snapshot snapshot = new Snapshot(state);
+    Entry entry = new Entry(keyVersion);
+    snapshot.add(entry);
+    snapshot.primary = entry;
+    state = snapshot;
+  }
+
+  /**
+   * Returns the KeyVersion in this Key with the given identifier, building it
+   * if it has not been used before
+   *
+   * @param id The identifier of the key version, as returned by {@link KeyVersion#getId()}
+   * @return The KeyVersion with the identifier, or null if there is none in this Key
+   * @throws InvalidKeyDataException if the key version was loaded from data
+   *     that fails to build
+   */
+  public KeyVersion getKeyVersion(ByteString id) throws InvalidKeyDataException {
+    return state.getKeyVersion(id);
+  }
+
+  /**
+   * Returns the KeyVersion in this Key with the given short identifier,
+   * building it if it has not been used before
+   *
+   * @param shortId The short identifier, as returned by {@link KeyVersion#getShortId()}
+   * @return The KeyVersion with the short identifier, or null if there is none in this Key
+   * @throws InvalidKeyDataException if the key version was loaded from data
+   *     that fails to build
+   */
+  KeyVersion getKeyVersionByShortId(ByteString shortId) throws InvalidKeyDataException {
+    return state.getKeyVersionByShortId(shortId);
   }
 
   /**
@@ -221,7 +341,7 @@ public class Key {
    * @return the primary KeyVersion in this Key
    */
   protected KeyVersion getPrimary() {
-    return this.primary;
+    return state.getPrimary();
   }
 
   /**
@@ -230,7 +350,7 @@ public class Key {
    * @return the number of key versions in this key
    */
   protected int getKeyVersionsCount() {
-    return this.keyVersions.size();
+    return state.getKeyVersionsCount();
   }
 
   /**
@@ -238,10 +358,17 @@ public class Key {
    *
    * @param keyversion the keyversion to set as the primary
    */
-  protected void setPrimary(KeyVersion keyversion) {
-    // TODO: check that the primary keyversion is in the list
-    this.primary = keyversion;
-
+  protected synchronized void setPrimary(KeyVersion keyversion) {
+    Entry entry = state.find(keyversion);
+    if (entry == null) {
+      throw new IllegalArgumentException("Given KeyVersion is not in the Key");
+    }
+    // the given keyversion is equal to the one in the key, so if that has not
+    // been built yet, the given one can stand in for it
+    entry.adopt(keyversion);
+    Snapshot snapshot = new Snapshot(state);
+    snapshot.primary = entry;
+    state = snapshot;
   }
 
   /**
@@ -250,14 +377,18 @@ public class Key {
    * @param keyversion the keyversion to remove from the key
    * @throws KeyModifierException
    */
-  protected void removeKeyVersion(KeyVersion keyversion) throws KeyModifierException {
-    if (!keyVersions.contains(keyversion)) {
+  protected synchronized void removeKeyVersion(KeyVersion keyversion)
+      throws KeyModifierException {
+    Entry entry = state.find(keyversion);
+    if (entry == null) {
       throw new KeyModifierException("Given KeyVersion is not in the Key");
-    } else if (this.primary == keyversion) {
+    } else if (state.primary == entry) {
       throw new KeyModifierException("Cannot remove KeyVersion as it is the primary in the Key");
-    } else {
-      this.keyVersions.remove(keyversion);
     }
+    Snapshot snapshot = new Snapshot(state);
+    snapshot.keyVersions.remove(entry.id);
+    snapshot.shortIdIndex.remove(entry.shortId);
+    state = snapshot;
   }
 
   /**
@@ -267,6 +398,288 @@ public class Key {
    * @return Returns true if and only if keyversion is in this Key
    */
   protected boolean containsKeyVersion(KeyVersion keyversion) {
-    return this.keyVersions.contains(keyversion);
+    return state.containsKeyVersion(keyversion);
+  }
+
+  /**
+   * An immutable view of the key versions and primary of a Key at one point in
+   * time. Key versions in a snapshot that have not been built yet are built on
+   * first use, which is safe from any thread.
+   */
+  public static final class Snapshot {
+
+    /**
+     * The key versions indexed by identifier, in the order they were added
+     */
+    private final LinkedHashMap<ByteString, Entry> keyVersions;
+
+    /**
+     * The same key versions indexed by short identifier
+     */
+    private final HashMap<ByteString, Entry> shortIdIndex;
+
+    /**
+     * The primary key version, which is always in the snapshot and built
+     * unless the snapshot is empty
+     */
+    private Entry primary;
+
+    // NOTE: the fields above are only modified while the snapshot is being
+    //       prepared, before it is published through the volatile field of the Key
+
+    /**
+     * Cached protobuf data of the key in this state (null if not built yet)
+     */
+    private volatile KeyData data;
+
+    /**
+     * Cached serialized protobuf data (null if not serialized yet)
+     */
+    private volatile ByteString dataBytes;
+
+    /**
+     * Creates an empty snapshot
+     */
+    private Snapshot() {
+      keyVersions = new LinkedHashMap<ByteString, Entry>();
+      shortIdIndex = new HashMap<ByteString, Entry>();
+    }
+
+    /**
+     * Creates a copy of a snapshot to modify
+     */
+    private Snapshot(Snapshot other) {
+      keyVersions = new LinkedHashMap<ByteString, Entry>(other.keyVersions);
+      shortIdIndex = new HashMap<ByteString, Entry>(other.shortIdIndex);
+      primary = other.primary;
+    }
+
+    /**
+     * Puts an entry in the indexes
+     *
+     * @return false if the entry replaced another with the same identifier or
+     *     short identifier
+     */
+    private boolean put(Entry entry) {
+      // evaluate both so that the indexes stay consistent
+      boolean newId = keyVersions.put(entry.id, entry) == null;
+      boolean newShortId = shortIdIndex.put(entry.shortId, entry) == null;
+      return newId && newShortId;
+    }
+
+    /**
+     * Adds an entry, making it the primary if it is the only one
+     *
+     * @throws KeyModifierException if the key version or its short identifier
+     *     is already in the snapshot
+     */
+    private void add(Entry entry) throws KeyModifierException {
+      if (keyVersions.containsKey(entry.id)) {
+        throw new KeyModifierException("Given KeyVersion is already in the Key");
+      } else if (shortIdIndex.containsKey(entry.shortId)) {
+        throw new KeyModifierException(
+            "Given KeyVersion has the same short identifier as another KeyVersion in the Key");
+      }
+      put(entry);
+      // If there is only one keyversion in the key, set it as the primary
+      if (keyVersions.size() == 1) {
+        primary = entry;
+      }
+    }
+
+    /**
+     * Returns the entry holding a key version equal to the given one, without
+     * building it
+     */
+    private Entry find(KeyVersion keyversion) {
+      // the identifier finds the only candidate, which must also be of the same class
+      Entry entry = keyVersions.get(keyversion.getId());
+      return entry != null && entry.kvClass == keyversion.getClass() ? entry : null;
+    }
+
+    /**
+     * Returns the primary KeyVersion, or null if the snapshot is empty
+     */
+    public KeyVersion getPrimary() {
+      // the primary is always built
+      return primary == null ? null : primary.keyVersion;
+    }
+
+    /**
+     * Returns the number of key versions in the snapshot
+     */
+    public int getKeyVersionsCount() {
+      return keyVersions.size();
+    }
+
+    /**
+     * Returns the identifiers of the key versions in the snapshot, in the
+     * order they were added, without building the key versions
+     */
+    public List<ByteString> getKeyVersionIds() {
+      return Collections.unmodifiableList(new ArrayList<ByteString>(keyVersions.keySet()));
+    }
+
+    /**
+     * Returns the KeyVersion with the given identifier, building it if it has
+     * not been used before
+     *
+     * @param id The identifier of the key version, as returned by {@link KeyVersion#getId()}
+     * @return The KeyVersion with the identifier, or null if there is none in the snapshot
+     * @throws InvalidKeyDataException if the key version was loaded from data
+     *     that fails to build
+     */
+    public KeyVersion getKeyVersion(ByteString id) throws InvalidKeyDataException {
+      Entry entry = keyVersions.get(id);
+      return entry == null ? null : entry.get();
+    }
+
+    /**
+     * Returns the KeyVersion with the given short identifier, building it if
+     * it has not been used before
+     *
+     * @param shortId The short identifier, as returned by {@link KeyVersion#getShortId()}
+     * @return The KeyVersion with the short identifier, or null if there is none in the snapshot
+     * @throws InvalidKeyDataException if the key version was loaded from data
+     *     that fails to build
+     */
+    public KeyVersion getKeyVersionByShortId(ByteString shortId)
+        throws InvalidKeyDataException {
+      Entry entry = shortIdIndex.get(shortId);
+      return entry == null ? null : entry.get();
+    }
+
+    /**
+     * Checks if the snapshot contains a given KeyVersion
+     *
+     * @param keyversion The KeyVersion to look for
+     * @return true if and only if keyversion is in the snapshot
+     */
+    public boolean containsKeyVersion(KeyVersion keyversion) {
+      return find(keyversion) != null;
+    }
+  }
+
+  /**
+   * A key version in the key, which is either built or still in the protobuf
+   * data it was loaded from.
+   */
+  private static final class Entry {
+
+    final ByteString id;
+
+    final ByteString shortId;
+
+    final Class<? extends KeyVersion> kvClass;
+
+    /**
+     * Data the key version was loaded from, or null if it was added built
+     */
+    private final KeyVersionData kvData;
+
+    /**
+     * Registry to build the key version with, or null once it is built
+     */
+    private KeyVersionRegistry registry;
+
+    /**
+     * The key version, or null if it has not been built yet
+     */
+    private volatile KeyVersion keyVersion;
+
+    /**
+     * Reason the key version failed to build, or null if it has not failed
+     */
+    private InvalidKeyDataException failure;
+
+    /**
+     * Creates an entry for a built key version
+     */
+    Entry(KeyVersion keyVersion) {
+      this.id = keyVersion.getId();
+      this.shortId = keyVersion.getShortId();
+      this.kvClass = keyVersion.getClass();
+      this.kvData = null;
+      this.keyVersion = keyVersion;
+    }
+
+    /**
+     * Creates an entry for a key version to build from data on first use
+     */
+    Entry(Class<? extends KeyVersion> kvClass, KeyVersionData kvData,
+        KeyVersionRegistry registry) {
+      this.id = KeyVersion.computeId(kvData.getCore());
+      this.shortId = KeyVersion.computeShortId(id);
+      this.kvClass = kvClass;
+      this.kvData = kvData;
+      this.registry = registry;
+    }
+
+    /**
+     * Returns the key version, building it if necessary
+     *
+     * @throws InvalidKeyDataException if the key version fails to build, now
+     *     or on an earlier call
+     */
+    KeyVersion get() throws InvalidKeyDataException {
+      KeyVersion kv = keyVersion;
+      return kv != null ? kv : build();
+    }
+
+    /**
+     * Builds the key version once, remembering any failure so that later calls
+     * fail the same way instead of retrying
+     */
+    private synchronized KeyVersion build() throws InvalidKeyDataException {
+      if (keyVersion != null) {
+        return keyVersion;
+      } else if (failure == null) {
+        try {
+          KeyVersion kv = registry.newBuilder(kvData.getType())
+              .withData(kvData, registry.getProtoExtensions()).build();
+          if (!kv.getClass().equals(kvClass)) {
+            // the registration changed after the key was loaded
+            throw new BuilderException("Key version type is now registered to another class");
+          }
+          keyVersion = kv;
+          registry = null;
+          return kv;
+        } catch (InvalidProtocolBufferException ex) {
+          failure =
+              new InvalidKeyDataException(InvalidKeyDataException.Reason.PROTO_PARSE, ex);
+        } catch (RuntimeException ex) {
+          // We consider runtime exceptions to be parsing exceptions
+          failure =
+              new InvalidKeyDataException(InvalidKeyDataException.Reason.PROTO_PARSE, ex);
+        } catch (BuilderException ex) {
+          failure =
+              new InvalidKeyDataException(InvalidKeyDataException.Reason.KEY_VERSION_BUILD, ex);
+        } catch (UnregisteredKeyVersionException ex) {
+          // the type was unregistered after the key was loaded
+          failure =
+              new InvalidKeyDataException(InvalidKeyDataException.Reason.KEY_VERSION_BUILD, ex);
+        }
+      }
+      // a new exception each time, so that the stack trace shows the caller
+      throw new InvalidKeyDataException(failure.getReason(), failure.getCause());
+    }
+
+    /**
+     * Uses an equal key version as the built key version if there is none yet
+     */
+    synchronized void adopt(KeyVersion kv) {
+      if (keyVersion == null) {
+        keyVersion = kv;
+        registry = null;
+      }
+    }
+
+    /**
+     * Returns the protobuf data of the key version
+     */
+    KeyVersionData buildData() {
+      // the data the key version was loaded from is still accurate
+      return kvData != null ? kvData : keyVersion.getData();
+    }
   }
 }
@@ -15,14 +15,20 @@
 package com.google.k2crypto;
 
 import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.InvalidKeyDataException;
 import com.google.k2crypto.exceptions.KeyModifierException;
 import com.google.k2crypto.keyversions.AESKeyVersion;
 import com.google.k2crypto.keyversions.KeyVersion;
 
+import com.google.protobuf.ByteString;
+
 /**
  * This class represents a Key modifier in K2. It allows you to create a Key, create KeyVersions and
  * add them to the Key, and set a KeyVersion as primary in Key
  *
+ * <p>Every modification publishes a new {@link Key.Snapshot} of the Key in one step, so the Key
+ * can be modified while other threads are using it.
+ *
  * @author John Maheswaran (maheswaran@google.com)
  */
 public class KeyModifier {
@@ -55,12 +61,37 @@ public class KeyModifier {
     AESKeyVersion keyversion = new AESKeyVersion.Builder().build();
 
     // now add it to the Key
-    key.addKeyVersion(keyversion);
+    try {
+      key.addKeyVersion(keyversion);
+    } catch (KeyModifierException e) {
+      // a freshly generated key version cannot already be in the Key
+      throw new AssertionError(e);
+    }
 
     // return the key version we just added to the Key
     return keyversion;
   }
 
+  /**
+   * Method to add a given keyversion to the key and make it the primary in one step, e.g. to rotate
+   * the key while other threads are encrypting with it
+   *
+   * @param keyversion The keyversion to add to the key and set as the primary
+   * @throws KeyModifierException if the keyversion is already in the key
+   */
+  public void addPrimaryKeyVersion(KeyVersion keyversion) throws KeyModifierException {
+    key.addPrimaryKeyVersion(keyversion);
+  }
+
+  /**
+   * Returns the current state of the Key, which does not change when the Key is modified afterwards
+   *
+   * @return A snapshot of the key versions and primary of the Key
+   */
+  public Key.Snapshot getSnapshot() {
+    return key.getSnapshot();
+  }
+
   /**
    * Method to get the primary KeyVersion from the Key
    *
@@ -83,10 +114,21 @@ public class KeyModifier {
    * Sets a given keyversion as the primary in the key
    *
    * @param keyversion the keyversion to set as the primary
+   * @throws IllegalArgumentException if the keyversion is not in the key
    */
   public void setPrimary(KeyVersion keyversion) {
     key.setPrimary(keyversion);
+  }
 
+  /**
+   * Returns the keyversion in the key with the given identifier
+   *
+   * @param id The identifier of the keyversion
+   * @return The keyversion with the identifier, or null if there is none in the key
+   * @throws InvalidKeyDataException if the keyversion was loaded from data that fails to build
+   */
+  public KeyVersion getKeyVersion(ByteString id) throws InvalidKeyDataException {
+    return key.getKeyVersion(id);
   }
 
   /**
@@ -114,8 +156,9 @@ public class KeyModifier {
    * Method to add a given keyversion to the key
    *
    * @param keyversion The keyversion to add to the key
+   * @throws KeyModifierException if the keyversion is already in the key
    */
-  public void addKeyVersion(KeyVersion keyversion) {
+  public void addKeyVersion(KeyVersion keyversion) throws KeyModifierException {
     key.addKeyVersion(keyversion);
   }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.exceptions.DecryptionException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.SymmetricKeyVersion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Cipher;
+
+/**
+ * This class encrypts and decrypts large payloads on several threads at once. It works with AES
+ * key versions in CTR mode, where every block of keystream depends only on the counter and can be
+ * computed independently. The payload is split into segments aligned to the AES block size, and
+ * each segment is processed on the executor with a cipher whose counter is offset from the IV by
+ * the segment position. The output is byte-for-byte identical to that of
+ * {@link SymmetricEncryption}.
+ *
+ * <p>Payloads smaller than the threshold, and key versions in other modes, are simply processed
+ * by {@link SymmetricEncryption} on the calling thread.
+ *
+ * <p>Any {@link ExecutorService} can be used, e.g. a {@code ForkJoinPool} on platforms that have
+ * one. Each operation submits at most {@code parallelism - 1} tasks to it, whatever the payload
+ * size, and the calling thread takes part in the work. The executor is not shut down by this
+ * class. This class is thread-safe.
+ */
+public class ParallelEncryption extends Operation {
+
+  /**
+   * Default payload size in bytes from which work is split across threads.
+   */
+  public static final int DEFAULT_THRESHOLD = 1 << 20;
+
+  /**
+   * Default size in bytes of the segments handed to each task.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 1 << 18;
+
+  // Largest segment buffer retained per thread. Larger segments get a buffer for the task only, so
+  // that a file encrypted with a huge segment size does not pin that much heap to every thread of
+  // the executor for good.
+  private static final int MAX_RETAINED_SEGMENT_BUFFER_SIZE = DEFAULT_SEGMENT_SIZE;
+
+  // Heap buffers for file segments, retained per thread so that tasks do not allocate
+  private static final ThreadLocal<ByteBuffer> segmentBuffers = new ThreadLocal<ByteBuffer>();
+
+  // Executor running the segment tasks
+  private final ExecutorService executor;
+
+  // Payload size in bytes from which work is split across threads
+  private final long threshold;
+
+  // Size in bytes of each segment, a multiple of the AES block size
+  private final int segmentSize;
+
+  // Maximum number of threads working on one operation, including the caller
+  private final int parallelism;
+
+  /**
+   * Constructs a parallel encryption operation with the default threshold and segment size.
+   *
+   * @param executor The executor to run segments on
+   */
+  public ParallelEncryption(ExecutorService executor) {
+    this(executor, DEFAULT_THRESHOLD, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructs a parallel encryption operation.
+   *
+   * @param executor The executor to run segments on
+   * @param threshold Payload size in bytes from which work is split across threads
+   * @param segmentSize Size in bytes of each segment, must be a positive multiple of the AES block
+   *                    size
+   */
+  public ParallelEncryption(ExecutorService executor, long threshold, int segmentSize) {
+    this(executor, threshold, segmentSize, ParallelRunner.DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Constructs a parallel encryption operation that uses at most the given number of threads.
+   *
+   * @param executor The executor to run segments on
+   * @param threshold Payload size in bytes from which work is split across threads
+   * @param segmentSize Size in bytes of each segment, must be a positive multiple of the AES block
+   *                    size
+   * @param parallelism Maximum number of threads working on one operation, including the caller;
+   *                    the number of available processors by default
+   */
+  public ParallelEncryption(ExecutorService executor, long threshold, int segmentSize,
+      int parallelism) {
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    } else if (threshold < 0) {
+      throw new IllegalArgumentException("threshold");
+    } else if (segmentSize <= 0 || segmentSize % AESKeyVersion.getBlockSize() != 0) {
+      throw new IllegalArgumentException("segmentSize");
+    } else if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism");
+    }
+    this.executor = executor;
+    this.threshold = threshold;
+    this.segmentSize = segmentSize;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns whether the key version and payload size qualify for parallel processing.
+   */
+  private boolean isParallel(SymmetricKeyVersion keyVersion, long length) {
+    return length >= threshold && length > segmentSize && keyVersion instanceof AESKeyVersion
+        && ((AESKeyVersion) keyVersion).getMode() == AESKeyVersion.Mode.CTR;
+  }
+
+  /**
+   * Encrypts a byte array using a symmetric key version
+   *
+   * @param keyVersion The symmetric key version to use to encrypt the data
+   * @param materialToEncrypt The byte array of data to encrypt
+   * @return A byte array of data encrypted using the symmetric key version
+   * @throws EncryptionException
+   */
+  public byte[] encryptBytes(SymmetricKeyVersion keyVersion, byte[] materialToEncrypt)
+      throws EncryptionException {
+    if (!isParallel(keyVersion, materialToEncrypt.length)) {
+      return SymmetricEncryption.encryptBytes(keyVersion, materialToEncrypt);
+    }
+    try {
+      return transformBytes((AESKeyVersion) keyVersion, Cipher.ENCRYPT_MODE, materialToEncrypt);
+    } catch (Exception e) {
+      // propagate the exception up as an encryption exception
+      throw new EncryptionException("Parallel encryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Decrypts a byte array using a symmetric key version
+   *
+   * @param keyVersion The symmetric key version to use to decrypt the data
+   * @param materialToDecrypt The byte array of data to decrypt
+   * @return A byte array of data decrypted using the symmetric key version
+   * @throws DecryptionException
+   */
+  public byte[] decryptBytes(SymmetricKeyVersion keyVersion, byte[] materialToDecrypt)
+      throws DecryptionException {
+    if (!isParallel(keyVersion, materialToDecrypt.length)) {
+      return SymmetricEncryption.decryptBytes(keyVersion, materialToDecrypt);
+    }
+    try {
+      return transformBytes((AESKeyVersion) keyVersion, Cipher.DECRYPT_MODE, materialToDecrypt);
+    } catch (Exception e) {
+      // propagate the exception up as a decryption exception
+      throw new DecryptionException("Parallel decryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Encrypts the entire contents of a file channel into another file channel using a symmetric key
+   * version. The input is read from position 0, and the output file is overwritten from position 0
+   * and truncated to the length of the result. The positions of the channels are unspecified
+   * afterwards.
+   *
+   * @param keyVersion The symmetric key version to use to encrypt the data
+   * @param in The file channel holding the data to encrypt
+   * @param out The file channel to write the encrypted data to
+   * @return The number of bytes written to {@code out}
+   * @throws EncryptionException
+   */
+  public long encryptFile(SymmetricKeyVersion keyVersion, FileChannel in, FileChannel out)
+      throws EncryptionException {
+    try {
+      if (!isParallel(keyVersion, in.size())) {
+        in.position(0);
+        out.position(0);
+        long written = SymmetricEncryption.encryptChannel(keyVersion, in, out);
+        out.truncate(written);
+        return written;
+      }
+      return transformFile((AESKeyVersion) keyVersion, Cipher.ENCRYPT_MODE, in, out);
+    } catch (EncryptionException e) {
+      throw e;
+    } catch (Exception e) {
+      // propagate the exception up as an encryption exception
+      throw new EncryptionException("Parallel encryption of file failed", e);
+    }
+  }
+
+  /**
+   * Decrypts the entire contents of a file channel into another file channel using a symmetric key
+   * version. Channel positions are handled as in
+   * {@link #encryptFile(SymmetricKeyVersion, FileChannel, FileChannel)}.
+   *
+   * @param keyVersion The symmetric key version to use to decrypt the data
+   * @param in The file channel holding the data to decrypt
+   * @param out The file channel to write the decrypted data to
+   * @return The number of bytes written to {@code out}
+   * @throws DecryptionException
+   */
+  public long decryptFile(SymmetricKeyVersion keyVersion, FileChannel in, FileChannel out)
+      throws DecryptionException {
+    try {
+      if (!isParallel(keyVersion, in.size())) {
+        in.position(0);
+        out.position(0);
+        long written = SymmetricEncryption.decryptChannel(keyVersion, in, out);
+        out.truncate(written);
+        return written;
+      }
+      return transformFile((AESKeyVersion) keyVersion, Cipher.DECRYPT_MODE, in, out);
+    } catch (DecryptionException e) {
+      throw e;
+    } catch (Exception e) {
+      // propagate the exception up as a decryption exception
+      throw new DecryptionException("Parallel decryption of file failed", e);
+    }
+  }
+
+  /**
+   * Processes a byte array with one CTR cipher per segment.
+   */
+  private byte[] transformBytes(final AESKeyVersion keyVersion, final int opmode,
+      final byte[] input) throws Exception {
+    final byte[] output = new byte[input.length];
+    ParallelRunner.run(executor, parallelism, input.length, segmentSize,
+        new ParallelRunner.RangeTask() {
+          @Override
+          public void run(long offset, long end) throws Exception {
+            int length = (int) (end - offset);
+            Cipher cipher =
+                keyVersion.newCounterCipher(opmode, offset / AESKeyVersion.getBlockSize());
+            cipher.doFinal(input, (int) offset, length, output, (int) offset);
+          }
+        });
+    return output;
+  }
+
+  /**
+   * Processes a file channel with one CTR cipher per segment.
+   */
+  private long transformFile(final AESKeyVersion keyVersion, final int opmode,
+      final FileChannel in, final FileChannel out) throws Exception {
+    final long size = in.size();
+    ParallelRunner.run(executor, parallelism, size, segmentSize, new ParallelRunner.RangeTask() {
+      @Override
+      public void run(long offset, long end) throws Exception {
+        int length = (int) (end - offset);
+        ByteBuffer buffer = segmentBuffer(length);
+        while (buffer.hasRemaining()) {
+          if (in.read(buffer, offset + buffer.position()) < 0) {
+            throw new IOException("Unexpected end of file");
+          }
+        }
+        Cipher cipher = keyVersion.newCounterCipher(opmode, offset / AESKeyVersion.getBlockSize());
+        // CTR mode can safely process the buffer in place
+        cipher.doFinal(buffer.array(), 0, length, buffer.array(), 0);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          out.write(buffer, offset + buffer.position());
+        }
+      }
+    });
+    out.truncate(size);
+    return size;
+  }
+
+  /**
+   * Returns a cleared heap buffer of the calling thread with a limit of the given size, growing the
+   * retained buffer if it is too small. Buffers larger than
+   * {@link #MAX_RETAINED_SEGMENT_BUFFER_SIZE} are not retained.
+   */
+  private static ByteBuffer segmentBuffer(int size) {
+    ByteBuffer buffer = segmentBuffers.get();
+    if (buffer == null || buffer.capacity() < size) {
+      buffer = ByteBuffer.allocate(size);
+      if (size <= MAX_RETAINED_SEGMENT_BUFFER_SIZE) {
+        segmentBuffers.set(buffer);
+      }
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper for the operations that split work into independent ranges and run them on an executor.
+ */
+final class ParallelRunner {
+
+  /**
+   * Work done on a single range of the whole.
+   */
+  interface RangeTask {
+    /**
+     * Processes the range from {@code start} (inclusive) to {@code end} (exclusive).
+     */
+    void run(long start, long end) throws Exception;
+  }
+
+  /**
+   * Default number of threads working on a single operation, including the caller.
+   */
+  static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+  private ParallelRunner() {}
+
+  /**
+   * Splits the range from 0 to {@code total} into consecutive ranges of {@code step} and runs the
+   * task on each of them. Returns once all ranges are done, or throws the first failure
+   * encountered.
+   *
+   * <p>The calling thread works through the ranges too, taking every range that the executor has
+   * not started yet, so it only ever waits for ranges that are already running. This makes it safe
+   * to call from a thread of the same executor, even a bounded one whose threads are all busy.
+   * At most {@code parallelism - 1} helpers are submitted to the executor however many ranges
+   * there are, and if the executor rejects one, the ranges are shared among those already
+   * submitted.
+   *
+   * @param executor Executor to run the ranges on
+   * @param parallelism Maximum number of threads working on the ranges, including the caller
+   * @param total End of the whole range
+   * @param step Length of each range, the last one may be shorter
+   * @param task Task to run on each range
+   */
+  static void run(ExecutorService executor, int parallelism, long total, long step,
+      RangeTask task) throws Exception {
+    Ranges ranges = new Ranges(total, step, task);
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    try {
+      // every submitted helper, like the caller, takes ranges until there are none left
+      long helpers = Math.min(ranges.count, parallelism) - 1;
+      try {
+        for (long i = 0; i < helpers; ++i) {
+          futures.add(executor.submit(ranges));
+        }
+      } catch (RejectedExecutionException e) {
+        // the executor is saturated; the caller and the helpers already submitted do the rest
+      }
+      ranges.run();
+      ranges.awaitFinished();
+    } finally {
+      // helpers that have not started have nothing left to do
+      for (Future<?> future : futures) {
+        future.cancel(false);
+      }
+    }
+    ranges.rethrowFailure();
+  }
+
+  /**
+   * Ranges of a single run, handed out in order to whichever thread asks first.
+   */
+  private static final class Ranges implements Runnable {
+
+    // End of the whole range and length of each range
+    private final long total;
+    private final long step;
+
+    // Number of ranges
+    final long count;
+
+    // Task to run on each range
+    private final RangeTask task;
+
+    // Index of the next range to hand out
+    private final AtomicLong next = new AtomicLong();
+
+    // Number of ranges handed out that are done (guarded by this)
+    private long finished = 0;
+
+    // First failure of any range (guarded by this)
+    private Throwable failure = null;
+
+    Ranges(long total, long step, RangeTask task) {
+      this.total = total;
+      this.step = step;
+      this.task = task;
+      // there is always a first range, even if it is empty
+      this.count = Math.max(1, (total + step - 1) / step);
+    }
+
+    /**
+     * Runs ranges until all of them have been handed out. After a failure,
+     * the remaining ranges are handed out but skipped.
+     */
+    @Override
+    public void run() {
+      for (long i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+        Throwable error = null;
+        if (!hasFailed()) {
+          long start = i * step;
+          try {
+            task.run(start, Math.min(start + step, total));
+          } catch (Throwable t) {
+            error = t;
+          }
+        }
+        finish(error);
+      }
+    }
+
+    private synchronized boolean hasFailed() {
+      return failure != null;
+    }
+
+    private synchronized void finish(Throwable error) {
+      if (failure == null) {
+        failure = error;
+      }
+      if (++finished == count) {
+        notifyAll();
+      }
+    }
+
+    /**
+     * Waits for all ranges to be done. Once the caller has run out of ranges
+     * to take, the remaining ones are all running, so this does not wait on
+     * queued work.
+     */
+    synchronized void awaitFinished() throws InterruptedException {
+      while (finished < count) {
+        wait();
+      }
+    }
+
+    /**
+     * Throws the first failure of any range, if there was one.
+     */
+    synchronized void rethrowFailure() throws Exception {
+      if (failure instanceof Exception) {
+        throw (Exception) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.keyversions.AESKeyVersion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * A read-only channel that decrypts CTR mode ciphertext from a file channel, with random access to
+ * the plaintext. In CTR mode the keystream for any byte can be computed directly from its offset,
+ * so reading a range of plaintext only decrypts that range, wherever it is in the file.
+ *
+ * <p>The channel has its own position, which works like that of {@link FileChannel}: reads start at
+ * the position and advance it, and {@link #position(long)} moves it anywhere. The underlying file
+ * channel is only accessed with positional reads, so its own position is not modified. Plaintext
+ * and ciphertext offsets are the same because CTR mode does not pad.
+ *
+ * <p>This class deliberately does not implement {@code java.nio.channels.SeekableByteChannel}, which
+ * is not available on all the platforms K2 supports, but provides the same read-side methods.
+ *
+ * <p>This class is thread-safe.
+ */
+public class SeekableDecryptingChannel implements ReadableByteChannel {
+
+  // Size of the buffer holding ciphertext read from the file
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  // Key version used to decrypt the ciphertext
+  private final AESKeyVersion keyVersion;
+
+  // Channel holding the ciphertext
+  private final FileChannel ciphertext;
+
+  // Buffer holding ciphertext read from the file, allocated on first read
+  private ByteBuffer buffer;
+
+  // Cipher positioned at cipherPosition, or null if one has to be created at the next read
+  private Cipher cipher;
+
+  // Plaintext offset of the next byte the cipher will decrypt
+  private long cipherPosition;
+
+  // Plaintext offset of the next byte to read
+  private long position;
+
+  private boolean open = true;
+
+  /**
+   * Constructs a decrypting channel over the given ciphertext, starting at position 0.
+   *
+   * @param keyVersion The AES key version, in CTR mode, that encrypted the ciphertext
+   * @param ciphertext The file channel holding the ciphertext, closed when this channel is closed
+   * @throws IllegalArgumentException if the key version is not in CTR mode
+   */
+  public SeekableDecryptingChannel(AESKeyVersion keyVersion, FileChannel ciphertext) {
+    if (keyVersion == null) {
+      throw new NullPointerException("keyVersion");
+    } else if (ciphertext == null) {
+      throw new NullPointerException("ciphertext");
+    } else if (keyVersion.getMode() != AESKeyVersion.Mode.CTR) {
+      throw new IllegalArgumentException("Random access decryption requires CTR mode");
+    }
+    this.keyVersion = keyVersion;
+    this.ciphertext = ciphertext;
+  }
+
+  /**
+   * Reads plaintext into the buffer, starting at the current position of this channel, and
+   * advances the position by the number of bytes read.
+   *
+   * @param dst The buffer to read plaintext into
+   * @return The number of bytes read, possibly zero, or -1 if the position is at or beyond the end
+   * @throws IOException if the ciphertext could not be read or decrypted
+   */
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    long available = ciphertext.size() - position;
+    if (available <= 0) {
+      return -1;
+    }
+    int total = (int) Math.min(dst.remaining(), available);
+    if (total == 0) {
+      return 0;
+    }
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    try {
+      if (cipher == null || cipherPosition != position) {
+        seekCipher(position);
+      }
+      int read = 0;
+      while (read < total) {
+        buffer.clear();
+        buffer.limit(Math.min(BUFFER_SIZE, total - read));
+        int count = ciphertext.read(buffer, position);
+        if (count <= 0) {
+          // the file was truncated under us
+          break;
+        }
+        buffer.flip();
+        cipher.update(buffer, dst);
+        position += count;
+        read += count;
+      }
+      cipherPosition = position;
+      return read;
+    } catch (GeneralSecurityException e) {
+      // the cipher state is unknown, so start afresh at the next read
+      cipher = null;
+      throw new IOException("Decryption of channel failed", e);
+    }
+  }
+
+  /**
+   * Creates a cipher that will decrypt starting at the given plaintext offset.
+   */
+  private void seekCipher(long offset) throws GeneralSecurityException {
+    int blockSize = AESKeyVersion.getBlockSize();
+    cipher = keyVersion.newCounterCipher(Cipher.DECRYPT_MODE, offset / blockSize);
+    // consume the keystream for the bytes of the block before the offset
+    int skip = (int) (offset % blockSize);
+    if (skip > 0) {
+      cipher.update(new byte[skip]);
+    }
+    cipherPosition = offset;
+  }
+
+  /**
+   * Returns the position of this channel in the plaintext.
+   *
+   * @throws IOException if the channel is closed
+   */
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  /**
+   * Sets the position of this channel in the plaintext. Setting a position beyond the end is
+   * allowed, in which case reads return end-of-stream.
+   *
+   * @param newPosition The new position, a non-negative number of bytes from the start
+   * @return This channel
+   * @throws IOException if the channel is closed
+   */
+  public synchronized SeekableDecryptingChannel position(long newPosition) throws IOException {
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("newPosition");
+    }
+    ensureOpen();
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * Returns the size of the plaintext in bytes, which is the size of the ciphertext.
+   *
+   * @throws IOException if the channel is closed or the size cannot be read
+   */
+  public long size() throws IOException {
+    ensureOpen();
+    return ciphertext.size();
+  }
+
+  /**
+   * @see java.nio.channels.Channel#isOpen()
+   */
+  @Override
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Closes this channel and the underlying ciphertext channel.
+   *
+   * @see java.nio.channels.Channel#close()
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (open) {
+      open = false;
+      cipher = null;
+      buffer = null;
+      ciphertext.close();
+    }
+  }
+
+  /**
+   * Throws an exception if the channel is closed.
+   */
+  private synchronized void ensureOpen() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
@@ -0,0 +1,759 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.exceptions.DecryptionException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class provides authenticated encryption of streams and large files with an AES key version.
+ * The plaintext is split into fixed-size segments that are each sealed with AES-GCM, so every
+ * segment can be verified and decrypted on its own: in parallel, out of order, or sequentially
+ * while stopping at any point, without buffering the whole message.
+ *
+ * <p>The ciphertext format is a header followed by the sealed segments:
+ * <pre>
+ *   header  = header length (1 byte) || salt (16 bytes) || nonce prefix (7 bytes)
+ *   segment = AES-GCM(segment key, nonce, plaintext segment) (including the 16 byte tag)
+ *   nonce   = nonce prefix || segment index (4 bytes, big-endian) || last segment flag (1 byte)
+ * </pre>
+ * Every sealed segment is exactly the segment size except the last, which may be shorter, and there
+ * is always at least one segment. The segment key is derived from the key matter of the key version
+ * and the random salt with HMAC-SHA256, so every message is encrypted with a fresh key and the
+ * nonces, which only need to be unique per key, can be derived from the segment index. The last
+ * segment flag prevents truncation of the message at a segment boundary from going undetected.
+ *
+ * <p>The mode and IV of the key version are not used. Only the key matter is. The segment size is
+ * not stored in the ciphertext, so the same segment size must be used for encryption and
+ * decryption.
+ *
+ * <p>This class is thread-safe.
+ */
+public class StreamingAEAD extends Operation {
+
+  /**
+   * Default size in bytes of the sealed segments.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 1 << 16;
+
+  // Size of the GCM authentication tag in bytes
+  private static final int TAG_SIZE = 16;
+
+  // Size of the per-message salt in bytes
+  private static final int SALT_SIZE = 16;
+
+  // Size of the per-message nonce prefix in bytes
+  private static final int NONCE_PREFIX_SIZE = 7;
+
+  // Size of the GCM nonce in bytes
+  private static final int NONCE_SIZE = NONCE_PREFIX_SIZE + 5;
+
+  // Size of the header in bytes
+  private static final int HEADER_SIZE = 1 + SALT_SIZE + NONCE_PREFIX_SIZE;
+
+  // Number of bytes each parallel task handles, made up of as many whole segments as fit
+  private static final int BYTES_PER_TASK = 1 << 20;
+
+  // GCM ciphers, retained per thread and re-initialized for every segment
+  private static final ThreadLocal<Cipher> gcmCiphers = new ThreadLocal<Cipher>();
+
+  // Largest segment buffer retained per thread. Larger segments get buffers for the call only, so
+  // that a stream sealed with a huge segment size does not pin that much heap to the thread for
+  // good.
+  private static final int MAX_RETAINED_SEGMENT_BUFFER_SIZE = DEFAULT_SEGMENT_SIZE;
+
+  // Buffers for the parallel file methods, retained per thread (index 0 holds input data, index 1
+  // holds output data)
+  private static final ThreadLocal<byte[][]> segmentBuffers = new ThreadLocal<byte[][]>() {
+    @Override
+    protected byte[][] initialValue() {
+      return new byte[2][];
+    }
+  };
+
+  // Key matter from which segment keys are derived
+  private final byte[] keyMatter;
+
+  // Size in bytes of each sealed segment
+  private final int segmentSize;
+
+  // Source of salts and nonce prefixes
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Constructs a streaming AEAD operation with the default segment size.
+   *
+   * @param keyVersion The AES key version whose key matter is used
+   */
+  public StreamingAEAD(AESKeyVersion keyVersion) {
+    this(keyVersion, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructs a streaming AEAD operation.
+   *
+   * @param keyVersion The AES key version whose key matter is used
+   * @param segmentSize Size in bytes of each sealed segment, which includes a 16 byte tag
+   */
+  public StreamingAEAD(AESKeyVersion keyVersion, int segmentSize) {
+    if (keyVersion == null) {
+      throw new NullPointerException("keyVersion");
+    } else if (segmentSize <= TAG_SIZE || segmentSize < HEADER_SIZE) {
+      throw new IllegalArgumentException("segmentSize");
+    }
+    this.keyMatter = keyVersion.getKeyVersionMatter();
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Returns the size in bytes of each sealed segment.
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Returns the number of plaintext bytes in each full segment.
+   */
+  public int getPlaintextSegmentSize() {
+    return segmentSize - TAG_SIZE;
+  }
+
+  /**
+   * Returns the size in bytes of the header preceding the segments.
+   */
+  public int getHeaderSize() {
+    return HEADER_SIZE;
+  }
+
+  /**
+   * Returns the length of the ciphertext for a plaintext of the given length.
+   *
+   * @param plaintextLength Length of the plaintext in bytes
+   */
+  public long getCiphertextLength(long plaintextLength) {
+    if (plaintextLength < 0) {
+      throw new IllegalArgumentException("plaintextLength");
+    }
+    return HEADER_SIZE + plaintextLength + segmentCount(plaintextLength) * TAG_SIZE;
+  }
+
+  /**
+   * Returns the number of segments needed for a plaintext of the given length.
+   */
+  private long segmentCount(long plaintextLength) {
+    int plaintextSegmentSize = getPlaintextSegmentSize();
+    return Math.max(1, (plaintextLength + plaintextSegmentSize - 1) / plaintextSegmentSize);
+  }
+
+  /**
+   * Encrypts a byte array
+   *
+   * @param plaintext The byte array of data to encrypt
+   * @return The header and sealed segments
+   * @throws EncryptionException
+   */
+  public byte[] encrypt(byte[] plaintext) throws EncryptionException {
+    try {
+      ByteArrayOutputStream out =
+          new ByteArrayOutputStream((int) getCiphertextLength(plaintext.length));
+      OutputStream encrypting = newEncryptingStream(out);
+      encrypting.write(plaintext);
+      encrypting.close();
+      return out.toByteArray();
+    } catch (IOException e) {
+      // propagate the exception up as an encryption exception
+      throw new EncryptionException("Encryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Verifies and decrypts a byte array
+   *
+   * @param ciphertext The header and sealed segments
+   * @return The decrypted data
+   * @throws DecryptionException if the ciphertext is malformed or fails authentication
+   */
+  public byte[] decrypt(byte[] ciphertext) throws DecryptionException {
+    try {
+      InputStream in = newDecryptingStream(new ByteArrayInputStream(ciphertext));
+      ByteArrayOutputStream out = new ByteArrayOutputStream(ciphertext.length);
+      byte[] buffer = new byte[getPlaintextSegmentSize()];
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      // propagate the exception up as a decryption exception
+      throw new DecryptionException("Decryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Returns a stream that encrypts everything written to it and writes the header and sealed
+   * segments to the given stream. Data is written out a segment at a time. The last segment is
+   * only written when the returned stream is closed, which also closes the given stream.
+   *
+   * @param out The stream to write the ciphertext to
+   * @throws EncryptionException if the segment key could not be derived
+   */
+  public OutputStream newEncryptingStream(OutputStream out) throws EncryptionException {
+    try {
+      return new EncryptingStream(out, newHeader());
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException("Creating encrypting stream failed", e);
+    }
+  }
+
+  /**
+   * Returns a stream that reads ciphertext from the given stream and returns the verified
+   * plaintext. Each segment is verified before any of its plaintext is returned, and reading can
+   * stop at any point. A stream that ends early or has been tampered with causes an
+   * {@code IOException} when the affected segment is reached. Closing the returned stream closes
+   * the given stream.
+   *
+   * @param in The stream to read the header and sealed segments from
+   */
+  public InputStream newDecryptingStream(InputStream in) {
+    return new DecryptingStream(in);
+  }
+
+  /**
+   * Encrypts the entire contents of a file channel into another file channel, sealing segments in
+   * parallel on the executor. The output file is overwritten from position 0 and truncated to the
+   * length of the ciphertext. The positions of the channels are not used or modified.
+   *
+   * @param in The file channel holding the data to encrypt
+   * @param out The file channel to write the ciphertext to
+   * @param executor The executor to seal segments on
+   * @return The number of bytes written to {@code out}
+   * @throws EncryptionException
+   */
+  public long encryptFile(FileChannel in, FileChannel out, ExecutorService executor)
+      throws EncryptionException {
+    return encryptFile(in, out, executor, ParallelRunner.DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Encrypts the entire contents of a file channel into another file channel like
+   * {@link #encryptFile(FileChannel, FileChannel, ExecutorService)}, with at most the given number
+   * of threads working on it.
+   *
+   * @param in The file channel holding the data to encrypt
+   * @param out The file channel to write the ciphertext to
+   * @param executor The executor to seal segments on
+   * @param parallelism Maximum number of threads working on the file, including the caller; at
+   *                    most {@code parallelism - 1} tasks are submitted to the executor
+   * @return The number of bytes written to {@code out}
+   * @throws EncryptionException
+   */
+  public long encryptFile(final FileChannel in, final FileChannel out, ExecutorService executor,
+      int parallelism) throws EncryptionException {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism");
+    }
+    try {
+      byte[] header = newHeader();
+      final SegmentKey key = new SegmentKey(header);
+      writeFully(out, ByteBuffer.wrap(header), 0);
+
+      final long plaintextLength = in.size();
+      final long segments = segmentCount(plaintextLength);
+      final int plaintextSegmentSize = getPlaintextSegmentSize();
+      ParallelRunner.run(executor, parallelism, segments, segmentsPerTask(),
+          new ParallelRunner.RangeTask() {
+            @Override
+            public void run(long start, long end) throws Exception {
+              byte[][] buffers = segmentBuffers(segmentSize);
+              for (long index = start; index < end; ++index) {
+                long offset = index * plaintextSegmentSize;
+                int length = (int) Math.min(plaintextSegmentSize, plaintextLength - offset);
+                readFully(in, ByteBuffer.wrap(buffers[0], 0, length), offset);
+                int sealed =
+                    key.seal(index, index == segments - 1, buffers[0], 0, length, buffers[1], 0);
+                writeFully(out, ByteBuffer.wrap(buffers[1], 0, sealed),
+                    HEADER_SIZE + index * segmentSize);
+              }
+            }
+          });
+      long ciphertextLength = getCiphertextLength(plaintextLength);
+      out.truncate(ciphertextLength);
+      return ciphertextLength;
+    } catch (Exception e) {
+      // propagate the exception up as an encryption exception
+      throw new EncryptionException("Encryption of file failed", e);
+    }
+  }
+
+  /**
+   * Verifies and decrypts the entire contents of a file channel into another file channel, opening
+   * segments in parallel on the executor. The output file is overwritten from position 0 and
+   * truncated to the length of the plaintext. The positions of the channels are not used or
+   * modified. If verification fails, the output holds partial plaintext and must be discarded.
+   *
+   * @param in The file channel holding the header and sealed segments
+   * @param out The file channel to write the plaintext to
+   * @param executor The executor to open segments on
+   * @return The number of bytes written to {@code out}
+   * @throws DecryptionException if the ciphertext is malformed or fails authentication
+   */
+  public long decryptFile(FileChannel in, FileChannel out, ExecutorService executor)
+      throws DecryptionException {
+    return decryptFile(in, out, executor, ParallelRunner.DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Verifies and decrypts the entire contents of a file channel into another file channel like
+   * {@link #decryptFile(FileChannel, FileChannel, ExecutorService)}, with at most the given number
+   * of threads working on it.
+   *
+   * @param in The file channel holding the header and sealed segments
+   * @param out The file channel to write the plaintext to
+   * @param executor The executor to open segments on
+   * @param parallelism Maximum number of threads working on the file, including the caller; at
+   *                    most {@code parallelism - 1} tasks are submitted to the executor
+   * @return The number of bytes written to {@code out}
+   * @throws DecryptionException if the ciphertext is malformed or fails authentication
+   */
+  public long decryptFile(final FileChannel in, final FileChannel out, ExecutorService executor,
+      int parallelism) throws DecryptionException {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism");
+    }
+    try {
+      final SegmentKey key = new SegmentKey(readHeader(in));
+      final long segments = fileSegmentCount(in.size());
+      final long ciphertextLength = in.size();
+      final int plaintextSegmentSize = getPlaintextSegmentSize();
+      ParallelRunner.run(executor, parallelism, segments, segmentsPerTask(),
+          new ParallelRunner.RangeTask() {
+            @Override
+            public void run(long start, long end) throws Exception {
+              byte[][] buffers = segmentBuffers(segmentSize);
+              for (long index = start; index < end; ++index) {
+                long offset = HEADER_SIZE + index * segmentSize;
+                int length = (int) Math.min(segmentSize, ciphertextLength - offset);
+                readFully(in, ByteBuffer.wrap(buffers[0], 0, length), offset);
+                int opened =
+                    key.open(index, index == segments - 1, buffers[0], 0, length, buffers[1], 0);
+                writeFully(out, ByteBuffer.wrap(buffers[1], 0, opened),
+                    index * plaintextSegmentSize);
+              }
+            }
+          });
+      long plaintextLength = ciphertextLength - HEADER_SIZE - segments * TAG_SIZE;
+      out.truncate(plaintextLength);
+      return plaintextLength;
+    } catch (Exception e) {
+      // propagate the exception up as a decryption exception
+      throw new DecryptionException("Decryption of file failed", e);
+    }
+  }
+
+  /**
+   * Verifies and decrypts a single segment of the ciphertext in a file channel, without reading
+   * any other segment. The position of the channel is not used or modified.
+   *
+   * @param in The file channel holding the header and sealed segments
+   * @param index The index of the segment to decrypt, from 0
+   * @param dst The buffer to write the plaintext of the segment to, must have room for
+   *            {@link #getPlaintextSegmentSize()} bytes
+   * @return The number of bytes written to {@code dst}
+   * @throws DecryptionException if the ciphertext is malformed or the segment fails authentication
+   */
+  public int decryptSegment(FileChannel in, long index, ByteBuffer dst)
+      throws DecryptionException {
+    try {
+      SegmentKey key = new SegmentKey(readHeader(in));
+      long segments = fileSegmentCount(in.size());
+      if (index < 0 || index >= segments) {
+        throw new IndexOutOfBoundsException("Segment " + index + " of " + segments);
+      }
+      long offset = HEADER_SIZE + index * segmentSize;
+      int length = (int) Math.min(segmentSize, in.size() - offset);
+      byte[][] buffers = segmentBuffers(segmentSize);
+      readFully(in, ByteBuffer.wrap(buffers[0], 0, length), offset);
+      int opened = key.open(index, index == segments - 1, buffers[0], 0, length, buffers[1], 0);
+      dst.put(buffers[1], 0, opened);
+      return opened;
+    } catch (Exception e) {
+      // propagate the exception up as a decryption exception
+      throw new DecryptionException("Decryption of segment failed", e);
+    }
+  }
+
+  /**
+   * Returns the number of segments in a ciphertext file of the given size.
+   */
+  private long fileSegmentCount(long ciphertextLength) throws IOException {
+    long segmentsLength = ciphertextLength - HEADER_SIZE;
+    long segments = Math.max(1, (segmentsLength + segmentSize - 1) / segmentSize);
+    if (segmentsLength - (segments - 1) * segmentSize < TAG_SIZE) {
+      throw new EOFException("Ciphertext is truncated");
+    }
+    return segments;
+  }
+
+  /**
+   * Returns the number of segments handled by each parallel task.
+   */
+  private long segmentsPerTask() {
+    return Math.max(1, BYTES_PER_TASK / segmentSize);
+  }
+
+  /**
+   * Generates a new header with a random salt and nonce prefix.
+   */
+  private byte[] newHeader() {
+    byte[] header = new byte[HEADER_SIZE];
+    header[0] = (byte) HEADER_SIZE;
+    byte[] random = new byte[SALT_SIZE + NONCE_PREFIX_SIZE];
+    this.random.nextBytes(random);
+    System.arraycopy(random, 0, header, 1, random.length);
+    return header;
+  }
+
+  /**
+   * Reads the header from the start of a file channel.
+   */
+  private static byte[] readHeader(FileChannel in) throws IOException {
+    byte[] header = new byte[HEADER_SIZE];
+    readFully(in, ByteBuffer.wrap(header), 0);
+    return header;
+  }
+
+  /**
+   * Returns the buffers of the calling thread, grown to at least the given size. Buffers larger
+   * than {@link #MAX_RETAINED_SEGMENT_BUFFER_SIZE} are not retained.
+   */
+  private static byte[][] segmentBuffers(int size) {
+    if (size > MAX_RETAINED_SEGMENT_BUFFER_SIZE) {
+      return new byte[2][size];
+    }
+    byte[][] buffers = segmentBuffers.get();
+    for (int i = 0; i < buffers.length; ++i) {
+      if (buffers[i] == null || buffers[i].length < size) {
+        buffers[i] = new byte[size];
+      }
+    }
+    return buffers;
+  }
+
+  /**
+   * Fills the buffer from a file channel starting at the given position.
+   */
+  private static void readFully(FileChannel in, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Ciphertext is truncated");
+      }
+    }
+  }
+
+  /**
+   * Writes the whole buffer to a file channel starting at the given position.
+   */
+  private static void writeFully(FileChannel out, ByteBuffer buffer, long position)
+      throws IOException {
+    int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      out.write(buffer, position + buffer.position() - start);
+    }
+  }
+
+  /**
+   * The key and nonce prefix of a single message, which seal and open its segments.
+   */
+  private final class SegmentKey {
+
+    private final SecretKeySpec key;
+
+    private final byte[] noncePrefix;
+
+    /**
+     * Derives the segment key from the salt in the header.
+     */
+    SegmentKey(byte[] header) throws GeneralSecurityException {
+      if ((header[0] & 0xFF) != HEADER_SIZE) {
+        throw new GeneralSecurityException("Unsupported header");
+      }
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(keyMatter, "HmacSHA256"));
+      mac.update(header, 1, SALT_SIZE);
+      byte[] derived = mac.doFinal();
+      // derive a key as long as the key matter of the key version
+      key = new SecretKeySpec(derived, 0, keyMatter.length, "AES");
+      noncePrefix = Arrays.copyOfRange(header, 1 + SALT_SIZE, HEADER_SIZE);
+    }
+
+    /**
+     * Encrypts and authenticates a segment, returning the number of bytes written to the output.
+     */
+    int seal(long index, boolean last, byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset) throws GeneralSecurityException {
+      return cipher(Cipher.ENCRYPT_MODE, index, last)
+          .doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * Verifies and decrypts a segment, returning the number of bytes written to the output.
+     */
+    int open(long index, boolean last, byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset) throws GeneralSecurityException {
+      return cipher(Cipher.DECRYPT_MODE, index, last)
+          .doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * Returns the GCM cipher of the calling thread initialized for the given segment.
+     */
+    private Cipher cipher(int opmode, long index, boolean last) throws GeneralSecurityException {
+      if (index < 0 || index > 0xFFFFFFFFL) {
+        throw new GeneralSecurityException("Too many segments");
+      }
+      byte[] nonce = new byte[NONCE_SIZE];
+      System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_SIZE);
+      nonce[NONCE_PREFIX_SIZE] = (byte) (index >>> 24);
+      nonce[NONCE_PREFIX_SIZE + 1] = (byte) (index >>> 16);
+      nonce[NONCE_PREFIX_SIZE + 2] = (byte) (index >>> 8);
+      nonce[NONCE_PREFIX_SIZE + 3] = (byte) index;
+      nonce[NONCE_PREFIX_SIZE + 4] = (byte) (last ? 1 : 0);
+
+      Cipher cipher = gcmCiphers.get();
+      if (cipher == null) {
+        cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        gcmCiphers.set(cipher);
+      }
+      cipher.init(opmode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+      return cipher;
+    }
+  }
+
+  /**
+   * Output stream that buffers a segment of plaintext at a time and writes it out sealed.
+   */
+  private final class EncryptingStream extends OutputStream {
+
+    private final OutputStream out;
+
+    private final SegmentKey key;
+
+    // Plaintext of the segment being filled
+    private final byte[] plaintext = new byte[getPlaintextSegmentSize()];
+
+    // Sealed segment being written out
+    private final byte[] sealed = new byte[segmentSize];
+
+    private int count;
+
+    private long index;
+
+    private boolean closed;
+
+    EncryptingStream(OutputStream out, byte[] header) throws GeneralSecurityException {
+      this.out = out;
+      this.key = new SegmentKey(header);
+      try {
+        out.write(header);
+      } catch (IOException e) {
+        throw new GeneralSecurityException("Writing header failed", e);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      while (len > 0) {
+        // only seal a full segment once more data arrives, since the last segment is special
+        if (count == plaintext.length) {
+          sealSegment(false);
+        }
+        int n = Math.min(len, plaintext.length - count);
+        System.arraycopy(b, off, plaintext, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        sealSegment(true);
+        out.close();
+      }
+    }
+
+    private void sealSegment(boolean last) throws IOException {
+      try {
+        int length = key.seal(index, last, plaintext, 0, count, sealed, 0);
+        out.write(sealed, 0, length);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Sealing segment failed", e);
+      }
+      ++index;
+      count = 0;
+    }
+  }
+
+  /**
+   * Input stream that reads a sealed segment at a time and returns its plaintext once verified.
+   */
+  private final class DecryptingStream extends InputStream {
+
+    private final InputStream in;
+
+    private SegmentKey key;
+
+    // Sealed segment being read, with room for one more byte to detect the last segment
+    private final byte[] sealed = new byte[segmentSize + 1];
+
+    // Number of bytes already in the sealed buffer
+    private int sealedCount;
+
+    // Plaintext of the current segment
+    private final byte[] plaintext = new byte[segmentSize];
+
+    private int position;
+
+    private int limit;
+
+    private long index;
+
+    private boolean finished;
+
+    DecryptingStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (position == limit) {
+        if (finished) {
+          return -1;
+        }
+        openSegment();
+      }
+      int n = Math.min(len, limit - position);
+      System.arraycopy(plaintext, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private void openSegment() throws IOException {
+      if (key == null) {
+        byte[] header = new byte[HEADER_SIZE];
+        if (fill(header, 0, HEADER_SIZE) < HEADER_SIZE) {
+          throw new EOFException("Ciphertext is truncated");
+        }
+        try {
+          key = new SegmentKey(header);
+        } catch (GeneralSecurityException e) {
+          throw new IOException("Reading header failed", e);
+        }
+      }
+      sealedCount += fill(sealed, sealedCount, sealed.length - sealedCount);
+      // a segment followed by no more data is the last one
+      boolean last = sealedCount <= segmentSize;
+      int length = last ? sealedCount : segmentSize;
+      if (length < TAG_SIZE) {
+        throw new EOFException("Ciphertext is truncated");
+      }
+      try {
+        limit = key.open(index, last, sealed, 0, length, plaintext, 0);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Segment " + index + " failed authentication", e);
+      }
+      position = 0;
+      ++index;
+      if (last) {
+        finished = true;
+      } else {
+        // keep the extra byte, which starts the next segment
+        sealed[0] = sealed[segmentSize];
+        sealedCount = 1;
+      }
+    }
+
+    /**
+     * Reads from the underlying stream until the range is full or the stream ends, returning the
+     * number of bytes read.
+     */
+    private int fill(byte[] b, int off, int len) throws IOException {
+      int total = 0;
+      while (total < len) {
+        int n = in.read(b, off + total, len - total);
+        if (n < 0) {
+          break;
+        }
+        total += n;
+      }
+      return total;
+    }
+  }
+}
@@ -16,22 +16,87 @@ package com.google.k2crypto;
 
 import com.google.k2crypto.exceptions.DecryptionException;
 import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.exceptions.InvalidKeyDataException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.KeyVersion;
 import com.google.k2crypto.keyversions.SymmetricKeyVersion;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
+import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
+import javax.crypto.IllegalBlockSizeException;
+
+import com.google.protobuf.ByteString;
 
 /**
  * This class represents a symmetric encryption in a K2. It is extends Purpose and allows you to
  * actually encrypt and decrypt data using a SymmetricKey
  *
+ * <p>For key versions that use per-message nonces (see
+ * {@link SymmetricKeyVersion#getNonceLength()}), every method generates a fresh nonce when
+ * encrypting and writes it in front of the ciphertext, and reads it back from there when
+ * decrypting.
+ *
+ * <p>The methods taking a {@link Key} encrypt with its primary key version and tag the ciphertext
+ * with a header identifying that key version, so that it can still be decrypted after the key has
+ * been rotated to a new primary.
+ *
  * @author John Maheswaran (maheswaran@google.com)
  */
 public class SymmetricEncryption extends Operation {
 
+  /**
+   * Default size in bytes of the buffers used by the channel methods. Large buffers let the cipher
+   * work on big chunks of data at a time, which is what hardware-accelerated ciphers need to run at
+   * full speed.
+   */
+  public static final int DEFAULT_CHANNEL_BUFFER_SIZE = 1 << 20;
+
+  /**
+   * Format version written as the first byte of ciphertext encrypted with a Key
+   */
+  public static final byte KEY_CIPHERTEXT_FORMAT = 1;
+
+  /**
+   * Length in bytes of the header in front of ciphertext encrypted with a Key, which holds the
+   * format version followed by the short identifier of the key version
+   */
+  public static final int KEY_HEADER_LENGTH = 1 + KeyVersion.SHORT_ID_LENGTH;
+
+  // Number of bytes passed to the cipher at a time when transforming data in place (a multiple of
+  // every block size, so that block ciphers do not hold back data between chunks)
+  private static final int IN_PLACE_CHUNK_SIZE = 1 << 16;
+
+  // Largest direct buffer retained per thread for the channel methods. This leaves room for the
+  // padding, nonce or tag that a cipher adds to a buffer of the default size; larger buffers are
+  // allocated for the call only, so that one call with a huge buffer size does not pin that much
+  // off-heap memory to the thread for good.
+  private static final int MAX_RETAINED_CHANNEL_BUFFER_SIZE = DEFAULT_CHANNEL_BUFFER_SIZE + 1024;
+
+  // Direct buffers for the channel methods, retained per thread so that repeated calls do not
+  // allocate (index 0 holds input data, index 1 holds output data)
+  private static final ThreadLocal<ByteBuffer[]> channelBuffers = new ThreadLocal<ByteBuffer[]>() {
+    @Override
+    protected ByteBuffer[] initialValue() {
+      return new ByteBuffer[2];
+    }
+  };
+
+  // Scratch arrays for transforming data in place, retained per thread so that repeated calls do
+  // not allocate. They never grow beyond IN_PLACE_CHUNK_SIZE, which caps what each thread keeps.
+  private static final ThreadLocal<byte[]> inPlaceChunks = new ThreadLocal<byte[]>();
+
   /**
    * Encrypts a byte array using a symmetric key version
    *
@@ -46,8 +111,21 @@ public class SymmetricEncryption extends Operation {
     byte[] encryptedData;
     // use try catch block to abstract from individual exceptions using EncryptionException
     try {
-      // encrypt the data
-      encryptedData = keyVersion.getEncryptingCipher().doFinal(materialToEncrypt);
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireEncryptingCipher();
+      byte[] nonce = initEncryption(keyVersion, cipher);
+      if (nonce == null) {
+        // encrypt the data
+        encryptedData = cipher.doFinal(materialToEncrypt);
+      } else {
+        // encrypt the data after the nonce
+        encryptedData = new byte[keyVersion.getEncryptedLength(materialToEncrypt.length)];
+        System.arraycopy(nonce, 0, encryptedData, 0, nonce.length);
+        cipher.doFinal(materialToEncrypt, 0, materialToEncrypt.length, encryptedData,
+            nonce.length);
+      }
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseEncryptingCipher(cipher);
       // Catch all exceptions
     } catch (Exception e) {
       // propagate the exception up as an encryption exception
@@ -71,9 +149,15 @@ public class SymmetricEncryption extends Operation {
     byte[] decryptedData;
     // use try catch block to abstract from individual exceptions using DecryptionException
     try {
-      // decrypt the data
-
-      decryptedData = keyVersion.getDecryptingCipher().doFinal(materialToDecrypt);
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireDecryptingCipher();
+      // decrypt the data following the nonce, if any
+      int nonceLength = initDecryption(keyVersion, cipher, materialToDecrypt, 0,
+          materialToDecrypt.length);
+      decryptedData = cipher.doFinal(materialToDecrypt, nonceLength,
+          materialToDecrypt.length - nonceLength);
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseDecryptingCipher(cipher);
       // Catch all exceptions
     } catch (Exception e) {
       // propagate the exception up as an decrypted exception
@@ -83,6 +167,380 @@ public class SymmetricEncryption extends Operation {
     return decryptedData;
   }
 
+  /**
+   * Encrypts a byte array using the primary key version of a key. The encrypted data starts with a
+   * {@link #KEY_HEADER_LENGTH}-byte header identifying the key version, so that
+   * {@link #decryptBytes(Key, byte[])} can find it even after the primary has changed.
+   *
+   * <p>Every message gets its own nonce or IV, stored after the header: key versions with
+   * per-message nonces use them as usual, and AES key versions get a fresh random IV instead of
+   * their own. The IV of an AES key version is not saved with the key, and reusing it would encrypt
+   * every message with the same keystream. Key versions with neither (i.e. AES in ECB mode) are
+   * rejected.
+   *
+   * @param key The key whose primary symmetric key version is used to encrypt the data
+   * @param materialToEncrypt The byte array of data to encrypt
+   * @return A byte array of the header followed by the encrypted data
+   * @throws EncryptionException if the primary key version is not symmetric, has no per-message
+   *     nonce or IV, or fails to encrypt the data
+   */
+  public static byte[] encryptBytes(Key key, byte[] materialToEncrypt)
+      throws EncryptionException {
+    KeyVersion primary = key.getPrimary();
+    if (!(primary instanceof SymmetricKeyVersion)) {
+      throw new EncryptionException("Key has no symmetric primary key version");
+    }
+    SymmetricKeyVersion keyVersion = (SymmetricKeyVersion) primary;
+    AESKeyVersion ivKeyVersion = messageIvKeyVersion(keyVersion);
+    if (ivKeyVersion == null && keyVersion.getNonceLength() == 0) {
+      throw new EncryptionException("Key version has no per-message nonce or IV");
+    }
+    int ivLength = (ivKeyVersion == null ? 0 : AESKeyVersion.getBlockSize());
+    byte[] encryptedData = new byte[KEY_HEADER_LENGTH + ivLength
+        + keyVersion.getEncryptedLength(materialToEncrypt.length)];
+    // write the header, then encrypt the data straight after it
+    encryptedData[0] = KEY_CIPHERTEXT_FORMAT;
+    keyVersion.getShortId().copyTo(encryptedData, 1);
+    int written;
+    if (ivKeyVersion == null) {
+      written = encryptBytes(keyVersion, materialToEncrypt, 0, materialToEncrypt.length,
+          encryptedData, KEY_HEADER_LENGTH);
+    } else {
+      byte[] initVector = AESKeyVersion.newInitVector();
+      System.arraycopy(initVector, 0, encryptedData, KEY_HEADER_LENGTH, ivLength);
+      try {
+        written = ivLength + ivKeyVersion.newCipher(Cipher.ENCRYPT_MODE, initVector).doFinal(
+            materialToEncrypt, 0, materialToEncrypt.length, encryptedData,
+            KEY_HEADER_LENGTH + ivLength);
+      } catch (GeneralSecurityException e) {
+        throw new EncryptionException("Encryption of byte array failed", e);
+      }
+    }
+    return KEY_HEADER_LENGTH + written == encryptedData.length ? encryptedData
+        : Arrays.copyOf(encryptedData, KEY_HEADER_LENGTH + written);
+  }
+
+  /**
+   * Decrypts a byte array encrypted with {@link #encryptBytes(Key, byte[])}, using the key version
+   * of the key identified by the header. The key version is looked up directly, so decryption
+   * takes the same time however many key versions the key has.
+   *
+   * @param key The key holding the key version that encrypted the data
+   * @param materialToDecrypt The header followed by the encrypted data
+   * @return A byte array of decrypted data
+   * @throws DecryptionException if the header is malformed, the key has no matching symmetric key
+   *     version, the matching key version fails to load or the data cannot be decrypted
+   */
+  public static byte[] decryptBytes(Key key, byte[] materialToDecrypt)
+      throws DecryptionException {
+    if (materialToDecrypt.length < KEY_HEADER_LENGTH) {
+      throw new DecryptionException("Encrypted data is too short for the header");
+    } else if (materialToDecrypt[0] != KEY_CIPHERTEXT_FORMAT) {
+      throw new DecryptionException("Unknown encrypted data format " + materialToDecrypt[0]);
+    }
+    // look up the key version by the short identifier in the header
+    KeyVersion kv;
+    try {
+      kv = key.getKeyVersionByShortId(
+          ByteString.copyFrom(materialToDecrypt, 1, KeyVersion.SHORT_ID_LENGTH));
+    } catch (InvalidKeyDataException e) {
+      throw new DecryptionException("Key version matching the data failed to load", e);
+    }
+    if (!(kv instanceof SymmetricKeyVersion)) {
+      throw new DecryptionException("Key has no symmetric key version matching the data");
+    }
+    SymmetricKeyVersion keyVersion = (SymmetricKeyVersion) kv;
+    AESKeyVersion ivKeyVersion = messageIvKeyVersion(keyVersion);
+    if (ivKeyVersion == null && keyVersion.getNonceLength() == 0) {
+      throw new DecryptionException("Key version has no per-message nonce or IV");
+    }
+    int length = materialToDecrypt.length - KEY_HEADER_LENGTH;
+    if (ivKeyVersion == null) {
+      byte[] decryptedData = new byte[keyVersion.getMaxDecryptedLength(length)];
+      int written = decryptBytes(keyVersion, materialToDecrypt, KEY_HEADER_LENGTH, length,
+          decryptedData, 0);
+      return written == decryptedData.length ? decryptedData
+          : Arrays.copyOf(decryptedData, written);
+    }
+    // the IV of the message follows the header
+    int ivLength = AESKeyVersion.getBlockSize();
+    if (length < ivLength) {
+      throw new DecryptionException("Encrypted data is too short for the IV");
+    }
+    try {
+      return ivKeyVersion.newCipher(Cipher.DECRYPT_MODE, Arrays.copyOfRange(materialToDecrypt,
+          KEY_HEADER_LENGTH, KEY_HEADER_LENGTH + ivLength)).doFinal(materialToDecrypt,
+              KEY_HEADER_LENGTH + ivLength, length - ivLength);
+    } catch (GeneralSecurityException e) {
+      throw new DecryptionException("Decryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Returns the key version as an AES key version if messages encrypted with a Key need a fresh IV
+   * of their own, or null otherwise. Key versions that get null and have no nonces either cannot
+   * be used to encrypt with a Key.
+   */
+  private static AESKeyVersion messageIvKeyVersion(SymmetricKeyVersion keyVersion) {
+    if (keyVersion.getNonceLength() == 0 && keyVersion instanceof AESKeyVersion
+        && ((AESKeyVersion) keyVersion).getMode() != AESKeyVersion.Mode.ECB) {
+      return (AESKeyVersion) keyVersion;
+    }
+    return null;
+  }
+
+  /**
+   * Encrypts part of a byte array into a caller-supplied array using a symmetric key version,
+   * without allocating a result array.
+   *
+   * <p>The output array must have at least
+   * {@link SymmetricKeyVersion#getEncryptedLength(int) keyVersion.getEncryptedLength(inputLength)}
+   * bytes available from {@code outputOffset}. Input and output may be the same array; see also
+   * {@link #encryptInPlace(SymmetricKeyVersion, byte[], int, int)}.
+   *
+   * @param keyVersion The symmetric key version to use to encrypt the data
+   * @param input The byte array holding the data to encrypt
+   * @param inputOffset Offset of the data to encrypt in {@code input}
+   * @param inputLength Number of bytes to encrypt
+   * @param output The byte array to write the encrypted data to
+   * @param outputOffset Offset in {@code output} at which to start writing
+   * @return The number of bytes written to {@code output}
+   * @throws EncryptionException
+   */
+  public static int encryptBytes(SymmetricKeyVersion keyVersion, byte[] input, int inputOffset,
+      int inputLength, byte[] output, int outputOffset) throws EncryptionException {
+    // use try catch block to abstract from individual exceptions using EncryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireEncryptingCipher();
+      byte[] nonce = initEncryption(keyVersion, cipher);
+      int nonceLength = nonce == null ? 0 : nonce.length;
+      if (nonce != null && input == output) {
+        // the ciphertext is shifted by the nonce relative to the data, which not every cipher
+        // can handle in place, so encrypt a copy
+        input = Arrays.copyOfRange(input, inputOffset, inputOffset + inputLength);
+        inputOffset = 0;
+      }
+      // encrypt the data straight into the output array, after the nonce if any
+      int written =
+          cipher.doFinal(input, inputOffset, inputLength, output, outputOffset + nonceLength);
+      if (nonce != null) {
+        System.arraycopy(nonce, 0, output, outputOffset, nonceLength);
+      }
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseEncryptingCipher(cipher);
+      return nonceLength + written;
+      // Catch all exceptions
+    } catch (Exception e) {
+      // propagate the exception up as an encryption exception
+      throw new EncryptionException("Encryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Decrypts part of a byte array into a caller-supplied array using a symmetric key version,
+   * without allocating a result array.
+   *
+   * <p>The output array must have at least
+   * {@link SymmetricKeyVersion#getMaxDecryptedLength(int)
+   * keyVersion.getMaxDecryptedLength(inputLength)} bytes available from {@code outputOffset}.
+   * Input and output may be the same array; see also
+   * {@link #decryptInPlace(SymmetricKeyVersion, byte[], int, int)}.
+   *
+   * @param keyVersion The symmetric key version to use to decrypt the data
+   * @param input The byte array holding the encrypted data
+   * @param inputOffset Offset of the encrypted data in {@code input}
+   * @param inputLength Number of bytes to decrypt
+   * @param output The byte array to write the decrypted data to
+   * @param outputOffset Offset in {@code output} at which to start writing
+   * @return The number of bytes written to {@code output}
+   * @throws DecryptionException
+   */
+  public static int decryptBytes(SymmetricKeyVersion keyVersion, byte[] input, int inputOffset,
+      int inputLength, byte[] output, int outputOffset) throws DecryptionException {
+    // use try catch block to abstract from individual exceptions using DecryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireDecryptingCipher();
+      // decrypt the data following the nonce, if any, straight into the output array
+      int nonceLength = initDecryption(keyVersion, cipher, input, inputOffset, inputLength);
+      if (nonceLength > 0 && input == output) {
+        // the data is shifted by the nonce relative to the ciphertext, which not every cipher
+        // can handle in place, so decrypt a copy
+        input = Arrays.copyOfRange(input, inputOffset, inputOffset + inputLength);
+        inputOffset = 0;
+      }
+      int written = cipher.doFinal(input, inputOffset + nonceLength, inputLength - nonceLength,
+          output, outputOffset);
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseDecryptingCipher(cipher);
+      return written;
+      // Catch all exceptions
+    } catch (Exception e) {
+      // propagate the exception up as an decrypted exception
+      throw new DecryptionException("Decryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Encrypts part of a byte array in place, so that no second buffer of the same size is needed.
+   * The data is passed to the cipher in chunks, so only a small, fixed amount of memory is
+   * allocated however large the data is.
+   *
+   * <p>The encrypted data is written from {@code offset}. Modes that pad the data produce a longer
+   * ciphertext, so the array must have at least
+   * {@link SymmetricKeyVersion#getEncryptedLength(int) keyVersion.getEncryptedLength(length)}
+   * bytes available from {@code offset}.
+   *
+   * @param keyVersion The symmetric key version to use to encrypt the data
+   * @param buffer The byte array holding the data to encrypt
+   * @param offset Offset of the data in {@code buffer}
+   * @param length Number of bytes to encrypt
+   * @return The length of the encrypted data now at {@code offset}
+   * @throws EncryptionException
+   */
+  public static int encryptInPlace(SymmetricKeyVersion keyVersion, byte[] buffer, int offset,
+      int length) throws EncryptionException {
+    // use try catch block to abstract from individual exceptions using EncryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireEncryptingCipher();
+      byte[] nonce = initEncryption(keyVersion, cipher);
+      int dataOffset = offset;
+      if (nonce != null) {
+        // make room for the nonce in front of the data, which is then encrypted where it lies
+        dataOffset += nonce.length;
+        System.arraycopy(buffer, offset, buffer, dataOffset, length);
+        System.arraycopy(nonce, 0, buffer, offset, nonce.length);
+      }
+      int written = transformInPlace(cipher, buffer, dataOffset, length, dataOffset);
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseEncryptingCipher(cipher);
+      return dataOffset - offset + written;
+      // Catch all exceptions
+    } catch (Exception e) {
+      // propagate the exception up as an encryption exception
+      throw new EncryptionException("Encryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Decrypts part of a byte array in place, so that no second buffer of the same size is needed.
+   * The data is passed to the cipher in chunks, so only a small, fixed amount of memory is
+   * allocated however large the data is. The exception is authenticated key versions, such as
+   * ChaCha20-Poly1305, whose JCE ciphers hold back all the plaintext until the tag is verified.
+   *
+   * @param keyVersion The symmetric key version to use to decrypt the data
+   * @param buffer The byte array holding the encrypted data
+   * @param offset Offset of the encrypted data in {@code buffer}
+   * @param length Number of bytes to decrypt
+   * @return The length of the decrypted data now at {@code offset}
+   * @throws DecryptionException
+   */
+  public static int decryptInPlace(SymmetricKeyVersion keyVersion, byte[] buffer, int offset,
+      int length) throws DecryptionException {
+    // use try catch block to abstract from individual exceptions using DecryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireDecryptingCipher();
+      // decrypt the data following the nonce, if any, over the start of the ciphertext
+      int nonceLength = initDecryption(keyVersion, cipher, buffer, offset, length);
+      int written =
+          transformInPlace(cipher, buffer, offset + nonceLength, length - nonceLength, offset);
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseDecryptingCipher(cipher);
+      return written;
+      // Catch all exceptions
+    } catch (Exception e) {
+      // propagate the exception up as an decrypted exception
+      throw new DecryptionException("Decryption of byte array failed", e);
+    }
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer into another buffer using a symmetric key version.
+   *
+   * <p>Both heap and direct buffers are supported, and the data is passed straight to the cipher
+   * without being copied into intermediate arrays. On success, the position of {@code src} is
+   * advanced to its limit and the position of {@code dst} is advanced by the number of bytes
+   * written. The buffers must not be the same buffer, although they may share backing data.
+   *
+   * @param keyVersion The symmetric key version to use to encrypt the data
+   * @param src The buffer holding the data to encrypt
+   * @param dst The buffer to write the encrypted data to
+   * @return The number of bytes written to {@code dst}
+   * @throws EncryptionException if the encryption failed, including if {@code dst} does not have
+   *         enough space remaining
+   */
+  public static int encrypt(SymmetricKeyVersion keyVersion, ByteBuffer src, ByteBuffer dst)
+      throws EncryptionException {
+    // use try catch block to abstract from individual exceptions using EncryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireEncryptingCipher();
+      byte[] nonce = initEncryption(keyVersion, cipher);
+      int nonceLength = nonce == null ? 0 : nonce.length;
+      // encrypt directly from one buffer to the other, after the nonce if any
+      int start = dst.position();
+      dst.position(start + nonceLength);
+      int written = cipher.doFinal(src, dst);
+      if (nonce != null) {
+        // the buffers may share data, so the nonce is only written once the source has been
+        // encrypted
+        ByteBuffer nonceDst = dst.duplicate();
+        nonceDst.position(start);
+        nonceDst.put(nonce);
+      }
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseEncryptingCipher(cipher);
+      return nonceLength + written;
+      // Catch all exceptions
+    } catch (Exception e) {
+      // propagate the exception up as an encryption exception
+      throw new EncryptionException("Encryption of byte buffer failed", e);
+    }
+  }
+
+  /**
+   * Decrypts the remaining bytes of a buffer into another buffer using a symmetric key version.
+   *
+   * <p>Behaves like {@link #encrypt(SymmetricKeyVersion, ByteBuffer, ByteBuffer)}, but decrypts.
+   *
+   * @param keyVersion The symmetric key version to use to decrypt the data
+   * @param src The buffer holding the encrypted data
+   * @param dst The buffer to write the decrypted data to
+   * @return The number of bytes written to {@code dst}
+   * @throws DecryptionException if the decryption failed, including if {@code dst} does not have
+   *         enough space remaining
+   */
+  public static int decrypt(SymmetricKeyVersion keyVersion, ByteBuffer src, ByteBuffer dst)
+      throws DecryptionException {
+    // use try catch block to abstract from individual exceptions using DecryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireDecryptingCipher();
+      int nonceLength = keyVersion.getNonceLength();
+      if (nonceLength > 0) {
+        // read the nonce in front of the ciphertext
+        if (src.remaining() < nonceLength) {
+          throw new IllegalBlockSizeException("Ciphertext is shorter than the nonce");
+        }
+        byte[] nonce = new byte[nonceLength];
+        src.get(nonce);
+        keyVersion.initCipher(cipher, Cipher.DECRYPT_MODE, nonce);
+      }
+      // decrypt directly from one buffer to the other
+      int written = cipher.doFinal(src, dst);
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseDecryptingCipher(cipher);
+      return written;
+      // Catch all exceptions
+    } catch (Exception e) {
+      // propagate the exception up as an decrypted exception
+      throw new DecryptionException("Decryption of byte buffer failed", e);
+    }
+  }
+
   /**
    * This method takes an input stream and encrypts it using a symmetric key version, giving an
    * encrypted output stream
@@ -97,21 +555,29 @@ public class SymmetricEncryption extends Operation {
     // a byte array buffer to use when reading from the stream
     byte[] byteBuffer = new byte[1024];
 
-    // initialize the output stream using the symmetric key version encrypting cipher
-    out = new CipherOutputStream(out, keyVersion.getEncryptingCipher());
-
     // integer used to determine when we have read all of the input stream
     int i = 0;
 
     // use try catch block to abstract from individual exceptions using EncryptionException
     try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireEncryptingCipher();
+      byte[] nonce = initEncryption(keyVersion, cipher);
+      if (nonce != null) {
+        // write the nonce in front of the encrypted data
+        out.write(nonce);
+      }
+      // initialize the output stream using the symmetric key version encrypting cipher
+      out = new CipherOutputStream(out, cipher);
       // read from the input stream into the byte array buffer
       while ((i = in.read(byteBuffer)) >= 0) {
         // now encrypt the data in the buffer using the cipher and write it to the output stream
         out.write(byteBuffer, 0, i);
       }
-      // close the output stream to prevent resource leakage
+      // close the output stream to prevent resource leakage (this also finalizes the cipher)
       out.close();
+      // the cipher has been reset and can be reused
+      keyVersion.releaseEncryptingCipher(cipher);
       // Catch all exceptions
     } catch (Exception e) {
       // propagate the exception up as an EncryptionException
@@ -133,11 +599,19 @@ public class SymmetricEncryption extends Operation {
     // a byte array buffer to use when reading from the stream
     byte[] byteBuffer = new byte[1024];
 
-    // initialize the input stream using the AES decrypting cipher
-    in = new CipherInputStream(in, keyVersion.getDecryptingCipher());
-
     // use try catch block to abstract from individual exceptions using EncryptionException
     try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireDecryptingCipher();
+      int nonceLength = keyVersion.getNonceLength();
+      if (nonceLength > 0) {
+        // read the nonce in front of the encrypted data
+        byte[] nonce = new byte[nonceLength];
+        new DataInputStream(in).readFully(nonce);
+        keyVersion.initCipher(cipher, Cipher.DECRYPT_MODE, nonce);
+      }
+      // initialize the input stream using the AES decrypting cipher
+      in = new CipherInputStream(in, cipher);
 
       // integer used to determine when we have read all of the input stream
       int i = 0;
@@ -149,9 +623,258 @@ public class SymmetricEncryption extends Operation {
       }
       // close the output stream to prevent resource leakage
       out.close();
+      // the end of the stream finalized the cipher, so it can be reused
+      keyVersion.releaseDecryptingCipher(cipher);
     } catch (Exception e) {
       // propagate the exception up as an DecryptionException
       throw new DecryptionException("Decryption of stream failed", e);
     }
   }
+
+  /**
+   * Encrypts everything readable from a channel (typically a {@link java.nio.channels.FileChannel})
+   * and writes it to another channel using a symmetric key version, with buffers of
+   * {@link #DEFAULT_CHANNEL_BUFFER_SIZE} bytes.
+   *
+   * @param keyVersion The symmetric key version to use to encrypt the data
+   * @param in The channel to read the data to encrypt from, until end-of-stream
+   * @param out The channel to write the encrypted data to
+   * @return The number of bytes written to {@code out}
+   * @throws EncryptionException
+   */
+  public static long encryptChannel(SymmetricKeyVersion keyVersion, ReadableByteChannel in,
+      WritableByteChannel out) throws EncryptionException {
+    return encryptChannel(keyVersion, in, out, DEFAULT_CHANNEL_BUFFER_SIZE);
+  }
+
+  /**
+   * Encrypts everything readable from a channel (typically a {@link java.nio.channels.FileChannel})
+   * and writes it to another channel using a symmetric key version.
+   *
+   * <p>Data is read into a direct buffer of the given size and handed to the cipher without being
+   * copied to the heap. Buffers up to about {@link #DEFAULT_CHANNEL_BUFFER_SIZE} bytes are retained
+   * by the calling thread and reused by later calls; larger ones are released after the call.
+   * Neither channel is closed.
+   *
+   * @param keyVersion The symmetric key version to use to encrypt the data
+   * @param in The channel to read the data to encrypt from, until end-of-stream
+   * @param out The channel to write the encrypted data to
+   * @param bufferSize Size in bytes of the buffer used to read from {@code in}
+   * @return The number of bytes written to {@code out}
+   * @throws EncryptionException
+   */
+  public static long encryptChannel(SymmetricKeyVersion keyVersion, ReadableByteChannel in,
+      WritableByteChannel out, int bufferSize) throws EncryptionException {
+    // use try catch block to abstract from individual exceptions using EncryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireEncryptingCipher();
+      byte[] nonce = initEncryption(keyVersion, cipher);
+      long written = 0;
+      if (nonce != null) {
+        // write the nonce in front of the encrypted data
+        ByteBuffer nonceBuffer = ByteBuffer.wrap(nonce);
+        nonceBuffer.position(nonce.length);
+        written = writeFully(out, nonceBuffer);
+      }
+      // push all the data through the cipher
+      written += transformChannel(cipher, in, out, bufferSize);
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseEncryptingCipher(cipher);
+      return written;
+      // Catch all exceptions
+    } catch (Exception e) {
+      // propagate the exception up as an EncryptionException
+      throw new EncryptionException("Encryption of channel failed", e);
+    }
+  }
+
+  /**
+   * Decrypts everything readable from a channel (typically a {@link java.nio.channels.FileChannel})
+   * and writes it to another channel using a symmetric key version, with buffers of
+   * {@link #DEFAULT_CHANNEL_BUFFER_SIZE} bytes.
+   *
+   * @param keyVersion The symmetric key version to use to decrypt the data
+   * @param in The channel to read the encrypted data from, until end-of-stream
+   * @param out The channel to write the decrypted data to
+   * @return The number of bytes written to {@code out}
+   * @throws DecryptionException
+   */
+  public static long decryptChannel(SymmetricKeyVersion keyVersion, ReadableByteChannel in,
+      WritableByteChannel out) throws DecryptionException {
+    return decryptChannel(keyVersion, in, out, DEFAULT_CHANNEL_BUFFER_SIZE);
+  }
+
+  /**
+   * Decrypts everything readable from a channel (typically a {@link java.nio.channels.FileChannel})
+   * and writes it to another channel using a symmetric key version.
+   *
+   * <p>Buffers are handled as in
+   * {@link #encryptChannel(SymmetricKeyVersion, ReadableByteChannel, WritableByteChannel, int)}.
+   *
+   * @param keyVersion The symmetric key version to use to decrypt the data
+   * @param in The channel to read the encrypted data from, until end-of-stream
+   * @param out The channel to write the decrypted data to
+   * @param bufferSize Size in bytes of the buffer used to read from {@code in}
+   * @return The number of bytes written to {@code out}
+   * @throws DecryptionException
+   */
+  public static long decryptChannel(SymmetricKeyVersion keyVersion, ReadableByteChannel in,
+      WritableByteChannel out, int bufferSize) throws DecryptionException {
+    // use try catch block to abstract from individual exceptions using DecryptionException
+    try {
+      // borrow a cipher from the key version so that other threads are not affected
+      Cipher cipher = keyVersion.acquireDecryptingCipher();
+      int nonceLength = keyVersion.getNonceLength();
+      if (nonceLength > 0) {
+        // read the nonce in front of the encrypted data
+        ByteBuffer nonce = ByteBuffer.allocate(nonceLength);
+        while (nonce.hasRemaining()) {
+          if (in.read(nonce) < 0) {
+            throw new EOFException("Ciphertext is shorter than the nonce");
+          }
+        }
+        keyVersion.initCipher(cipher, Cipher.DECRYPT_MODE, nonce.array());
+      }
+      // push all the data through the cipher
+      long written = transformChannel(cipher, in, out, bufferSize);
+      // the cipher is reset by doFinal and can be reused
+      keyVersion.releaseDecryptingCipher(cipher);
+      return written;
+    } catch (Exception e) {
+      // propagate the exception up as an DecryptionException
+      throw new DecryptionException("Decryption of channel failed", e);
+    }
+  }
+
+  /**
+   * Initializes a pooled encrypting cipher with a fresh nonce, if the key version uses nonces.
+   *
+   * @return The nonce to write in front of the ciphertext, or null if the key version does not
+   *         use nonces
+   */
+  private static byte[] initEncryption(SymmetricKeyVersion keyVersion, Cipher cipher)
+      throws GeneralSecurityException {
+    if (keyVersion.getNonceLength() == 0) {
+      return null;
+    }
+    byte[] nonce = keyVersion.newNonce();
+    keyVersion.initCipher(cipher, Cipher.ENCRYPT_MODE, nonce);
+    return nonce;
+  }
+
+  /**
+   * Initializes a pooled decrypting cipher with the nonce at the start of a ciphertext, if the key
+   * version uses nonces.
+   *
+   * @return The length of the nonce, which the ciphertext proper follows
+   */
+  private static int initDecryption(SymmetricKeyVersion keyVersion, Cipher cipher, byte[] input,
+      int offset, int length) throws GeneralSecurityException {
+    int nonceLength = keyVersion.getNonceLength();
+    if (nonceLength > 0) {
+      if (length < nonceLength) {
+        throw new IllegalBlockSizeException("Ciphertext is shorter than the nonce");
+      }
+      keyVersion.initCipher(cipher, Cipher.DECRYPT_MODE,
+          Arrays.copyOfRange(input, offset, offset + nonceLength));
+    }
+    return nonceLength;
+  }
+
+  /**
+   * Pushes part of a byte array through a cipher in chunks of at most {@link #IN_PLACE_CHUNK_SIZE}
+   * bytes, writing the result back into the same array, and finishes with {@code doFinal}. JCE
+   * copies input that overlaps the output before transforming it, so handing it the whole range at
+   * once would allocate a second buffer the size of the data. Instead, every chunk is copied into
+   * a small scratch array of the calling thread first.
+   *
+   * <p>The output must not start after the input, so that it never overwrites data that has not
+   * been read yet.
+   *
+   * @return The number of bytes written from {@code outputOffset}
+   */
+  private static int transformInPlace(Cipher cipher, byte[] buffer, int inputOffset, int length,
+      int outputOffset) throws GeneralSecurityException {
+    int chunkSize = Math.min(length, IN_PLACE_CHUNK_SIZE);
+    byte[] chunk = inPlaceChunks.get();
+    if (chunk == null || chunk.length < chunkSize) {
+      chunk = new byte[chunkSize];
+      inPlaceChunks.set(chunk);
+    }
+    int in = inputOffset;
+    int out = outputOffset;
+    int end = inputOffset + length;
+    while (end - in > chunkSize) {
+      System.arraycopy(buffer, in, chunk, 0, chunkSize);
+      out += cipher.update(chunk, 0, chunkSize, buffer, out);
+      in += chunkSize;
+    }
+    System.arraycopy(buffer, in, chunk, 0, end - in);
+    out += cipher.doFinal(chunk, 0, end - in, buffer, out);
+    return out - outputOffset;
+  }
+
+  /**
+   * Pushes everything readable from one channel through a cipher and writes the result to another
+   * channel, finishing with {@code doFinal}.
+   *
+   * @return The number of bytes written to {@code out}
+   */
+  private static long transformChannel(Cipher cipher, ReadableByteChannel in,
+      WritableByteChannel out, int bufferSize) throws IOException, GeneralSecurityException {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize");
+    }
+    ByteBuffer input = channelBuffer(0, bufferSize);
+    long written = 0;
+    while (in.read(input) >= 0) {
+      input.flip();
+      ByteBuffer output = channelBuffer(1, cipher.getOutputSize(input.remaining()));
+      cipher.update(input, output);
+      written += writeFully(out, output);
+      input.compact();
+    }
+    // process whatever is left in the buffer and finalize the cipher
+    input.flip();
+    ByteBuffer output = channelBuffer(1, cipher.getOutputSize(input.remaining()));
+    cipher.doFinal(input, output);
+    return written + writeFully(out, output);
+  }
+
+  /**
+   * Returns a cleared direct buffer of the calling thread with a limit of the given size, growing
+   * the retained buffer if it is too small. Buffers larger than
+   * {@link #MAX_RETAINED_CHANNEL_BUFFER_SIZE} are not retained.
+   *
+   * @param index Index of the retained buffer (0 for input, 1 for output)
+   * @param size Size of the buffer needed
+   */
+  private static ByteBuffer channelBuffer(int index, int size) {
+    ByteBuffer[] buffers = channelBuffers.get();
+    ByteBuffer buffer = buffers[index];
+    if (buffer == null || buffer.capacity() < size) {
+      buffer = ByteBuffer.allocateDirect(size);
+      if (size <= MAX_RETAINED_CHANNEL_BUFFER_SIZE) {
+        buffers[index] = buffer;
+      }
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Flips the buffer and writes all of its contents to the channel.
+   *
+   * @return The number of bytes written
+   */
+  private static int writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    return length;
+  }
 }
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.HMACKeyVersion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Mac;
+
+/**
+ * This class computes a tree-structured HMAC over a file with an HMAC key version. The file is
+ * split into fixed-size chunks whose tags are computed in parallel, and the root tag authenticates
+ * all the chunk tags:
+ * <pre>
+ *   chunk tag i = HMAC(0x00 || i (8 bytes) || chunk i)
+ *   root tag    = HMAC(0x01 || chunk size (4 bytes) || file length (8 bytes) || chunk tag 0 || ...)
+ * </pre>
+ * All integers are big-endian. The root tag takes the place of a plain HMAC over the file, but
+ * can be computed and verified on all cores. Keeping the chunk tags (see {@link Index}) also lets a
+ * reader verify a single chunk without reading the rest of the file.
+ *
+ * <p>Any {@link ExecutorService} can be used, e.g. a {@code ForkJoinPool} on platforms that have
+ * one. Each operation submits at most {@code parallelism - 1} tasks to it, whatever the file size,
+ * and the calling thread takes part in the work. The executor is not shut down by this class. This
+ * class is thread-safe.
+ */
+public class TreeHMAC extends Operation {
+
+  /**
+   * Default size in bytes of the chunks.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+  // Domain separation prefixes of chunk and root tags
+  private static final byte CHUNK_PREFIX = 0x00;
+  private static final byte ROOT_PREFIX = 0x01;
+
+  // Number of bytes each parallel task handles, made up of as many whole chunks as fit
+  private static final int BYTES_PER_TASK = 1 << 23;
+
+  // HMAC key version computing the tags
+  private final HMACKeyVersion keyVersion;
+
+  // Executor computing chunk tags
+  private final ExecutorService executor;
+
+  // Size in bytes of each chunk
+  private final int chunkSize;
+
+  // Maximum number of threads working on one operation, including the caller
+  private final int parallelism;
+
+  /**
+   * Constructs a tree HMAC operation with the default chunk size.
+   *
+   * @param keyVersion The HMAC key version computing the tags
+   * @param executor The executor to compute chunk tags on
+   */
+  public TreeHMAC(HMACKeyVersion keyVersion, ExecutorService executor) {
+    this(keyVersion, executor, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructs a tree HMAC operation.
+   *
+   * @param keyVersion The HMAC key version computing the tags
+   * @param executor The executor to compute chunk tags on
+   * @param chunkSize Size in bytes of each chunk
+   */
+  public TreeHMAC(HMACKeyVersion keyVersion, ExecutorService executor, int chunkSize) {
+    this(keyVersion, executor, chunkSize, ParallelRunner.DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Constructs a tree HMAC operation that uses at most the given number of threads.
+   *
+   * @param keyVersion The HMAC key version computing the tags
+   * @param executor The executor to compute chunk tags on
+   * @param chunkSize Size in bytes of each chunk
+   * @param parallelism Maximum number of threads working on one operation, including the caller;
+   *                    the number of available processors by default
+   */
+  public TreeHMAC(HMACKeyVersion keyVersion, ExecutorService executor, int chunkSize,
+      int parallelism) {
+    if (keyVersion == null) {
+      throw new NullPointerException("keyVersion");
+    } else if (executor == null) {
+      throw new NullPointerException("executor");
+    } else if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize");
+    } else if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism");
+    }
+    this.keyVersion = keyVersion;
+    this.executor = executor;
+    this.chunkSize = chunkSize;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Computes the tags of every chunk of a file and the root tag over them. The position of the
+   * channel is not used or modified.
+   *
+   * @param file The channel of the file on which to compute the tags
+   * @return The chunk tags and root tag
+   * @throws EncryptionException
+   */
+  public Index computeIndex(final FileChannel file) throws EncryptionException {
+    try {
+      final long length = file.size();
+      long chunkCount = (length + chunkSize - 1) / chunkSize;
+      if (chunkCount > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("File has too many chunks");
+      }
+      final byte[][] chunkTags = new byte[(int) chunkCount][];
+      long chunksPerTask = Math.max(1, BYTES_PER_TASK / chunkSize);
+      ParallelRunner.run(executor, parallelism, chunkCount, chunksPerTask,
+          new ParallelRunner.RangeTask() {
+            @Override
+            public void run(long start, long end) throws Exception {
+              Mac mac = keyVersion.newMac();
+              byte[] buffer = new byte[(int) Math.min(chunkSize, length - start * chunkSize)];
+              for (long index = start; index < end; ++index) {
+                chunkTags[(int) index] = computeChunkTag(mac, file, index, length, buffer);
+              }
+            }
+          });
+      return new Index(chunkSize, length, chunkTags, computeRootTag(chunkSize, length, chunkTags));
+    } catch (Exception e) {
+      // catch any exceptions and throw custom exception
+      throw new EncryptionException("Failed to compute tree HMAC", e);
+    }
+  }
+
+  /**
+   * Computes the root tag of a file.
+   *
+   * @param file The channel of the file on which to compute the tag
+   * @return The root tag
+   * @throws EncryptionException
+   */
+  public byte[] getTreeHMAC(FileChannel file) throws EncryptionException {
+    return computeIndex(file).getRootTag();
+  }
+
+  /**
+   * Verifies the root tag of a whole file.
+   *
+   * @param file The channel of the file to verify
+   * @param rootTag The expected root tag
+   * @return True if and only if the file matches the root tag
+   * @throws EncryptionException
+   */
+  public boolean verifyTreeHMAC(FileChannel file, byte[] rootTag) throws EncryptionException {
+    return MessageDigest.isEqual(rootTag, getTreeHMAC(file));
+  }
+
+  /**
+   * Verifies that an index, for example one loaded from storage, matches a root tag. Only the chunk
+   * tags are processed, not the file itself.
+   *
+   * @param index The index to verify
+   * @param rootTag The expected root tag
+   * @return True if and only if the index matches the root tag
+   * @throws EncryptionException
+   */
+  public boolean verifyIndex(Index index, byte[] rootTag) throws EncryptionException {
+    try {
+      byte[] computed = computeRootTag(index.chunkSize, index.length, index.chunkTags);
+      return MessageDigest.isEqual(rootTag, computed);
+    } catch (Exception e) {
+      // catch any exceptions and throw custom exception
+      throw new EncryptionException("Failed to verify tree HMAC index", e);
+    }
+  }
+
+  /**
+   * Verifies an index, for example one loaded from storage, against a root tag once, so that any
+   * number of chunks can then be verified with {@link #verifyChunk(FileChannel, long, Index)}
+   * without processing all the chunk tags again.
+   *
+   * @param index The index to verify
+   * @param rootTag The expected root tag
+   * @return A verified copy of the index, or null if the index does not match the root tag
+   * @throws EncryptionException
+   */
+  public Index verifiedIndex(Index index, byte[] rootTag) throws EncryptionException {
+    if (!verifyIndex(index, rootTag)) {
+      return null;
+    }
+    return new Index(index.chunkSize, index.length, index.chunkTags, rootTag.clone());
+  }
+
+  /**
+   * Verifies a single chunk of a file, reading only that chunk. The index is first checked against
+   * the root tag, and the chunk is then checked against its tag in the index. Every call processes
+   * all the chunk tags of the index; to verify many chunks, verify the index once with
+   * {@link #verifiedIndex(Index, byte[])} and use {@link #verifyChunk(FileChannel, long, Index)}.
+   *
+   * @param file The channel of the file holding the chunk
+   * @param chunkIndex The index of the chunk to verify, from 0
+   * @param index The chunk tags of the file
+   * @param rootTag The expected root tag
+   * @return True if and only if the index matches the root tag and the chunk matches its tag
+   * @throws EncryptionException
+   */
+  public boolean verifyChunk(FileChannel file, long chunkIndex, Index index, byte[] rootTag)
+      throws EncryptionException {
+    checkChunk(chunkIndex, index);
+    if (!verifyIndex(index, rootTag)) {
+      return false;
+    }
+    return verifyChunkTag(file, chunkIndex, index);
+  }
+
+  /**
+   * Verifies a single chunk of a file against its tag in a verified index, reading only that chunk
+   * and without processing the other chunk tags.
+   *
+   * @param file The channel of the file holding the chunk
+   * @param chunkIndex The index of the chunk to verify, from 0
+   * @param index An index computed by {@link #computeIndex(FileChannel)} or returned by
+   *     {@link #verifiedIndex(Index, byte[])}
+   * @return True if and only if the chunk matches its tag
+   * @throws IllegalArgumentException if the index has not been verified
+   * @throws EncryptionException
+   */
+  public boolean verifyChunk(FileChannel file, long chunkIndex, Index index)
+      throws EncryptionException {
+    checkChunk(chunkIndex, index);
+    if (!index.isVerified()) {
+      throw new IllegalArgumentException("Index has not been verified");
+    }
+    return verifyChunkTag(file, chunkIndex, index);
+  }
+
+  /**
+   * Checks that a chunk can be verified with an index.
+   */
+  private void checkChunk(long chunkIndex, Index index) {
+    if (index.chunkSize != chunkSize) {
+      throw new IllegalArgumentException("Index has a different chunk size");
+    } else if (chunkIndex < 0 || chunkIndex >= index.getChunkCount()) {
+      throw new IndexOutOfBoundsException("Chunk " + chunkIndex);
+    }
+  }
+
+  /**
+   * Checks a single chunk against its tag in the index.
+   */
+  private boolean verifyChunkTag(FileChannel file, long chunkIndex, Index index)
+      throws EncryptionException {
+    try {
+      long offset = chunkIndex * chunkSize;
+      byte[] buffer = new byte[(int) Math.min(chunkSize, index.length - offset)];
+      byte[] computed =
+          computeChunkTag(keyVersion.newMac(), file, chunkIndex, index.length, buffer);
+      return MessageDigest.isEqual(index.chunkTags[(int) chunkIndex], computed);
+    } catch (Exception e) {
+      // catch any exceptions and throw custom exception
+      throw new EncryptionException("Failed to verify tree HMAC chunk", e);
+    }
+  }
+
+  /**
+   * Computes the tag of a single chunk, reading it into the given buffer.
+   */
+  private byte[] computeChunkTag(Mac mac, FileChannel file, long index, long length,
+      byte[] buffer) throws IOException {
+    long offset = index * chunkSize;
+    int chunkLength = (int) Math.min(chunkSize, length - offset);
+    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, chunkLength);
+    while (chunk.hasRemaining()) {
+      if (file.read(chunk, offset + chunk.position()) < 0) {
+        throw new EOFException("File was truncated");
+      }
+    }
+    mac.update(CHUNK_PREFIX);
+    mac.update(ByteBuffer.allocate(8).putLong(0, index).array());
+    mac.update(buffer, 0, chunkLength);
+    return mac.doFinal();
+  }
+
+  /**
+   * Computes the root tag over the chunk tags.
+   */
+  private byte[] computeRootTag(int chunkSize, long length, byte[][] chunkTags)
+      throws EncryptionException {
+    Mac mac = keyVersion.newMac();
+    mac.update(ROOT_PREFIX);
+    mac.update(ByteBuffer.allocate(12).putInt(0, chunkSize).putLong(4, length).array());
+    for (byte[] chunkTag : chunkTags) {
+      mac.update(chunkTag);
+    }
+    return mac.doFinal();
+  }
+
+  /**
+   * The chunk tags and root tag of a file. The chunk tags can be stored alongside the file with
+   * {@link #toByteArray()}, and loaded back with {@link #fromByteArray(byte[])}. The root tag is not
+   * part of the stored form, since it must come from a trusted source to authenticate the index.
+   */
+  public static final class Index {
+
+    private final int chunkSize;
+
+    private final long length;
+
+    private final byte[][] chunkTags;
+
+    private final byte[] rootTag;
+
+    private Index(int chunkSize, long length, byte[][] chunkTags, byte[] rootTag) {
+      this.chunkSize = chunkSize;
+      this.length = length;
+      this.chunkTags = chunkTags;
+      this.rootTag = rootTag;
+    }
+
+    /**
+     * Returns the size in bytes of the chunks.
+     */
+    public int getChunkSize() {
+      return chunkSize;
+    }
+
+    /**
+     * Returns the length in bytes of the file.
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * Returns the number of chunks in the file.
+     */
+    public int getChunkCount() {
+      return chunkTags.length;
+    }
+
+    /**
+     * Returns a copy of the tag of the given chunk.
+     */
+    public byte[] getChunkTag(int chunkIndex) {
+      return chunkTags[chunkIndex].clone();
+    }
+
+    /**
+     * Returns a copy of the root tag, or null if the index was loaded from a byte array and has not
+     * been verified.
+     */
+    public byte[] getRootTag() {
+      return rootTag == null ? null : rootTag.clone();
+    }
+
+    /**
+     * Returns true if the index was computed from the file or verified against a root tag, and
+     * false if it was loaded from a byte array and has not been verified.
+     */
+    public boolean isVerified() {
+      return rootTag != null;
+    }
+
+    /**
+     * Returns the stored form of the index: chunk size (4 bytes), file length (8 bytes), tag length
+     * (4 bytes) and the chunk tags.
+     */
+    public byte[] toByteArray() {
+      int tagLength = chunkTags.length == 0 ? 0 : chunkTags[0].length;
+      ByteBuffer buffer = ByteBuffer.allocate(16 + chunkTags.length * tagLength);
+      buffer.putInt(chunkSize).putLong(length).putInt(tagLength);
+      for (byte[] chunkTag : chunkTags) {
+        buffer.put(chunkTag);
+      }
+      return buffer.array();
+    }
+
+    /**
+     * Loads an index from its stored form. The index must be checked with
+     * {@link TreeHMAC#verifiedIndex(Index, byte[])} before it is trusted.
+     *
+     * @param bytes The stored form of the index
+     * @throws IllegalArgumentException if the stored form is malformed
+     */
+    public static Index fromByteArray(byte[] bytes) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      if (buffer.remaining() < 16) {
+        throw new IllegalArgumentException("Index is truncated");
+      }
+      int chunkSize = buffer.getInt();
+      long length = buffer.getLong();
+      int tagLength = buffer.getInt();
+      if (chunkSize <= 0 || length < 0 || tagLength < 0) {
+        throw new IllegalArgumentException("Index is malformed");
+      }
+      long chunkCount = (length + chunkSize - 1) / chunkSize;
+      if (chunkCount * tagLength != buffer.remaining() || (chunkCount > 0 && tagLength == 0)) {
+        throw new IllegalArgumentException("Index is malformed");
+      }
+      byte[][] chunkTags = new byte[(int) chunkCount][];
+      for (int i = 0; i < chunkTags.length; ++i) {
+        chunkTags[i] = new byte[tagLength];
+        buffer.get(chunkTags[i]);
+      }
+      return new Index(chunkSize, length, chunkTags, null);
+    }
+  }
+}
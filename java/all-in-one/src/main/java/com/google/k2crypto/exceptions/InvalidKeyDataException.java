@@ -42,7 +42,13 @@ public class InvalidKeyDataException extends K2Exception {
     /**
      * The pointer to the primary key version is wrong.
      */
-    CORRUPTED_PRIMARY("The primary key version is corrupted.");
+    CORRUPTED_PRIMARY("The primary key version is corrupted."),
+
+    /**
+     * The same key version appears more than once in the key, or two key
+     * versions have the same short identifier.
+     */
+    DUPLICATE_KEY_VERSION("The key contains a duplicate key version.");
 
     final String message;
 
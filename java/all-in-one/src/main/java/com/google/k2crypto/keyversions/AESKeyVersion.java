@@ -20,6 +20,8 @@ import com.google.k2crypto.keyversions.AesKeyVersionProto.AesKeyVersionData;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionCore;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
 
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
@@ -43,6 +45,14 @@ public class AESKeyVersion extends SymmetricKeyVersion {
 
   private static final int BLOCK_SIZE = 16; // bytes;
 
+  // Source of per-message IVs, one per thread to avoid contention
+  private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+    @Override
+    protected SecureRandom initialValue() {
+      return new SecureRandom();
+    }
+  };
+
   /**
    * The key length in bytes (128 bits / 8 = 16 bytes) Can be 16, 24 or 32
    * (NO OTHER VALUES)
@@ -114,16 +124,6 @@ public class AESKeyVersion extends SymmetricKeyVersion {
    */
   private String algModePadding;
 
-  /**
-   * Cipher for encrypting data using this AES key version
-   */
-  private Cipher encryptingCipher;
-
-  /**
-   * Cipher for decrypting data using this AES key version
-   */
-  private Cipher decryptingCipher;
-
   /**
    * Constructor to make an AESKeyVersion using the AESKeyVersionBuilder.
    * Private to prevent use unless through the AESKeyVersionBuilder
@@ -142,7 +142,7 @@ public class AESKeyVersion extends SymmetricKeyVersion {
     // IMPORTANT! this line of code updates the algorithm/mode/padding string
     // to reflect the new mode and padding. The class will not work if you move
     // or remove this line of code
-    this.algModePadding = "AES/" + this.mode + "/" + padding + "padding";
+    this.algModePadding = "AES/" + this.mode + "/" + jcePadding(mode, padding) + "padding";
 
     // use try catch block to abstract from individual exceptions using
     // BuilderException
@@ -157,10 +157,9 @@ public class AESKeyVersion extends SymmetricKeyVersion {
         secretKey = new SecretKeySpec(builder.keyVersionMatter, 0, this.keyLengthInBytes(), "AES");
 
       } else {
-        // Generate the key using JCE crypto libraries
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(this.keyLengthInBits());
-        secretKey = keyGen.generateKey();
+        // Generate the key using JCE crypto libraries, or take one generated
+        // ahead of time if the builder has a key material pool
+        secretKey = generateSecretKey(this.keyLengthInBits(), builder.getKeyMaterialPool());
       }
 
       if (initVector == null) {
@@ -171,50 +170,10 @@ public class AESKeyVersion extends SymmetricKeyVersion {
         prng.nextBytes(initVector);
       }
 
-      // make an AES cipher that we can use for encryption
-      this.encryptingCipher = Cipher.getInstance(this.algModePadding);
-
-      // initialize the encrypting cipher
-      switch (this.mode) {
-        case ECB:
-          // Initialize the cipher using the secret key -
-          // ECB does NOT use an initialization vector
-          encryptingCipher.init(Cipher.ENCRYPT_MODE, this.secretKey);
-          break;
-        case CBC:
-        case OFB:
-        case CFB:
-        case CTR:
-          // Initialize the cipher using the secret key of this class
-          // and the initialization vector
-          encryptingCipher.init(Cipher.ENCRYPT_MODE, this.secretKey,
-              new IvParameterSpec(this.initVector));
-          break;
-        default:
-          throw new BuilderException("Unrecognized mode");
-      }
-
-      // make an AES cipher that we can use for decryption
-      this.decryptingCipher = Cipher.getInstance(this.algModePadding);
-
-      // initialize the decrypting cipher
-      switch (this.mode) {
-        case ECB:
-          // Initialize the cipher using the secret key -
-          // ECB does NOT use an initialization vector
-          decryptingCipher.init(Cipher.DECRYPT_MODE, secretKey);
-          break;
-        case CBC:
-        case OFB:
-        case CFB:
-        case CTR:
-          // Initialize the cipher using the secret key of this class
-          // and the initialization vector
-          decryptingCipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(initVector));
-          break;
-        default:
-          throw new BuilderException("Unrecognized mode");
-      }
+      // make sure the key, mode and padding are usable by creating the first
+      // encrypting and decrypting ciphers, then keep them for later use
+      releaseEncryptingCipher(newCipher(Cipher.ENCRYPT_MODE));
+      releaseDecryptingCipher(newCipher(Cipher.DECRYPT_MODE));
 
       // Catch all exceptions
     } catch (Exception e) {
@@ -223,6 +182,162 @@ public class AESKeyVersion extends SymmetricKeyVersion {
     }
   }
 
+  /**
+   * Returns the padding name passed to JCE for the given mode and padding.
+   * JCE refuses to combine CTR with any padding, so it is always used without.
+   */
+  private static String jcePadding(Mode mode, Padding padding) {
+    return isUnpaddedMode(mode) ? "No" : padding.name();
+  }
+
+  /**
+   * Returns whether the mode is used without padding, i.e. whether ciphertext
+   * and plaintext always have the same length. This is only true for CTR:
+   * OFB and CFB do not need padding either, but JCE pads them like the block
+   * modes and existing ciphertext relies on it.
+   */
+  private static boolean isUnpaddedMode(Mode mode) {
+    return mode == Mode.CTR;
+  }
+
+  /**
+   * @see SymmetricKeyVersion#getEncryptedLength(int)
+   */
+  @Override
+  public int getEncryptedLength(int plaintextLength) {
+    if (plaintextLength < 0) {
+      throw new IllegalArgumentException("plaintextLength");
+    } else if (isUnpaddedMode(mode)) {
+      return plaintextLength;
+    }
+    // PKCS5 always adds between 1 and BLOCK_SIZE bytes of padding
+    return (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+  }
+
+  /**
+   * @see SymmetricKeyVersion#getMaxDecryptedLength(int)
+   */
+  @Override
+  public int getMaxDecryptedLength(int ciphertextLength) {
+    if (ciphertextLength < 0) {
+      throw new IllegalArgumentException("ciphertextLength");
+    }
+    // The padding is only known after decryption, so JCE needs the full
+    // ciphertext length available in the output
+    return ciphertextLength;
+  }
+
+  /**
+   * @see SymmetricKeyVersion#newCipher(int)
+   */
+  @Override
+  protected Cipher newCipher(int opmode) throws GeneralSecurityException {
+    // make an AES cipher that we can use for encryption or decryption
+    Cipher cipher = Cipher.getInstance(this.algModePadding);
+
+    // initialize the cipher
+    switch (this.mode) {
+      case ECB:
+        // Initialize the cipher using the secret key -
+        // ECB does NOT use an initialization vector
+        cipher.init(opmode, this.secretKey);
+        break;
+      case CBC:
+      case OFB:
+      case CFB:
+      case CTR:
+        // Initialize the cipher using the secret key of this class
+        // and the initialization vector
+        cipher.init(opmode, this.secretKey, new IvParameterSpec(this.initVector));
+        break;
+      default:
+        throw new NoSuchAlgorithmException("Unrecognized mode");
+    }
+    return cipher;
+  }
+
+  /**
+   * Creates a cipher that uses the given IV instead of the IV of the key
+   * version. This lets a caller encrypt every message with a fresh IV (see
+   * {@link #newInitVector()}) and store it with the message, so that
+   * messages do not share a keystream and can be decrypted with the key
+   * version after it has been saved and loaded again.
+   *
+   * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @param initVector IV of {@link #getBlockSize()} bytes
+   * @return A newly initialized cipher owned by the caller
+   * @throws GeneralSecurityException if the cipher could not be created
+   * @throws UnsupportedOperationException if the mode is ECB, which has no IV
+   */
+  public Cipher newCipher(int opmode, byte[] initVector) throws GeneralSecurityException {
+    if (mode == Mode.ECB) {
+      throw new UnsupportedOperationException("ECB mode does not use an IV");
+    } else if (initVector.length != BLOCK_SIZE) {
+      throw new IllegalArgumentException("initVector");
+    }
+    Cipher cipher = Cipher.getInstance(this.algModePadding);
+    cipher.init(opmode, this.secretKey, new IvParameterSpec(initVector));
+    return cipher;
+  }
+
+  /**
+   * Generates a random IV for use with {@link #newCipher(int, byte[])}.
+   *
+   * @return A new IV of {@link #getBlockSize()} bytes
+   */
+  public static byte[] newInitVector() {
+    byte[] initVector = new byte[BLOCK_SIZE];
+    random.get().nextBytes(initVector);
+    return initVector;
+  }
+
+  /**
+   * Creates a CTR mode cipher whose counter starts the given number of blocks
+   * after the initialization vector. Output from the cipher is identical to
+   * the output of a cipher from {@link #newCipher(int)} after it has processed
+   * {@code blockIndex * BLOCK_SIZE} bytes, which lets separate ciphers work on
+   * different parts of a message independently.
+   *
+   * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @param blockIndex Index of the first block the cipher will process
+   * @return A newly initialized cipher owned by the caller
+   * @throws GeneralSecurityException if the cipher could not be created
+   * @throws UnsupportedOperationException if the mode is not CTR
+   */
+  public Cipher newCounterCipher(int opmode, long blockIndex) throws GeneralSecurityException {
+    if (mode != Mode.CTR) {
+      throw new UnsupportedOperationException("Counter ciphers require CTR mode");
+    } else if (blockIndex < 0) {
+      throw new IllegalArgumentException("blockIndex");
+    }
+    // the counter is the whole IV treated as a 128-bit big-endian integer
+    byte[] counter = this.initVector.clone();
+    int carry = 0;
+    for (int i = BLOCK_SIZE - 1; i >= 0; --i) {
+      int sum = (counter[i] & 0xFF) + (int) (blockIndex & 0xFF) + carry;
+      counter[i] = (byte) sum;
+      carry = sum >>> 8;
+      blockIndex >>>= 8;
+    }
+    Cipher cipher = Cipher.getInstance(this.algModePadding);
+    cipher.init(opmode, this.secretKey, new IvParameterSpec(counter));
+    return cipher;
+  }
+
+  /**
+   * Returns the block size of AES in bytes.
+   */
+  public static int getBlockSize() {
+    return BLOCK_SIZE;
+  }
+
+  /**
+   * Returns the encryption mode.
+   */
+  public Mode getMode() {
+    return mode;
+  }
+
   /**
    * Public method to get the byte array of the AES key version matter
    *
@@ -246,28 +361,6 @@ public class AESKeyVersion extends SymmetricKeyVersion {
     return algModePadding;
   }
 
-  /**
-   * Method to get the encrypting cipher of this key version
-   *
-   * @return The Cipher object representing the encrypting cipher
-   *         of this key version
-   */
-  @Override
-  public Cipher getEncryptingCipher() {
-    return this.encryptingCipher;
-  }
-
-  /**
-   * Method to get the decrypting cipher of this key version
-   *
-   * @return The Cipher object representing the decrypting cipher
-   *         of this key version
-   */
-  @Override
-  public Cipher getDecryptingCipher() {
-    return this.decryptingCipher;
-  }
-
   /**
    * @see KeyVersion#buildCore()
    */
@@ -301,6 +394,28 @@ public class AESKeyVersion extends SymmetricKeyVersion {
     return builder;
   }
 
+  /**
+   * Generates a new AES secret key of the given length, taking it from the
+   * key material pool if there is one
+   *
+   * @param keyLengthInBits Length of the key in bits
+   * @param pool Pool of key material, or null to generate synchronously
+   * @return A new secret key
+   * @throws GeneralSecurityException
+   */
+  private static SecretKey generateSecretKey(final int keyLengthInBits, KeyMaterialPool pool)
+      throws GeneralSecurityException {
+    KeyMaterialPool.Generator<SecretKey> generator = new KeyMaterialPool.Generator<SecretKey>() {
+      @Override
+      public SecretKey generate() throws GeneralSecurityException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(keyLengthInBits);
+        return keyGen.generateKey();
+      }
+    };
+    return pool == null ? generator.generate() : pool.take("AES/" + keyLengthInBits, generator);
+  }
+
   /**
    * This class represents a key version builder for AES key versions.
    *
@@ -407,6 +522,15 @@ public class AESKeyVersion extends SymmetricKeyVersion {
       return this;
     }
 
+    /**
+     * @see KeyVersion.Builder#keyMaterialPool(KeyMaterialPool)
+     */
+    @Override
+    public Builder keyMaterialPool(KeyMaterialPool keyMaterialPool) {
+      super.keyMaterialPool(keyMaterialPool);
+      return this;
+    }
+
     /**
      * @see KeyVersion.Builder#withData(KeyVersionData, ExtensionRegistry)
      */
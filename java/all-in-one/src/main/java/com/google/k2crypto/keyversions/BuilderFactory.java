@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+/**
+ * Creates builders for a registered key version. A registered key version calls its factory every
+ * time a key version of its type is loaded, so implementations should be cheap and thread-safe.
+ *
+ * <p>By default, builders are created through the reflected no-argument constructor of the
+ * {@link KeyVersion.Builder} class. A factory that invokes the constructor directly avoids the
+ * reflection.
+ */
+public interface BuilderFactory {
+
+  /**
+   * Returns a new builder for the key version.
+   */
+  KeyVersion.Builder newBuilder();
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.keyversions.ChaCha20KeyVersionProto.ChaCha20KeyVersionCore;
+import com.google.k2crypto.keyversions.ChaCha20KeyVersionProto.ChaCha20KeyVersionData;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionCore;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * This class represents a ChaCha20-Poly1305 (RFC 7539) key version in K2. It allows you to encrypt
+ * and decrypt messages with authentication using the ChaCha20 stream cipher and the Poly1305 MAC.
+ * ChaCha20 is designed to run fast in software, so it can be a good choice on processors without
+ * AES instructions; how fast it actually is depends on the provider, so measure it with
+ * SymmetricEncryptionBenchmark on the hosts in question.
+ *
+ * <p>Every message is encrypted under a fresh random 96-bit nonce, which is stored in front of the
+ * ciphertext, and a 128-bit tag is appended. Random nonces make it unlikely for a nonce to repeat
+ * until around 2^32 messages have been encrypted with the same key version, so key versions should
+ * be rotated well before that.
+ *
+ * <p>The cipher is provided by the JCE ({@code ChaCha20-Poly1305}, available from Java 11 or with
+ * providers such as Conscrypt). Building the key version fails if no provider has it.
+ */
+@KeyVersionInfo(type = KeyVersionProto.Type.CHACHA20, proto = ChaCha20KeyVersionProto.class)
+public class ChaCha20KeyVersion extends SymmetricKeyVersion {
+
+  /**
+   * Length of the key in bytes
+   */
+  public static final int KEY_LENGTH = 32;
+
+  /**
+   * Length of the nonce stored in front of each ciphertext in bytes
+   */
+  public static final int NONCE_LENGTH = 12;
+
+  /**
+   * Length of the authentication tag appended to each ciphertext in bytes
+   */
+  public static final int TAG_LENGTH = 16;
+
+  /**
+   * The JCE name of the cipher
+   */
+  private static final String ALGORITHM = "ChaCha20-Poly1305";
+
+  /**
+   * Random number generators for keys and nonces, one per thread so that
+   * threads encrypting at the same time do not contend on a lock
+   */
+  private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+    @Override
+    protected SecureRandom initialValue() {
+      return new SecureRandom();
+    }
+  };
+
+  /**
+   * Generator of keys for key material pools
+   */
+  private static final KeyMaterialPool.Generator<byte[]> KEY_GENERATOR =
+      new KeyMaterialPool.Generator<byte[]>() {
+        @Override
+        public byte[] generate() {
+          byte[] keyVersionMatter = new byte[KEY_LENGTH];
+          random.get().nextBytes(keyVersionMatter);
+          return keyVersionMatter;
+        }
+      };
+
+  /**
+   * SecretKey object representing the key matter
+   */
+  private final SecretKey secretKey;
+
+  /**
+   * Constructor to make a ChaCha20KeyVersion using the builder
+   *
+   * @param builder The Builder object passed in when creating the ChaCha20KeyVersion
+   * @throws BuilderException
+   */
+  private ChaCha20KeyVersion(Builder builder) throws BuilderException {
+    super(builder);
+    try {
+      byte[] keyVersionMatter = builder.keyVersionMatter;
+      if (keyVersionMatter == null) {
+        // generate a key, or take one generated ahead of time if the builder
+        // has a key material pool
+        KeyMaterialPool pool = builder.getKeyMaterialPool();
+        keyVersionMatter = pool == null ? KEY_GENERATOR.generate()
+            : pool.take("ChaCha20/256", KEY_GENERATOR);
+      }
+      secretKey = new SecretKeySpec(keyVersionMatter, "ChaCha20");
+
+      // make sure the cipher is available by creating the first encrypting
+      // and decrypting ciphers, then keep them for later use
+      releaseEncryptingCipher(newCipher(Cipher.ENCRYPT_MODE));
+      releaseDecryptingCipher(newCipher(Cipher.DECRYPT_MODE));
+    } catch (Exception e) {
+      // Propagate the exception up using BuilderException
+      throw new BuilderException("Building ChaCha20KeyVersion failed", e);
+    }
+  }
+
+  /**
+   * @see SymmetricKeyVersion#getNonceLength()
+   */
+  @Override
+  public int getNonceLength() {
+    return NONCE_LENGTH;
+  }
+
+  /**
+   * @see SymmetricKeyVersion#newNonce()
+   */
+  @Override
+  public byte[] newNonce() {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.get().nextBytes(nonce);
+    return nonce;
+  }
+
+  /**
+   * @see SymmetricKeyVersion#initCipher(Cipher, int, byte[])
+   */
+  @Override
+  public void initCipher(Cipher cipher, int opmode, byte[] nonce)
+      throws GeneralSecurityException {
+    if (nonce.length != NONCE_LENGTH) {
+      throw new IllegalArgumentException("nonce");
+    }
+    if (opmode == Cipher.DECRYPT_MODE && Arrays.equals(nonce, cipher.getIV())) {
+      // JCE refuses to initialize a cipher again with the same key and nonce,
+      // even for decryption, but decrypting the same message twice is fine; go
+      // through another nonce first (reuse is still refused for encryption)
+      cipher.init(opmode, secretKey, new IvParameterSpec(newNonce()));
+    }
+    cipher.init(opmode, secretKey, new IvParameterSpec(nonce));
+  }
+
+  /**
+   * @see SymmetricKeyVersion#getEncryptedLength(int)
+   */
+  @Override
+  public int getEncryptedLength(int plaintextLength) {
+    if (plaintextLength < 0) {
+      throw new IllegalArgumentException("plaintextLength");
+    }
+    return NONCE_LENGTH + plaintextLength + TAG_LENGTH;
+  }
+
+  /**
+   * @see SymmetricKeyVersion#getMaxDecryptedLength(int)
+   */
+  @Override
+  public int getMaxDecryptedLength(int ciphertextLength) {
+    if (ciphertextLength < 0) {
+      throw new IllegalArgumentException("ciphertextLength");
+    }
+    return Math.max(0, ciphertextLength - NONCE_LENGTH - TAG_LENGTH);
+  }
+
+  /**
+   * Creates a new Cipher initialized with a random nonce. Ciphers must be
+   * initialized again with {@link #initCipher(Cipher, int, byte[])} for every
+   * message, since a nonce must never be used twice with the same key.
+   *
+   * @see SymmetricKeyVersion#newCipher(int)
+   */
+  @Override
+  protected Cipher newCipher(int opmode) throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance(ALGORITHM);
+    initCipher(cipher, opmode, newNonce());
+    return cipher;
+  }
+
+  /**
+   * Public method to get the byte array of the ChaCha20 key version matter
+   *
+   * @return The byte array representation of the ChaCha20 key version matter
+   */
+  public byte[] getKeyVersionMatter() {
+    return this.secretKey.getEncoded();
+  }
+
+  /**
+   * @see KeyVersion#buildCore()
+   */
+  @Override
+  protected KeyVersionCore.Builder buildCore() {
+    ChaCha20KeyVersionCore.Builder coreBuilder = ChaCha20KeyVersionCore.newBuilder();
+
+    // Populate the core builder
+    coreBuilder.setMatter(ByteString.copyFrom(secretKey.getEncoded()));
+
+    KeyVersionCore.Builder builder = super.buildCore();
+    builder.setExtension(ChaCha20KeyVersionCore.extension, coreBuilder.build());
+    return builder;
+  }
+
+  /**
+   * @see KeyVersion#buildData()
+   */
+  @Override
+  public KeyVersionData.Builder buildData() {
+    ChaCha20KeyVersionData.Builder dataBuilder = ChaCha20KeyVersionData.newBuilder();
+
+    KeyVersionData.Builder builder = super.buildData();
+    builder.setExtension(ChaCha20KeyVersionData.extension, dataBuilder.build());
+    return builder;
+  }
+
+  /**
+   * This class represents a key version builder for ChaCha20 key versions.
+   */
+  public static class Builder extends KeyVersion.Builder {
+
+    /**
+     * Byte array that will represent the key matter
+     */
+    private byte[] keyVersionMatter;
+
+    /**
+     * @param keyVersionMatter Byte array representing the 32-byte key matter
+     * @return This object with key matter set
+     */
+    public Builder matterVector(byte[] keyVersionMatter) {
+      if (keyVersionMatter == null) {
+        throw new NullPointerException("keyVersionMatter");
+      } else if (keyVersionMatter.length != KEY_LENGTH) {
+        throw new IllegalArgumentException("keyVersionMatter");
+      }
+      this.keyVersionMatter = keyVersionMatter.clone();
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#keyMaterialPool(KeyMaterialPool)
+     */
+    @Override
+    public Builder keyMaterialPool(KeyMaterialPool keyMaterialPool) {
+      super.keyMaterialPool(keyMaterialPool);
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#withData(KeyVersionData, ExtensionRegistry)
+     */
+    @Override
+    public Builder withData(KeyVersionData kvData, ExtensionRegistry registry)
+        throws InvalidProtocolBufferException {
+      super.withData(kvData, registry);
+
+      @SuppressWarnings("unused")
+      ChaCha20KeyVersionData data = kvData.getExtension(ChaCha20KeyVersionData.extension);
+      // No data fields are currently used
+
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#withCore(KeyVersionCore)
+     */
+    @Override
+    protected Builder withCore(KeyVersionCore kvCore) throws InvalidProtocolBufferException {
+      super.withCore(kvCore);
+
+      // Extract info from core
+      ChaCha20KeyVersionCore core = kvCore.getExtension(ChaCha20KeyVersionCore.extension);
+      if (!core.hasMatter()) {
+        throw new InvalidProtocolBufferException("No key matter.");
+      }
+      this.matterVector(core.getMatter().toByteArray());
+
+      return this;
+    }
+
+    /**
+     * Method to build a new ChaCha20KeyVersion
+     *
+     * @return A ChaCha20KeyVersion with the parameters set from the builder
+     * @throws BuilderException
+     */
+    @Override
+    public ChaCha20KeyVersion build() throws BuilderException {
+      return new ChaCha20KeyVersion(this);
+    }
+  }
+}
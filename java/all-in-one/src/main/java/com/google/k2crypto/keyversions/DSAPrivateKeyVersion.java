@@ -39,6 +39,40 @@ public class DSAPrivateKeyVersion extends PrivateKeyVersion {
    */
   private KeyPair keyPair;
 
+  /**
+   * Pool of Signatures initialized for signing with the private key, so that
+   * signing does not have to look up the algorithm on every call
+   */
+  private final EnginePool<Signature> signers = new EnginePool<Signature>() {
+    @Override
+    protected Signature newEngine() throws GeneralSecurityException {
+      Signature signer = Signature.getInstance(DSAPublicKeyVersion.SIGNATURE_ALGORITHM);
+      signer.initSign(getPrivate());
+      return signer;
+    }
+  };
+
+  /**
+   * The public counterpart of this key version, created on first use
+   */
+  private volatile DSAPublicKeyVersion publicKeyVersion;
+
+  /**
+   * Kind of the key pairs in key material pools
+   */
+  private static final String KEY_PAIR_KIND = "DSA/1024";
+
+  /**
+   * Generator of key pairs for key material pools
+   */
+  private static final KeyMaterialPool.Generator<KeyPair> KEY_PAIR_GENERATOR =
+      new KeyMaterialPool.Generator<KeyPair>() {
+        @Override
+        public KeyPair generate() throws GeneralSecurityException {
+          return newKeyPair();
+        }
+      };
+
 
   /**
    * Constructor to make a DSAPrivateKeyVersion
@@ -48,7 +82,17 @@ public class DSAPrivateKeyVersion extends PrivateKeyVersion {
    */
   protected DSAPrivateKeyVersion(Builder builder) throws BuilderException {
     super(builder);
-    this.keyPair = this.generateKeyPair();
+    KeyMaterialPool pool = builder.getKeyMaterialPool();
+    if (pool == null) {
+      this.keyPair = this.generateKeyPair();
+    } else {
+      try {
+        // take a key pair generated ahead of time, if one is ready
+        this.keyPair = pool.take(KEY_PAIR_KIND, KEY_PAIR_GENERATOR);
+      } catch (GeneralSecurityException e) {
+        throw new BuilderException("Failed to build DSA key pair", e);
+      }
+    }
   }
 
   /**
@@ -60,22 +104,33 @@ public class DSAPrivateKeyVersion extends PrivateKeyVersion {
    */
   public byte[] signData(byte[] inputData) throws EncryptionException {
     try {
-      PrivateKey privateKey = this.getPrivate();
-
-      // Get a DSA signer using SHA1 as the hash function
-      Signature signer = Signature.getInstance("SHA1withDSA");
-      // initialize the signer using the private key
-      signer.initSign(privateKey);
+      // borrow a signer initialized with the private key so that other
+      // threads are not affected
+      Signature signer = signers.acquire();
       // add the input data to the signer
       signer.update(inputData);
-      // sign the input data using the private key and return it
-      return (signer.sign());
+      // sign the input data using the private key
+      byte[] signature = signer.sign();
+      // sign resets the signer so it can be reused
+      signers.release(signer);
+      return signature;
     } catch (GeneralSecurityException e) {
       // catch any exceptions and throw a K2 exception
       throw new EncryptionException("DSA signing failed", e);
     }
   }
 
+  /**
+   * Creates a signer for data that is too large to hold in memory, which is
+   * supplied incrementally from arrays, buffers, streams or files.
+   *
+   * @return A new signer for the exclusive use of the caller
+   * @throws EncryptionException
+   */
+  public StreamingSigner newSigner() throws EncryptionException {
+    return new StreamingSigner(signers);
+  }
+
   /**
    * Method to get the private key part of this DSA key version
    *
@@ -92,7 +147,15 @@ public class DSAPrivateKeyVersion extends PrivateKeyVersion {
    * @throws BuilderException
    */
   public DSAPublicKeyVersion getPublic() throws BuilderException {
-    return new DSAPublicKeyVersion.Builder().setPublic(this.keyPair.getPublic()).build();
+    DSAPublicKeyVersion publicKeyVersion = this.publicKeyVersion;
+    if (publicKeyVersion == null) {
+      // racing threads may each build one, but they are equivalent and only
+      // one is kept
+      publicKeyVersion =
+          new DSAPublicKeyVersion.Builder().setPublic(this.keyPair.getPublic()).build();
+      this.publicKeyVersion = publicKeyVersion;
+    }
+    return publicKeyVersion;
   }
 
 
@@ -106,21 +169,31 @@ public class DSAPrivateKeyVersion extends PrivateKeyVersion {
   public KeyPair generateKeyPair() throws BuilderException {
 
     try {
-      // get a DSA key pair generator
-      KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance("DSA");
-      // get a secure random number generator (note this is slow because it's secure)
-      SecureRandom rng = SecureRandom.getInstance("SHA1PRNG", "SUN");
-      // initialize the key generator using the secure random number generator
-      keyGenerator.initialize(1024, rng);
-      // use the key generator to generate a key pair and return it
-      return (keyGenerator.generateKeyPair());
-
+      return newKeyPair();
     } catch (GeneralSecurityException e) {
       // catch and propagate any exceptions
       throw new BuilderException("Failed to build DSA key pair", e);
     }
   }
 
+  /**
+   * Generates a DSA key pair, as used by both generateKeyPair and key
+   * material pools
+   *
+   * @return A fresh securely generated DSA KeyPair
+   * @throws GeneralSecurityException
+   */
+  private static KeyPair newKeyPair() throws GeneralSecurityException {
+    // get a DSA key pair generator
+    KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance("DSA");
+    // get a secure random number generator (note this is slow because it's secure)
+    SecureRandom rng = SecureRandom.getInstance("SHA1PRNG", "SUN");
+    // initialize the key generator using the secure random number generator
+    keyGenerator.initialize(1024, rng);
+    // use the key generator to generate a key pair and return it
+    return (keyGenerator.generateKeyPair());
+  }
+
   /**
    * This class represents a key version builder for DSA key versions.
    *
@@ -128,6 +201,15 @@ public class DSAPrivateKeyVersion extends PrivateKeyVersion {
    */
   public static class Builder extends KeyVersion.Builder {
 
+    /**
+     * @see KeyVersion.Builder#keyMaterialPool(KeyMaterialPool)
+     */
+    @Override
+    public Builder keyMaterialPool(KeyMaterialPool keyMaterialPool) {
+      super.keyMaterialPool(keyMaterialPool);
+      return this;
+    }
+
     /**
      * Method to build a new DSAPrivateKeyVersion
      *
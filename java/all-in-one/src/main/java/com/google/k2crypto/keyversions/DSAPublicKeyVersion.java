@@ -35,6 +35,24 @@ public class DSAPublicKeyVersion extends PublicKeyVersion {
    */
   private PublicKey publicKeyPart;
 
+  /**
+   * The JCE signature algorithm used by DSA key versions
+   */
+  static final String SIGNATURE_ALGORITHM = "SHA1withDSA";
+
+  /**
+   * Pool of Signatures initialized for verification with the public key, so
+   * that verification does not have to look up the algorithm on every call
+   */
+  private final EnginePool<Signature> verifiers = new EnginePool<Signature>() {
+    @Override
+    protected Signature newEngine() throws GeneralSecurityException {
+      Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+      verifier.initVerify(publicKeyPart);
+      return verifier;
+    }
+  };
+
   /**
    * Constructor for DSAPublicKeyVersion to build a DSAPublicKeyVersion using the Builder parameter
    *
@@ -66,15 +84,16 @@ public class DSAPublicKeyVersion extends PublicKeyVersion {
    */
   public boolean verifySig(byte[] data, byte[] sig) throws EncryptionException {
     try {
-      // Get a DSA signer using SHA1 as the hash function
-
-      Signature signer = Signature.getInstance("SHA1withDSA");
-      // initialize the signer using the public key
-      signer.initVerify(this.publicKeyPart);
-      // add the input data to the signer
-      signer.update(data);
-      // verify the signature on the input data using the private key and return it
-      return (signer.verify(sig));
+      // borrow a verifier initialized with the public key so that other
+      // threads are not affected
+      Signature verifier = verifiers.acquire();
+      // add the input data to the verifier
+      verifier.update(data);
+      // verify the signature on the input data using the public key
+      boolean verified = verifier.verify(sig);
+      // verify resets the verifier so it can be reused
+      verifiers.release(verifier);
+      return verified;
     } catch (GeneralSecurityException e) {
       // catch any exceptions and throw a K2 exception
       throw new EncryptionException("DSA verification failed unexpectedly", e);
@@ -83,6 +102,17 @@ public class DSAPublicKeyVersion extends PublicKeyVersion {
   }
 
 
+  /**
+   * Creates a verifier for data that is too large to hold in memory, which is
+   * supplied incrementally from arrays, buffers, streams or files.
+   *
+   * @return A new verifier for the exclusive use of the caller
+   * @throws EncryptionException
+   */
+  public StreamingVerifier newVerifier() throws EncryptionException {
+    return new StreamingVerifier(verifiers);
+  }
+
   /**
    * Builder class used to build DSAPublicKeyVersion objects. Follows the builder design pattern.
    *
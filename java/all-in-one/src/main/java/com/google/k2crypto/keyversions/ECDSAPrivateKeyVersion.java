@@ -0,0 +1,470 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.EcdsaKeyVersionProto.EcdsaKeyVersionCore;
+import com.google.k2crypto.keyversions.EcdsaKeyVersionProto.EcdsaKeyVersionData;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionCore;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Class representing an ECDSA private key version in K2. It allows you to digitally sign data
+ * using the ECDSA digital signature algorithm over the NIST P-256 or P-384 curves, which give
+ * 128-bit and 192-bit security levels, compared to 80 bits for 1024-bit DSA. Key pairs are
+ * generated with the default SecureRandom and do not need domain parameters. How fast signing
+ * and verification are depends on the provider; see {@code SignatureBenchmark}.
+ */
+@KeyVersionInfo(type = KeyVersionProto.Type.ECDSA, proto = EcdsaKeyVersionProto.class)
+public class ECDSAPrivateKeyVersion extends PrivateKeyVersion {
+
+  /**
+   * Enum representing all supported curves, with the hash function used for signing on each
+   */
+  public enum Curve {
+    P256("secp256r1", "SHA256withECDSA", EcdsaKeyVersionProto.Curve.NIST_P256),
+    P384("secp384r1", "SHA384withECDSA", EcdsaKeyVersionProto.Curve.NIST_P384);
+
+    // JCE name of the curve
+    private final String curveName;
+
+    // JCE signature algorithm used with the curve
+    private final String signatureAlgorithm;
+
+    // Protobuf value of the curve
+    private final EcdsaKeyVersionProto.Curve proto;
+
+    private Curve(String curveName, String signatureAlgorithm, EcdsaKeyVersionProto.Curve proto) {
+      this.curveName = curveName;
+      this.signatureAlgorithm = signatureAlgorithm;
+      this.proto = proto;
+    }
+
+    /**
+     * Returns the JCE signature algorithm used with the curve.
+     */
+    public String getSignatureAlgorithm() {
+      return signatureAlgorithm;
+    }
+
+    /**
+     * Returns the protobuf value of the curve.
+     */
+    EcdsaKeyVersionProto.Curve toProto() {
+      return proto;
+    }
+
+    /**
+     * Checks that a key lies on this curve. For a public key, this also checks that its point
+     * satisfies the curve equation, since decoding a key does not.
+     *
+     * @param key An EC public or private key
+     * @throws InvalidKeyException if the key is not on the curve
+     * @throws GeneralSecurityException if the curve parameters are not available
+     */
+    void checkKey(Key key) throws GeneralSecurityException {
+      AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+      parameters.init(new ECGenParameterSpec(curveName));
+      ECParameterSpec spec = parameters.getParameterSpec(ECParameterSpec.class);
+      if (!(key instanceof ECKey) || !sameParameters(spec, ((ECKey) key).getParams())) {
+        throw new InvalidKeyException("Key is not on curve " + curveName);
+      } else if (key instanceof ECPublicKey && !isOnCurve(spec, ((ECPublicKey) key).getW())) {
+        throw new InvalidKeyException("Public key point is not on curve " + curveName);
+      }
+    }
+
+    /**
+     * Returns whether two sets of domain parameters describe the same curve.
+     */
+    private static boolean sameParameters(ECParameterSpec expected, ECParameterSpec actual) {
+      return actual != null
+          && expected.getCurve().equals(actual.getCurve())
+          && expected.getGenerator().equals(actual.getGenerator())
+          && expected.getOrder().equals(actual.getOrder())
+          && expected.getCofactor() == actual.getCofactor();
+    }
+
+    /**
+     * Returns whether a point satisfies y^2 = x^3 + ax + b over the prime field of the curve.
+     */
+    private static boolean isOnCurve(ECParameterSpec spec, ECPoint point) {
+      if (ECPoint.POINT_INFINITY.equals(point)) {
+        return false;
+      }
+      EllipticCurve ellipticCurve = spec.getCurve();
+      BigInteger p = ((ECFieldFp) ellipticCurve.getField()).getP();
+      BigInteger x = point.getAffineX();
+      BigInteger y = point.getAffineY();
+      if (x.signum() < 0 || x.compareTo(p) >= 0 || y.signum() < 0 || y.compareTo(p) >= 0) {
+        return false;
+      }
+      BigInteger left = y.multiply(y).mod(p);
+      BigInteger right = x.multiply(x).add(ellipticCurve.getA()).multiply(x)
+          .add(ellipticCurve.getB()).mod(p);
+      return left.equals(right);
+    }
+
+    /**
+     * Returns the curve with the given protobuf value.
+     *
+     * @throws IllegalArgumentException if the curve is not supported
+     */
+    static Curve fromProto(EcdsaKeyVersionProto.Curve proto) {
+      for (Curve curve : values()) {
+        if (curve.proto == proto) {
+          return curve;
+        }
+      }
+      throw new IllegalArgumentException("Bad curve");
+    }
+  }
+
+  /**
+   * The curve of this key version
+   */
+  private final Curve curve;
+
+  /**
+   * The KeyPair for this ECDSA key version object
+   */
+  private final KeyPair keyPair;
+
+  /**
+   * Pool of Signatures initialized for signing with the private key, so that
+   * signing does not have to look up the algorithm on every call
+   */
+  private final EnginePool<Signature> signers = new EnginePool<Signature>() {
+    @Override
+    protected Signature newEngine() throws GeneralSecurityException {
+      Signature signer = Signature.getInstance(curve.getSignatureAlgorithm());
+      signer.initSign(getPrivate());
+      return signer;
+    }
+  };
+
+  /**
+   * The public counterpart of this key version, created on first use
+   */
+  private volatile ECDSAPublicKeyVersion publicKeyVersion;
+
+  /**
+   * Constructor to make an ECDSAPrivateKeyVersion
+   *
+   * @param builder The Builder object passed in when creating the ECDSAPrivateKeyVersion
+   * @throws BuilderException
+   */
+  protected ECDSAPrivateKeyVersion(Builder builder) throws BuilderException {
+    super(builder);
+    this.curve = builder.curve;
+    try {
+      if (builder.encodedPrivateKey != null) {
+        // load the key pair from its encodings
+        KeyFactory keyFactory = KeyFactory.getInstance("EC");
+        this.keyPair = new KeyPair(
+            keyFactory.generatePublic(new X509EncodedKeySpec(builder.encodedPublicKey)),
+            keyFactory.generatePrivate(new PKCS8EncodedKeySpec(builder.encodedPrivateKey)));
+        // loaded keys may be on another curve than the one stored with them
+        curve.checkKey(keyPair.getPrivate());
+        curve.checkKey(keyPair.getPublic());
+      } else {
+        // generate a key pair, or take one generated ahead of time if the
+        // builder has a key material pool
+        this.keyPair = generateKeyPair(curve, builder.getKeyMaterialPool());
+      }
+      // make sure the key and curve are usable by creating the first signer,
+      // then keep it for later use
+      Signature signer = signers.newEngine();
+      if (builder.encodedPrivateKey != null) {
+        checkKeyPair(signer);
+      }
+      signers.release(signer);
+    } catch (GeneralSecurityException e) {
+      // catch and propagate any exceptions
+      throw new BuilderException("Building ECDSAPrivateKeyVersion failed", e);
+    }
+  }
+
+  /**
+   * Checks that the public key of a loaded key pair belongs to its private key, by signing a
+   * message and verifying the signature with the public key.
+   *
+   * @param signer A signer initialized with the private key, which is reset on return
+   * @throws InvalidKeyException if the keys do not belong together
+   */
+  private void checkKeyPair(Signature signer) throws GeneralSecurityException {
+    byte[] message = new byte[] {'K', '2'};
+    signer.update(message);
+    byte[] signature = signer.sign();
+    Signature verifier = Signature.getInstance(curve.getSignatureAlgorithm());
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(message);
+    if (!verifier.verify(signature)) {
+      throw new InvalidKeyException("Public key does not belong to the private key");
+    }
+  }
+
+  /**
+   * Method to create an ECDSA digital signature
+   *
+   * @param inputData The input data that we want to sign
+   * @return A byte array representing the DER-encoded ECDSA digital signature
+   * @throws EncryptionException
+   */
+  public byte[] signData(byte[] inputData) throws EncryptionException {
+    try {
+      // borrow a signer initialized with the private key so that other
+      // threads are not affected
+      Signature signer = signers.acquire();
+      // add the input data to the signer
+      signer.update(inputData);
+      // sign the input data using the private key
+      byte[] signature = signer.sign();
+      // sign resets the signer so it can be reused
+      signers.release(signer);
+      return signature;
+    } catch (GeneralSecurityException e) {
+      // catch any exceptions and throw a K2 exception
+      throw new EncryptionException("ECDSA signing failed", e);
+    }
+  }
+
+  /**
+   * Creates a signer for data that is too large to hold in memory, which is
+   * supplied incrementally from arrays, buffers, streams or files.
+   *
+   * @return A new signer for the exclusive use of the caller
+   * @throws EncryptionException
+   */
+  public StreamingSigner newSigner() throws EncryptionException {
+    return new StreamingSigner(signers);
+  }
+
+  /**
+   * Returns the curve of this key version
+   */
+  public Curve getCurve() {
+    return curve;
+  }
+
+  /**
+   * Method to get the private key part of this ECDSA key version
+   *
+   * @return The PrivateKey for this ECDSA key version
+   */
+  private PrivateKey getPrivate() {
+    return this.keyPair.getPrivate();
+  }
+
+  /**
+   * Method to get the ECDSAPublicKeyVersion corresponding to this ECDSAPrivateKeyVersion
+   *
+   * @return The ECDSAPublicKeyVersion corresponding to this ECDSAPrivateKeyVersion
+   * @throws BuilderException
+   */
+  public ECDSAPublicKeyVersion getPublic() throws BuilderException {
+    ECDSAPublicKeyVersion publicKeyVersion = this.publicKeyVersion;
+    if (publicKeyVersion == null) {
+      // racing threads may each build one, but they are equivalent and only
+      // one is kept
+      publicKeyVersion = new ECDSAPublicKeyVersion.Builder()
+          .curve(curve).setPublic(this.keyPair.getPublic()).build();
+      this.publicKeyVersion = publicKeyVersion;
+    }
+    return publicKeyVersion;
+  }
+
+  /**
+   * Generates an ECDSA key pair on the given curve, taking it from the key
+   * material pool if there is one
+   *
+   * @param curve The curve of the key pair
+   * @param pool Pool of key material, or null to generate synchronously
+   * @return A fresh securely generated ECDSA KeyPair
+   * @throws GeneralSecurityException
+   */
+  private static KeyPair generateKeyPair(final Curve curve, KeyMaterialPool pool)
+      throws GeneralSecurityException {
+    KeyMaterialPool.Generator<KeyPair> generator = new KeyMaterialPool.Generator<KeyPair>() {
+      @Override
+      public KeyPair generate() throws GeneralSecurityException {
+        KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance("EC");
+        // the default SecureRandom is used, which does not block
+        keyGenerator.initialize(new ECGenParameterSpec(curve.curveName));
+        return keyGenerator.generateKeyPair();
+      }
+    };
+    return pool == null ? generator.generate() : pool.take("EC/" + curve.curveName, generator);
+  }
+
+  /**
+   * @see KeyVersion#buildCore()
+   */
+  @Override
+  protected KeyVersionCore.Builder buildCore() {
+    EcdsaKeyVersionCore.Builder coreBuilder = EcdsaKeyVersionCore.newBuilder();
+
+    // Populate the core builder
+    coreBuilder.setCurve(curve.toProto());
+    coreBuilder.setPrivateKey(ByteString.copyFrom(keyPair.getPrivate().getEncoded()));
+    coreBuilder.setPublicKey(ByteString.copyFrom(keyPair.getPublic().getEncoded()));
+
+    KeyVersionCore.Builder builder = super.buildCore();
+    builder.setExtension(EcdsaKeyVersionCore.extension, coreBuilder.build());
+    return builder;
+  }
+
+  /**
+   * @see KeyVersion#buildData()
+   */
+  @Override
+  public KeyVersionData.Builder buildData() {
+    EcdsaKeyVersionData.Builder dataBuilder = EcdsaKeyVersionData.newBuilder();
+
+    KeyVersionData.Builder builder = super.buildData();
+    builder.setExtension(EcdsaKeyVersionData.extension, dataBuilder.build());
+    return builder;
+  }
+
+  /**
+   * This class represents a key version builder for ECDSA private key versions.
+   */
+  public static class Builder extends KeyVersion.Builder {
+
+    /**
+     * The curve to use
+     */
+    private Curve curve = Curve.P256;
+
+    /**
+     * PKCS#8 encoding of the private key, if loading an existing key pair
+     */
+    private byte[] encodedPrivateKey;
+
+    /**
+     * X.509 encoding of the public key, if loading an existing key pair
+     */
+    private byte[] encodedPublicKey;
+
+    /**
+     * Set the curve.
+     *
+     * @param curve The curve to use, P256 by default
+     * @return This object with curve updated
+     */
+    public Builder curve(Curve curve) {
+      if (curve == null) {
+        throw new NullPointerException("curve");
+      }
+      this.curve = curve;
+      return this;
+    }
+
+    /**
+     * Set the encoded key pair, instead of generating a new one.
+     *
+     * @param encodedPrivateKey PKCS#8 encoding of the private key
+     * @param encodedPublicKey X.509 encoding of the public key
+     * @return This object with the key pair set
+     */
+    public Builder encodedKeyPair(byte[] encodedPrivateKey, byte[] encodedPublicKey) {
+      if (encodedPrivateKey == null) {
+        throw new NullPointerException("encodedPrivateKey");
+      } else if (encodedPublicKey == null) {
+        throw new NullPointerException("encodedPublicKey");
+      }
+      this.encodedPrivateKey = encodedPrivateKey;
+      this.encodedPublicKey = encodedPublicKey;
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#keyMaterialPool(KeyMaterialPool)
+     */
+    @Override
+    public Builder keyMaterialPool(KeyMaterialPool keyMaterialPool) {
+      super.keyMaterialPool(keyMaterialPool);
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#withData(KeyVersionData, ExtensionRegistry)
+     */
+    @Override
+    public Builder withData(KeyVersionData kvData, ExtensionRegistry registry)
+        throws InvalidProtocolBufferException {
+      super.withData(kvData, registry);
+
+      @SuppressWarnings("unused")
+      EcdsaKeyVersionData data = kvData.getExtension(EcdsaKeyVersionData.extension);
+      // No data fields are currently used
+
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#withCore(KeyVersionCore)
+     */
+    @Override
+    protected Builder withCore(KeyVersionCore kvCore) throws InvalidProtocolBufferException {
+      super.withCore(kvCore);
+
+      // Extract info from core
+      EcdsaKeyVersionCore core = kvCore.getExtension(EcdsaKeyVersionCore.extension);
+      if (!core.hasPrivateKey() || !core.hasPublicKey()) {
+        throw new InvalidProtocolBufferException("No key pair.");
+      }
+      this.curve(Curve.fromProto(core.getCurve()));
+      this.encodedKeyPair(core.getPrivateKey().toByteArray(), core.getPublicKey().toByteArray());
+
+      return this;
+    }
+
+    /**
+     * Method to build a new ECDSAPrivateKeyVersion
+     *
+     * @return An ECDSAPrivateKeyVersion with the parameters set from the builder
+     * @throws BuilderException
+     */
+    @Override
+    public ECDSAPrivateKeyVersion build() throws BuilderException {
+      return new ECDSAPrivateKeyVersion(this);
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.EncryptionException;
+import com.google.k2crypto.keyversions.ECDSAPrivateKeyVersion.Curve;
+import com.google.k2crypto.keyversions.EcdsaKeyVersionProto.EcdsaKeyVersionCore;
+import com.google.k2crypto.keyversions.EcdsaKeyVersionProto.EcdsaKeyVersionData;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionCore;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Class representing an ECDSA public key version in K2. It allows you to digitally verify data
+ * using the ECDSA digital signature algorithm. It is registered separately from
+ * {@link ECDSAPrivateKeyVersion}, so that a key holding only the public half can be saved and
+ * loaded.
+ */
+@KeyVersionInfo(type = KeyVersionProto.Type.ECDSA_PUBLIC, proto = EcdsaKeyVersionProto.class)
+public class ECDSAPublicKeyVersion extends PublicKeyVersion {
+
+  /**
+   * The curve of this key version
+   */
+  private final Curve curve;
+
+  /**
+   * The public key part for this ECDSAPublicKeyVersion
+   */
+  private final PublicKey publicKeyPart;
+
+  /**
+   * Pool of Signatures initialized for verification with the public key, so
+   * that verification does not have to look up the algorithm on every call
+   */
+  private final EnginePool<Signature> verifiers = new EnginePool<Signature>() {
+    @Override
+    protected Signature newEngine() throws GeneralSecurityException {
+      Signature verifier = Signature.getInstance(curve.getSignatureAlgorithm());
+      verifier.initVerify(publicKeyPart);
+      return verifier;
+    }
+  };
+
+  /**
+   * Constructor for ECDSAPublicKeyVersion to build an ECDSAPublicKeyVersion using the Builder
+   * parameter
+   *
+   * @param builder A Builder object with values set, used to initialize this ECDSAPublicKeyVersion
+   * @throws BuilderException
+   */
+  protected ECDSAPublicKeyVersion(Builder builder) throws BuilderException {
+    super(builder);
+
+    // check that we actually have a public key part otherwise throw an exception (cannot generate
+    // public key without corresponding private key)
+    if (builder.publicKeyPart == null && builder.encodedPublicKey == null) {
+      throw new BuilderException(
+          "Cannot initialize ECDSAPublicKeyVersion without PublicKey being set in the Builder");
+    }
+
+    this.curve = builder.curve;
+    try {
+      if (builder.publicKeyPart != null) {
+        this.publicKeyPart = builder.publicKeyPart;
+      } else {
+        // load the public key from its encoding
+        this.publicKeyPart = KeyFactory.getInstance("EC")
+            .generatePublic(new X509EncodedKeySpec(builder.encodedPublicKey));
+      }
+      // a key on another curve would verify with the wrong parameters
+      curve.checkKey(publicKeyPart);
+    } catch (GeneralSecurityException e) {
+      throw new BuilderException("Building ECDSAPublicKeyVersion failed", e);
+    }
+  }
+
+  /**
+   * Method to verify an ECDSA digital signature
+   *
+   * @param data The data that was signed
+   * @param sig The DER-encoded ECDSA digital signature itself
+   * @return True if and only if the signature can be successfully verified against the input data
+   *         using the public key. False otherwise.
+   * @throws EncryptionException
+   */
+  public boolean verifySig(byte[] data, byte[] sig) throws EncryptionException {
+    try {
+      // borrow a verifier initialized with the public key so that other
+      // threads are not affected
+      Signature verifier = verifiers.acquire();
+      // add the input data to the verifier
+      verifier.update(data);
+      // verify the signature on the input data using the public key
+      boolean verified = verifier.verify(sig);
+      // verify resets the verifier so it can be reused
+      verifiers.release(verifier);
+      return verified;
+    } catch (GeneralSecurityException e) {
+      // catch any exceptions and throw a K2 exception
+      throw new EncryptionException("ECDSA verification failed unexpectedly", e);
+    }
+  }
+
+  /**
+   * Creates a verifier for data that is too large to hold in memory, which is
+   * supplied incrementally from arrays, buffers, streams or files.
+   *
+   * @return A new verifier for the exclusive use of the caller
+   * @throws EncryptionException
+   */
+  public StreamingVerifier newVerifier() throws EncryptionException {
+    return new StreamingVerifier(verifiers);
+  }
+
+  /**
+   * Returns the curve of this key version
+   */
+  public Curve getCurve() {
+    return curve;
+  }
+
+  /**
+   * @see KeyVersion#buildCore()
+   */
+  @Override
+  protected KeyVersionCore.Builder buildCore() {
+    EcdsaKeyVersionCore.Builder coreBuilder = EcdsaKeyVersionCore.newBuilder();
+
+    // Populate the core builder, which has no private key
+    coreBuilder.setCurve(curve.toProto());
+    coreBuilder.setPublicKey(ByteString.copyFrom(publicKeyPart.getEncoded()));
+
+    KeyVersionCore.Builder builder = super.buildCore();
+    builder.setExtension(EcdsaKeyVersionCore.extension, coreBuilder.build());
+    return builder;
+  }
+
+  /**
+   * @see KeyVersion#buildData()
+   */
+  @Override
+  public KeyVersionData.Builder buildData() {
+    EcdsaKeyVersionData.Builder dataBuilder = EcdsaKeyVersionData.newBuilder();
+
+    KeyVersionData.Builder builder = super.buildData();
+    builder.setExtension(EcdsaKeyVersionData.extension, dataBuilder.build());
+    return builder;
+  }
+
+  /**
+   * Builder class used to build ECDSAPublicKeyVersion objects. Follows the builder design pattern.
+   */
+  public static class Builder extends KeyVersion.Builder {
+
+    /**
+     * The curve of the public key
+     */
+    private Curve curve = Curve.P256;
+
+    /**
+     * The public key part for this ECDSAPublicKeyVersion
+     */
+    private PublicKey publicKeyPart;
+
+    /**
+     * X.509 encoding of the public key, if loading an existing key
+     */
+    private byte[] encodedPublicKey;
+
+    /**
+     * Method to set the curve of the public key
+     *
+     * @param curve The curve, P256 by default
+     */
+    public Builder curve(Curve curve) {
+      if (curve == null) {
+        throw new NullPointerException("curve");
+      }
+      this.curve = curve;
+      return this;
+    }
+
+    /**
+     * Method to set the public key part
+     *
+     * @param publicKeyPart
+     */
+    public Builder setPublic(PublicKey publicKeyPart) {
+      this.publicKeyPart = publicKeyPart;
+      return this;
+    }
+
+    /**
+     * Set the encoded public key, instead of the public key itself.
+     *
+     * @param encodedPublicKey X.509 encoding of the public key
+     * @return This object with the public key set
+     */
+    public Builder encodedPublicKey(byte[] encodedPublicKey) {
+      if (encodedPublicKey == null) {
+        throw new NullPointerException("encodedPublicKey");
+      }
+      this.encodedPublicKey = encodedPublicKey;
+      this.publicKeyPart = null;
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#withData(KeyVersionData, ExtensionRegistry)
+     */
+    @Override
+    public Builder withData(KeyVersionData kvData, ExtensionRegistry registry)
+        throws InvalidProtocolBufferException {
+      super.withData(kvData, registry);
+
+      @SuppressWarnings("unused")
+      EcdsaKeyVersionData data = kvData.getExtension(EcdsaKeyVersionData.extension);
+      // No data fields are currently used
+
+      return this;
+    }
+
+    /**
+     * @see KeyVersion.Builder#withCore(KeyVersionCore)
+     */
+    @Override
+    protected Builder withCore(KeyVersionCore kvCore) throws InvalidProtocolBufferException {
+      super.withCore(kvCore);
+
+      // Extract info from core, which has no private key
+      EcdsaKeyVersionCore core = kvCore.getExtension(EcdsaKeyVersionCore.extension);
+      if (!core.hasPublicKey() || core.hasPrivateKey()) {
+        throw new InvalidProtocolBufferException("No public key alone.");
+      }
+      this.curve(Curve.fromProto(core.getCurve()));
+      this.encodedPublicKey(core.getPublicKey().toByteArray());
+
+      return this;
+    }
+
+    /**
+     * Method to return a new public key version using the builder
+     *
+     * @return A new ECDSAPublicKeyVersion build using this Builder
+     * @throws BuilderException
+     */
+    @Override
+    public ECDSAPublicKeyVersion build() throws BuilderException {
+      return new ECDSAPublicKeyVersion(this);
+    }
+  }
+}
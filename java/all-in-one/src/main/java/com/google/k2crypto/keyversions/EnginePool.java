@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free pool of initialized JCE engines (e.g. {@code Cipher}s)
+ * belonging to a single key version.
+ *
+ * <p>JCE engines are stateful and must not be shared between threads while an
+ * operation is in progress. The pool hands out an idle engine if there is one
+ * and creates a new one otherwise, so the number of engines grows with the
+ * number of threads concurrently using the key version. Only a bounded number
+ * of idle engines are retained; any excess released engines are dropped.
+ *
+ * <p>Idle engines are kept in a fixed array of slots that are claimed with
+ * compare-and-set, so acquiring and releasing never blocks or allocates.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @param <T> Type of the pooled engine.
+ */
+abstract class EnginePool<T> {
+
+  /**
+   * Default maximum number of idle engines retained by a pool.
+   */
+  static final int DEFAULT_MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+  // Slots holding idle engines ready for use (null when empty)
+  private final AtomicReferenceArray<T> idle;
+
+  /**
+   * Constructs a pool retaining at most {@link #DEFAULT_MAX_IDLE} engines.
+   */
+  EnginePool() {
+    this(DEFAULT_MAX_IDLE);
+  }
+
+  /**
+   * Constructs a pool retaining at most the given number of idle engines.
+   *
+   * @param maxIdle Maximum number of idle engines to retain.
+   */
+  EnginePool(int maxIdle) {
+    if (maxIdle < 1) {
+      throw new IllegalArgumentException("maxIdle");
+    }
+    idle = new AtomicReferenceArray<T>(maxIdle);
+  }
+
+  /**
+   * Creates and initializes a new engine for the pool.
+   *
+   * @throws GeneralSecurityException if the engine could not be created.
+   */
+  protected abstract T newEngine() throws GeneralSecurityException;
+
+  /**
+   * Obtains an engine for the exclusive use of the caller.
+   *
+   * @throws GeneralSecurityException if a new engine had to be created and
+   *     creation failed.
+   */
+  T acquire() throws GeneralSecurityException {
+    final int slots = idle.length();
+    for (int i = 0, slot = startSlot(slots); i < slots; ++i, slot = (slot + 1) % slots) {
+      T engine = idle.get(slot);
+      if (engine != null && idle.compareAndSet(slot, engine, null)) {
+        return engine;
+      }
+    }
+    return newEngine();
+  }
+
+  /**
+   * Returns an engine to the pool. The engine must be in its initialized
+   * state, i.e. the last operation on it must have completed normally.
+   * Engines left in an indeterminate state (for example, by an exception)
+   * should simply be discarded instead.
+   *
+   * @param engine Engine to return.
+   */
+  void release(T engine) {
+    if (engine == null) {
+      throw new NullPointerException("engine");
+    }
+    final int slots = idle.length();
+    for (int i = 0, slot = startSlot(slots); i < slots; ++i, slot = (slot + 1) % slots) {
+      if (idle.get(slot) == null && idle.compareAndSet(slot, null, engine)) {
+        return;
+      }
+    }
+    // Pool is full; let the engine be garbage collected
+  }
+
+  /**
+   * Returns the slot at which the current thread starts scanning, so that
+   * concurrent threads tend to work on different slots.
+   */
+  private static int startSlot(int slots) {
+    return (int) (Thread.currentThread().getId() % slots);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * HMAC (RFC 2104) computed directly on a {@link MessageDigest}, with the tag written to a scratch
+ * buffer owned by the engine. Unlike {@code javax.crypto.Mac}, which returns a new array for every
+ * tag, computing and verifying tags with this engine does not allocate (unless the digest states
+ * are precomputed, see below).
+ *
+ * <p>Engines can optionally precompute the digest states after the keyed inner and outer pads,
+ * and clone them for each message instead of hashing the pads again. This saves two runs of the
+ * compression function per message, which is most of the work for short messages, at the cost of
+ * allocating the two clones.
+ *
+ * <p>This class is not thread-safe. Engines are meant to be pooled by their key version.
+ */
+final class HMACEngine {
+
+  private static final byte IPAD = 0x36;
+
+  private static final byte OPAD = 0x5C;
+
+  // Digest used for both the inner and the outer hash
+  private final MessageDigest digest;
+
+  // Key padded to the block size and XORed with IPAD
+  private final byte[] innerPad;
+
+  // Key padded to the block size and XORed with OPAD
+  private final byte[] outerPad;
+
+  // Scratch buffer holding the inner hash
+  private final byte[] inner;
+
+  // Scratch buffer holding the last tag computed
+  private final byte[] tag;
+
+  // Digest states after hashing the inner and outer pads, or null if not precomputed
+  private final MessageDigest innerState;
+  private final MessageDigest outerState;
+
+  /**
+   * Constructs an engine for the given HMAC algorithm and key.
+   *
+   * @param algorithm One of the {@code HMACKeyVersion.HMAC_*} algorithm names
+   * @param key Raw key matter
+   * @param precompute Whether to precompute and clone the digest states after the pads
+   * @throws GeneralSecurityException if the digest is not available, or cannot be cloned when
+   *     precomputing
+   */
+  HMACEngine(String algorithm, byte[] key, boolean precompute) throws GeneralSecurityException {
+    digest = MessageDigest.getInstance(digestAlgorithm(algorithm));
+    int blockSize = blockSize(algorithm);
+    // keys longer than a block are hashed first
+    byte[] paddedKey = Arrays.copyOf(key.length > blockSize ? digest.digest(key) : key, blockSize);
+    innerPad = new byte[blockSize];
+    outerPad = new byte[blockSize];
+    for (int i = 0; i < blockSize; ++i) {
+      innerPad[i] = (byte) (paddedKey[i] ^ IPAD);
+      outerPad[i] = (byte) (paddedKey[i] ^ OPAD);
+    }
+    Arrays.fill(paddedKey, (byte) 0);
+    inner = new byte[digest.getDigestLength()];
+    tag = new byte[digest.getDigestLength()];
+
+    if (precompute) {
+      try {
+        digest.update(innerPad);
+        innerState = (MessageDigest) digest.clone();
+        digest.reset();
+        digest.update(outerPad);
+        outerState = (MessageDigest) digest.clone();
+        digest.reset();
+      } catch (CloneNotSupportedException e) {
+        throw new GeneralSecurityException("Digest state cannot be precomputed", e);
+      }
+    } else {
+      innerState = null;
+      outerState = null;
+    }
+  }
+
+  /**
+   * Returns the name of the digest underlying an HMAC algorithm.
+   */
+  static String digestAlgorithm(String algorithm) throws NoSuchAlgorithmException {
+    if (algorithm.equalsIgnoreCase(HMACKeyVersion.HMAC_MD5)) {
+      return "MD5";
+    } else if (algorithm.equalsIgnoreCase(HMACKeyVersion.HMAC_SHA1)) {
+      return "SHA-1";
+    } else if (algorithm.equalsIgnoreCase(HMACKeyVersion.HMAC_SHA256)) {
+      return "SHA-256";
+    } else if (algorithm.equalsIgnoreCase(HMACKeyVersion.HMAC_SHA384)) {
+      return "SHA-384";
+    } else if (algorithm.equalsIgnoreCase(HMACKeyVersion.HMAC_SHA512)) {
+      return "SHA-512";
+    }
+    throw new NoSuchAlgorithmException(algorithm);
+  }
+
+  /**
+   * Returns the block size in bytes of the digest underlying an HMAC algorithm.
+   */
+  static int blockSize(String algorithm) throws NoSuchAlgorithmException {
+    String digestAlgorithm = digestAlgorithm(algorithm);
+    return digestAlgorithm.equals("SHA-384") || digestAlgorithm.equals("SHA-512") ? 128 : 64;
+  }
+
+  /**
+   * Returns the length in bytes of the tags computed by this engine.
+   */
+  int getTagLength() {
+    return tag.length;
+  }
+
+  /**
+   * Computes the tag of a message into the scratch buffer of the engine, which is returned. The
+   * buffer is overwritten by the next computation.
+   */
+  byte[] compute(byte[] message, int offset, int length) throws GeneralSecurityException {
+    if (innerState != null) {
+      return computePrecomputed(message, offset, length);
+    }
+    digest.update(innerPad);
+    digest.update(message, offset, length);
+    digest.digest(inner, 0, inner.length);
+    digest.update(outerPad);
+    digest.update(inner);
+    digest.digest(tag, 0, tag.length);
+    return tag;
+  }
+
+  /**
+   * Computes the tag of a message starting from clones of the precomputed digest states.
+   */
+  private byte[] computePrecomputed(byte[] message, int offset, int length)
+      throws GeneralSecurityException {
+    try {
+      MessageDigest innerDigest = (MessageDigest) innerState.clone();
+      innerDigest.update(message, offset, length);
+      innerDigest.digest(inner, 0, inner.length);
+      MessageDigest outerDigest = (MessageDigest) outerState.clone();
+      outerDigest.update(inner);
+      outerDigest.digest(tag, 0, tag.length);
+      return tag;
+    } catch (CloneNotSupportedException e) {
+      throw new GeneralSecurityException("Digest state cannot be cloned", e);
+    }
+  }
+
+  /**
+   * Computes the tag of a message and compares it in constant time with the expected tag.
+   *
+   * @return True if and only if the expected tag matches
+   */
+  boolean verify(byte[] expected, int expectedOffset, int expectedLength, byte[] message,
+      int offset, int length) throws GeneralSecurityException {
+    compute(message, offset, length);
+    return expectedLength == tag.length
+        && constantTimeEquals(expected, expectedOffset, tag, 0, tag.length);
+  }
+
+  /**
+   * Compares two byte ranges of the same length in time that depends only on the length, so that
+   * the time taken does not reveal how much of a tag an attacker has guessed correctly.
+   */
+  static boolean constantTimeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    int difference = 0;
+    for (int i = 0; i < length; ++i) {
+      difference |= a[aOffset + i] ^ b[bOffset + i];
+    }
+    return difference == 0;
+  }
+}
@@ -22,7 +22,10 @@ import com.google.k2crypto.keyversions.HmacKeyVersionProto.HmacKeyVersionData;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionCore;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
 
-import java.util.Arrays;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.Mac;
@@ -46,21 +49,77 @@ public class HMACKeyVersion extends HashKeyVersion {
    */
   private SecretKey secretKey;
 
+  /**
+   * Size of the buffer used when reading input streams
+   */
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  /**
+   * Pool of initialized Macs, so that computing an HMAC does not have to look
+   * up the algorithm and process the key on every call
+   */
+  private final EnginePool<Mac> macs = new EnginePool<Mac>() {
+    @Override
+    protected Mac newEngine() throws GeneralSecurityException {
+      Mac mac = Mac.getInstance(algorithm);
+      mac.init(secretKey);
+      return mac;
+    }
+  };
+
+  /**
+   * Pool of HMAC engines with scratch buffers, so that verifying an HMAC does
+   * not allocate
+   */
+  private final EnginePool<HMACEngine> verifiers = new EnginePool<HMACEngine>() {
+    @Override
+    protected HMACEngine newEngine() throws GeneralSecurityException {
+      return new HMACEngine(algorithm, secretKey.getEncoded(), precomputePads);
+    }
+  };
+
   /**
    * Private constructor to ensure people use generateSHA1HMAC or
    * generateMD5HMAC to generate HMAC key
    */
   private HMACKeyVersion(Builder builder) throws Exception {
     super(builder);
+    this.algorithm = builder.algorithm;
+    this.precomputePads = builder.precomputePads;
     if (builder.keyVersionMatter == null) {
-      // Generate a key for the HMAC-SHA1 keyed-hashing algorithm
-      KeyGenerator keyGen = KeyGenerator.getInstance(builder.algorithm);
-      secretKey = keyGen.generateKey();
+      // Generate a key for the keyed-hashing algorithm, or take one generated
+      // ahead of time if the builder has a key material pool
+      secretKey = generateSecretKey(builder.algorithm, builder.getKeyMaterialPool());
     } else {
       // set the secret key based on the raw key matter
       secretKey = new SecretKeySpec(builder.keyVersionMatter, 0, builder.keyVersionMatter.length,
           builder.algorithm);
     }
+    // make sure the algorithm and key are usable by creating the first Mac
+    // and engine, then keep them for later use
+    macs.release(macs.newEngine());
+    verifiers.release(verifiers.newEngine());
+  }
+
+  /**
+   * Generates a new secret key for the given HMAC algorithm, taking it from
+   * the key material pool if there is one
+   *
+   * @param algorithm The HMAC algorithm
+   * @param pool Pool of key material, or null to generate synchronously
+   * @return A new secret key
+   * @throws GeneralSecurityException
+   */
+  private static SecretKey generateSecretKey(final String algorithm, KeyMaterialPool pool)
+      throws GeneralSecurityException {
+    KeyMaterialPool.Generator<SecretKey> generator = new KeyMaterialPool.Generator<SecretKey>() {
+      @Override
+      public SecretKey generate() throws GeneralSecurityException {
+        return KeyGenerator.getInstance(algorithm).generateKey();
+      }
+    };
+    return pool == null ? generator.generate()
+        : pool.take("HMAC/" + HMACEngine.digestAlgorithm(algorithm), generator);
   }
 
   /**
@@ -77,6 +136,11 @@ public class HMACKeyVersion extends HashKeyVersion {
    */
   private String algorithm = HMAC_SHA1;
 
+  /**
+   * Whether HMACs of byte arrays are computed from precomputed digest states
+   */
+  private boolean precomputePads;
+
   /**
    * Generates a new HMAC using the SHA1 hash algorithm
    *
@@ -118,6 +182,16 @@ public class HMACKeyVersion extends HashKeyVersion {
     return algorithm;
   }
 
+  /**
+   * Returns whether HMACs of byte arrays are computed from precomputed
+   * digest states.
+   *
+   * @see Builder#precomputePads(boolean)
+   */
+  public boolean isPrecomputingPads() {
+    return precomputePads;
+  }
+
   /**
    * Method to compute the raw HMAC on a piece of input data
    *
@@ -126,13 +200,25 @@ public class HMACKeyVersion extends HashKeyVersion {
    * @throws EncryptionException
    */
   public byte[] getRawHMAC(byte[] inputData) throws EncryptionException {
+    if (precomputePads) {
+      try {
+        // borrow an engine, which starts from the precomputed digest states
+        HMACEngine engine = verifiers.acquire();
+        byte[] hmacsig = engine.compute(inputData, 0, inputData.length).clone();
+        verifiers.release(engine);
+        return hmacsig;
+      } catch (Exception e) {
+        // catch any exceptions and throw custom exception
+        throw new EncryptionException("Failed to generate HMAC signature", e);
+      }
+    }
     try {
-      // get an HMAC Mac instance using the algorithm of this HMAC key
-      Mac mac = Mac.getInstance(this.algorithm);
-      // now initialize with the signing key it withthe key
-      mac.init(this.secretKey);
+      // borrow an initialized Mac so that other threads are not affected
+      Mac mac = macs.acquire();
       // compute the hmac on input data bytes
       byte[] hmacsig = mac.doFinal(inputData);
+      // doFinal resets the Mac so it can be reused
+      macs.release(mac);
       // return the HMAC
       return hmacsig;
     } catch (Exception e) {
@@ -142,7 +228,107 @@ public class HMACKeyVersion extends HashKeyVersion {
   }
 
   /**
-   * Method that verifies a given HMAC on a piece of data
+   * Creates a new Mac initialized with the key of this key version, for
+   * computing an HMAC incrementally with {@code update} and {@code doFinal}.
+   * The Mac is owned by the caller and can be reused after each
+   * {@code doFinal}.
+   *
+   * @return A newly initialized Mac
+   * @throws EncryptionException
+   */
+  public Mac newMac() throws EncryptionException {
+    try {
+      return macs.newEngine();
+    } catch (Exception e) {
+      throw new EncryptionException("Failed to create Mac", e);
+    }
+  }
+
+  /**
+   * Method to compute the raw HMAC on everything read from a stream, without
+   * holding the whole input in memory. The stream is read to the end but not
+   * closed.
+   *
+   * @param in The stream of data on which to compute the HMAC
+   * @return The byte array representation of the HMAC
+   * @throws EncryptionException
+   */
+  public byte[] getRawHMAC(InputStream in) throws EncryptionException {
+    try {
+      // borrow an initialized Mac so that other threads are not affected
+      Mac mac = macs.acquire();
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        mac.update(buffer, 0, count);
+      }
+      byte[] hmacsig = mac.doFinal();
+      // doFinal resets the Mac so it can be reused
+      macs.release(mac);
+      return hmacsig;
+    } catch (Exception e) {
+      // catch any exceptions and throw custom exception
+      throw new EncryptionException("Failed to generate HMAC signature of stream", e);
+    }
+  }
+
+  /**
+   * Method to compute the raw HMAC on the remaining bytes of a buffer, which
+   * may be a heap or direct buffer. The position of the buffer is advanced to
+   * its limit.
+   *
+   * @param inputData The buffer of data on which to compute the HMAC
+   * @return The byte array representation of the HMAC
+   * @throws EncryptionException
+   */
+  public byte[] getRawHMAC(ByteBuffer inputData) throws EncryptionException {
+    try {
+      // borrow an initialized Mac so that other threads are not affected
+      Mac mac = macs.acquire();
+      mac.update(inputData);
+      byte[] hmacsig = mac.doFinal();
+      // doFinal resets the Mac so it can be reused
+      macs.release(mac);
+      return hmacsig;
+    } catch (Exception e) {
+      // catch any exceptions and throw custom exception
+      throw new EncryptionException("Failed to generate HMAC signature of buffer", e);
+    }
+  }
+
+  /**
+   * Method to compute the raw HMAC on the entire contents of a file. The file
+   * is read through memory-mapped regions, so files of any size are processed
+   * in constant heap memory. The position of the channel is not used or
+   * modified.
+   *
+   * @param file The channel of the file on which to compute the HMAC
+   * @return The byte array representation of the HMAC
+   * @throws EncryptionException
+   */
+  public byte[] getRawHMAC(FileChannel file) throws EncryptionException {
+    try {
+      // borrow an initialized Mac so that other threads are not affected
+      final Mac mac = macs.acquire();
+      MappedRegions.forEach(file, new MappedRegions.Handler() {
+        @Override
+        public void handle(ByteBuffer region) {
+          mac.update(region);
+        }
+      });
+      byte[] hmacsig = mac.doFinal();
+      // doFinal resets the Mac so it can be reused
+      macs.release(mac);
+      return hmacsig;
+    } catch (Exception e) {
+      // catch any exceptions and throw custom exception
+      throw new EncryptionException("Failed to generate HMAC signature of file", e);
+    }
+  }
+
+  /**
+   * Method that verifies a given HMAC on a piece of data. The HMAC is
+   * compared in constant time, and verification does not allocate memory.
    *
    * @param inputHmac The input HMAC to verify
    * @param message The input message to check the HMAC against
@@ -151,13 +337,38 @@ public class HMACKeyVersion extends HashKeyVersion {
    * @throws EncryptionException
    */
   public boolean verifyHMAC(byte[] inputHmac, byte[] message) throws EncryptionException {
-    // compute the hmac on the message
-    // if the input hmac matches the computed hmac return true
-    if (Arrays.equals(inputHmac, getRawHMAC(message))) {
-      return true;
+    return verifyHMAC(inputHmac, 0, inputHmac.length, message, 0, message.length);
+  }
+
+  /**
+   * Method that verifies a given HMAC on part of an array of data. The HMAC is
+   * compared in constant time, and verification does not allocate memory.
+   *
+   * @param inputHmac Array holding the input HMAC to verify
+   * @param hmacOffset Offset of the HMAC in the array
+   * @param hmacLength Length of the HMAC
+   * @param message Array holding the input message to check the HMAC against
+   * @param messageOffset Offset of the message in the array
+   * @param messageLength Length of the message
+   * @return True if and only if the HMAC computed on the message matches the
+   *         input HMAC, false otherwise
+   * @throws EncryptionException
+   */
+  public boolean verifyHMAC(byte[] inputHmac, int hmacOffset, int hmacLength, byte[] message,
+      int messageOffset, int messageLength) throws EncryptionException {
+    try {
+      // borrow an engine so that other threads are not affected
+      HMACEngine engine = verifiers.acquire();
+      // compute the hmac on the message into the scratch buffer of the engine
+      // and compare it with the input hmac
+      boolean verified = engine.verify(
+          inputHmac, hmacOffset, hmacLength, message, messageOffset, messageLength);
+      verifiers.release(engine);
+      return verified;
+    } catch (Exception e) {
+      // catch any exceptions and throw custom exception
+      throw new EncryptionException("Failed to verify HMAC signature", e);
     }
-    // otherwise return false as the computed hmac differs from the input hmac
-    return false;
   }
 
   /**
@@ -217,6 +428,11 @@ public class HMACKeyVersion extends HashKeyVersion {
      */
     private byte[] keyVersionMatter;
 
+    /**
+     * Whether to precompute the keyed digest states
+     */
+    private boolean precomputePads = false;
+
     /**
      * Set the hash algorithm.
      *
@@ -235,6 +451,23 @@ public class HMACKeyVersion extends HashKeyVersion {
       }
     }
 
+    /**
+     * Set whether the digest states after hashing the keyed inner and outer
+     * pads are computed once and cloned for each byte array HMAC and
+     * verification, instead of hashing the pads for every message. This makes
+     * HMACs of short messages, such as tokens, much cheaper, but each
+     * computation then allocates two digest clones. It is off by default so
+     * that verification does not allocate. This setting is not saved with the
+     * key version.
+     *
+     * @param precomputePads True to precompute the digest states
+     * @return This object with the setting updated
+     */
+    public Builder precomputePads(boolean precomputePads) {
+      this.precomputePads = precomputePads;
+      return this;
+    }
+
     /**
      * @param keyVersionMatter Byte array representing the key matter
      * @return This object with key matter set
@@ -248,6 +481,15 @@ public class HMACKeyVersion extends HashKeyVersion {
       return this;
     }
 
+    /**
+     * @see KeyVersion.Builder#keyMaterialPool(KeyMaterialPool)
+     */
+    @Override
+    public Builder keyMaterialPool(KeyMaterialPool keyMaterialPool) {
+      super.keyMaterialPool(keyMaterialPool);
+      return this;
+    }
+
     /**
      * @see KeyVersion.Builder#withData(KeyVersionData, ExtensionRegistry)
      */
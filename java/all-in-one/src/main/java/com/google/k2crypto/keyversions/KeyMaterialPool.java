@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pool of key material (secret keys and key pairs) generated ahead of time on background
+ * threads, so that building a new key version does not have to wait for key generation.
+ *
+ * <p>The pool keeps a bounded queue of ready material for each kind of key material (for example
+ * 128-bit AES keys, or 1024-bit DSA key pairs). A kind is first seen when a builder draws from the
+ * pool, which generates the material synchronously and starts refilling the queue of that kind.
+ * Later builders take ready material from the queue and only fall back to generating
+ * synchronously if it is empty. Refilling runs on daemon threads at minimum priority, so that
+ * generation mostly uses otherwise idle processor time.
+ *
+ * <p>The pool is opt-in: it is attached to a session with
+ * {@link com.google.k2crypto.K2Context#setKeyMaterialPool(KeyMaterialPool)}, or passed to key
+ * version builders directly. Note that ready key material is held in memory until it is used, so
+ * the capacity should be kept small.
+ *
+ * <p>This class is thread-safe.
+ */
+public class KeyMaterialPool {
+
+  /**
+   * Default number of ready items kept for each kind of key material.
+   */
+  public static final int DEFAULT_CAPACITY = 4;
+
+  /**
+   * Generates one item of key material of a given kind.
+   *
+   * @param <T> Type of the key material.
+   */
+  interface Generator<T> {
+    T generate() throws GeneralSecurityException;
+  }
+
+  // Number of ready items kept for each kind
+  private final int capacity;
+
+  // Executor running the refill tasks
+  private final ExecutorService refiller;
+
+  // Ready key material and its generator, for each kind seen so far
+  private final ConcurrentMap<String, Entry<?>> entries =
+      new ConcurrentHashMap<String, Entry<?>>();
+
+  /**
+   * Constructs a pool with the default capacity, refilled by a single background thread.
+   */
+  public KeyMaterialPool() {
+    this(DEFAULT_CAPACITY, 1);
+  }
+
+  /**
+   * Constructs a pool.
+   *
+   * @param capacity Number of ready items to keep for each kind of key material
+   * @param threads Number of background threads generating key material
+   */
+  public KeyMaterialPool(int capacity, int threads) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity");
+    } else if (threads < 1) {
+      throw new IllegalArgumentException("threads");
+    }
+    this.capacity = capacity;
+    this.refiller = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "k2-key-material");
+        // do not keep the application alive, and give way to foreground work
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Returns the number of ready items kept for each kind of key material.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Stops the background threads and discards all ready key material. Builders using the pool
+   * afterwards generate key material synchronously.
+   */
+  public void shutdown() {
+    refiller.shutdownNow();
+    for (Entry<?> entry : entries.values()) {
+      entry.ready.clear();
+    }
+  }
+
+  /**
+   * Takes an item of ready key material of the given kind, or generates one synchronously if none
+   * is ready. Either way, the queue of the kind is then refilled in the background.
+   *
+   * @param kind Name of the kind of key material, which must always be generated by equivalent
+   *     generators producing the same type
+   * @param generator Generator for the kind of key material
+   * @throws GeneralSecurityException if the key material had to be generated synchronously and
+   *     generation failed
+   */
+  <T> T take(String kind, Generator<T> generator) throws GeneralSecurityException {
+    Entry<T> entry = entry(kind, generator);
+    T material = entry.ready.poll();
+    if (material == null) {
+      material = generator.generate();
+    }
+    refill(entry);
+    return material;
+  }
+
+  /**
+   * Returns the number of ready items of the given kind.
+   */
+  int getReadyCount(String kind) {
+    Entry<?> entry = entries.get(kind);
+    return entry == null ? 0 : entry.ready.size();
+  }
+
+  /**
+   * Returns the entry of the given kind, creating it with the generator if it is new.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> Entry<T> entry(String kind, Generator<T> generator) {
+    Entry<?> entry = entries.get(kind);
+    if (entry == null) {
+      Entry<T> created = new Entry<T>(generator, capacity);
+      entry = entries.putIfAbsent(kind, created);
+      if (entry == null) {
+        entry = created;
+      }
+    }
+    return (Entry<T>) entry;
+  }
+
+  /**
+   * Schedules a background task filling the queue of the entry, unless one is already scheduled.
+   */
+  private <T> void refill(final Entry<T> entry) {
+    if (!entry.refilling.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      refiller.execute(new Runnable() {
+        @Override
+        public void run() {
+          boolean failed = false;
+          try {
+            while (!refiller.isShutdown() && entry.ready.remainingCapacity() > 0) {
+              if (!entry.ready.offer(entry.generator.generate())) {
+                break;
+              }
+            }
+          } catch (GeneralSecurityException e) {
+            // stop refilling; builders will generate synchronously and report the failure
+            failed = true;
+          } finally {
+            entry.refilling.set(false);
+          }
+          // material taken after the loop ended would otherwise only be replaced on the next take
+          if (!failed && !refiller.isShutdown() && entry.ready.remainingCapacity() > 0) {
+            refill(entry);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the pool has been shut down
+      entry.refilling.set(false);
+    }
+  }
+
+  /**
+   * Ready key material of one kind.
+   */
+  private static final class Entry<T> {
+
+    // Generator of the key material
+    final Generator<T> generator;
+
+    // Ready key material
+    final BlockingQueue<T> ready;
+
+    // Whether a refill task is scheduled or running
+    final AtomicBoolean refilling = new AtomicBoolean();
+
+    Entry(Generator<T> generator, int capacity) {
+      this.generator = generator;
+      this.ready = new ArrayBlockingQueue<T>(capacity);
+    }
+  }
+}
@@ -18,6 +18,9 @@ import com.google.k2crypto.exceptions.BuilderException;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionCore;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import com.google.protobuf.ByteString;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -30,6 +33,16 @@ import com.google.protobuf.InvalidProtocolBufferException;
  */
 public abstract class KeyVersion {
 
+  /**
+   * Length of the key version identifier in bytes
+   */
+  public static final int ID_LENGTH = 32;
+
+  /**
+   * Length of the short form of the key version identifier in bytes
+   */
+  public static final int SHORT_ID_LENGTH = 8;
+
   // Retained raw bytes of the core key version material
   // (Cannot be changed once generated)
   private ByteString coreBytes = null;
@@ -37,6 +50,15 @@ public abstract class KeyVersion {
   // Key version identifier (a hash of the core)
   private ByteString id = null;
 
+  // Prefix of the identifier
+  private ByteString shortId = null;
+
+  // Hash code derived from the identifier (0 if not computed yet)
+  private int hash = 0;
+
+  // Cached protobuf data of the key version (null if not built yet)
+  private volatile KeyVersionData data = null;
+
   /**
    * Initializes the KeyVersion.
    *
@@ -52,21 +74,65 @@ public abstract class KeyVersion {
   }
 
   /**
-   * Returns the identifier of the key version.
+   * Returns the identifier of the key version, which is the SHA-256 digest of
+   * the core. It is {@link #ID_LENGTH} bytes long and reveals nothing about
+   * the key material, so it can be stored alongside data protected by the key
+   * version.
    */
   public final ByteString getId() {
     ByteString id = this.id;
     if (id == null) {
-      ByteString core = getCore();
-      // TODO(darylseah): Hash the core and produce the ID
-      //                  (Right now, ID === core).
-      // TODO(darylseah): Also, figure out how to pull in security properties
-      //                  from the Key into the hash
-      this.id = id = core;
+      // the ByteString is immutable, so it is safe to share between threads
+      this.id = id = computeId(getCore());
     }
     return id;
   }
 
+  /**
+   * Computes the identifier of a key version from the raw bytes of its core,
+   * so that key versions can be identified without building them.
+   *
+   * @param core Raw bytes of the core data of the key version.
+   * @return the identifier that {@link #getId()} returns for the key version.
+   */
+  public static ByteString computeId(ByteString core) {
+    // TODO(darylseah): Figure out how to pull in security properties
+    //                  from the Key into the hash
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256
+      throw new AssertionError(e);
+    }
+    digest.update(core.asReadOnlyByteBuffer());
+    return ByteString.copyFrom(digest.digest());
+  }
+
+  /**
+   * Returns the short form of an identifier, i.e. its first
+   * {@link #SHORT_ID_LENGTH} bytes.
+   *
+   * @param id An identifier computed by {@link #computeId(ByteString)}.
+   */
+  public static ByteString computeShortId(ByteString id) {
+    return ByteString.copyFrom(id.substring(0, SHORT_ID_LENGTH).toByteArray());
+  }
+
+  /**
+   * Returns the first {@link #SHORT_ID_LENGTH} bytes of the identifier, for
+   * places where space is tight, such as ciphertext headers. Short identifiers
+   * of different key versions can collide, so they should only be used to
+   * pick out candidates.
+   */
+  public final ByteString getShortId() {
+    ByteString shortId = this.shortId;
+    if (shortId == null) {
+      this.shortId = shortId = computeShortId(getId());
+    }
+    return shortId;
+  }
+
   /**
    * Returns the raw bytes of the core data of the key version.
    * Will invoke {@link #buildCore()} to generate it if needed.
@@ -107,12 +173,34 @@ public abstract class KeyVersion {
   }
 
   /**
-   * Returns the hash code for the key version, which is a function of the
-   * computed identifier.
+   * Returns the protobuf data of the key version. The data is built with
+   * {@link #buildData()} on the first call and cached, since key versions do
+   * not change once built, so saving a key version again costs nothing.
+   */
+  public final KeyVersionData getData() {
+    KeyVersionData data = this.data;
+    if (data == null) {
+      // protobuf messages are immutable, so the data is safe to share between threads
+      this.data = data = buildData().build();
+    }
+    return data;
+  }
+
+  /**
+   * Returns the hash code for the key version, which is taken from the first
+   * bytes of the computed identifier.
    */
   @Override
   public int hashCode() {
-    return getId().hashCode();
+    int hash = this.hash;
+    if (hash == 0) {
+      // the identifier is a digest, so any four of its bytes make a good hash
+      ByteString id = getId();
+      hash = ((id.byteAt(0) & 0xFF) << 24) | ((id.byteAt(1) & 0xFF) << 16)
+          | ((id.byteAt(2) & 0xFF) << 8) | (id.byteAt(3) & 0xFF);
+      this.hash = hash;
+    }
+    return hash;
   }
 
   /**
@@ -121,12 +209,18 @@ public abstract class KeyVersion {
    * @param obj Object to compare to.
    *
    * @return {@code true} if, and only if, the object is of the same class and
-   *         has the same core bytes as this one.
+   *         has the same identifier (i.e. the same core bytes) as this one.
    */
   @Override
   public boolean equals(Object obj) {
-    return obj != null && getClass().equals(obj.getClass())
-        && getCore().equals(((KeyVersion) obj).getCore());
+    if (obj == this) {
+      return true;
+    } else if (obj == null || !getClass().equals(obj.getClass())) {
+      return false;
+    }
+    KeyVersion other = (KeyVersion) obj;
+    // compare the cached hash codes before the full identifiers
+    return hashCode() == other.hashCode() && getId().equals(other.getId());
   }
 
   /**
@@ -141,6 +235,9 @@ public abstract class KeyVersion {
     // Data of the key version (non-null only if we are deserializing)
     private KeyVersionData kvData;
 
+    // Pool to draw new key material from (null to generate synchronously)
+    private KeyMaterialPool keyMaterialPool;
+
     /**
      * Initializes the builder with protobuf data. The core will be parsed
      * from the data and the protobuf extension registry is required for this.
@@ -185,6 +282,29 @@ public abstract class KeyVersion {
       return this;
     }
 
+    /**
+     * Sets the pool that new key material is drawn from, instead of
+     * generating it synchronously when the key version is built. Key versions
+     * that do not generate key material ignore the pool.
+     *
+     * <p>Sub-classes that generate key material should override this with a
+     * covariant return type.
+     *
+     * @param keyMaterialPool The pool, or null to generate synchronously.
+     */
+    public Builder keyMaterialPool(KeyMaterialPool keyMaterialPool) {
+      this.keyMaterialPool = keyMaterialPool;
+      return this;
+    }
+
+    /**
+     * Returns the pool that new key material is drawn from, or null if it
+     * is generated synchronously.
+     */
+    protected KeyMaterialPool getKeyMaterialPool() {
+      return keyMaterialPool;
+    }
+
     /**
      * Builds the KeyVersion with the arguments set from the builder.
      *
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.keyversions.KeyVersionProto.Type;
+
+import com.google.protobuf.ExtensionRegistry;
+
+/**
+ * Registration of a {@link KeyVersion} implementation, generated at compile time from its
+ * {@link KeyVersionInfo} annotation by the K2 registration processor.
+ *
+ * <p>The generated class is named after the binary name of the key version class, followed by
+ * {@link #CLASS_SUFFIX}; e.g. {@code AESKeyVersion} is registered by
+ * {@code AESKeyVersion_Registration}, and a nested {@code Foo.Bar} by
+ * {@code Foo$Bar_Registration}. When a key version with a generated registration is registered, its
+ * builder and proto are taken from the registration instead of being looked up and checked through
+ * reflection. A builder is still instantiated once through the registration, so a builder
+ * constructor that fails is reported when the key version is registered. Key versions without one
+ * are still registered through reflection.
+ */
+public interface KeyVersionRegistration extends BuilderFactory {
+
+  /**
+   * Suffix appended to the name of the key version class to get the name of
+   * the generated registration class.
+   */
+  String CLASS_SUFFIX = "_Registration";
+
+  /**
+   * Returns the class implementing the key version.
+   */
+  Class<? extends KeyVersion> getKeyVersionClass();
+
+  /**
+   * Returns the builder class for the key version.
+   */
+  Class<? extends KeyVersion.Builder> getBuilderClass();
+
+  /**
+   * Returns the proto type of the key version.
+   */
+  Type getType();
+
+  /**
+   * Returns the generated protocol buffer class for the key version.
+   */
+  Class<?> getProtoClass();
+
+  /**
+   * Registers all proto extensions required by the key version.
+   *
+   * @param registry Proto extension registry to use.
+   */
+  void registerProtoExtensions(ExtensionRegistry registry);
+}
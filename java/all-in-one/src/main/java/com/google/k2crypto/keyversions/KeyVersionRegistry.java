@@ -22,9 +22,8 @@ import com.google.k2crypto.keyversions.KeyVersionProto.Type;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.Map;
 
 import com.google.protobuf.ExtensionRegistry;
 
@@ -32,7 +31,10 @@ import com.google.protobuf.ExtensionRegistry;
  * A registry of available {@link KeyVersion} implementations.
  *
  * <p>
- * This class is thread-safe.
+ * This class is thread-safe. The registrations are held in an immutable
+ * snapshot that is replaced as a whole when a key version is registered or
+ * unregistered, so looking up registrations (which happens for every key
+ * version of every key loaded) never blocks.
  *
  * @author darylseah@gmail.com (Daryl Seah)
  */
@@ -41,15 +43,11 @@ public class KeyVersionRegistry {
   // Context for the current K2 session
   private final K2Context context;
 
-  // Mapping of key version type to the registered (and verified) key version.
-  private final Map<Type, RegisteredKeyVersion> keyVersions =
-      new LinkedHashMap<KeyVersionProto.Type, RegisteredKeyVersion>();
+  // Current registrations, replaced (while holding the lock) on every change
+  private volatile Snapshot state = new Snapshot();
 
-  // Cached list of all registered key versions
-  private List<RegisteredKeyVersion> cachedKeyVersionList;
-
-  // Cached proto extension registry
-  private ExtensionRegistry cachedProtoExtensions;
+  // Lock serializing registrations and unregistrations
+  private final Object lock = new Object();
 
   /**
    * Constructs a KeyVersionRegistry for the given context.
@@ -58,25 +56,6 @@ public class KeyVersionRegistry {
    */
   public KeyVersionRegistry(K2Context context) {
     this.context = context;
-    invalidateCaches();
-  }
-
-  /**
-   * Invalidates the cached data on the registry.
-   * Must be called whenever the key version map changes.
-   */
-  private void invalidateCaches() {
-    synchronized (keyVersions) {
-      if (keyVersions.isEmpty()) {
-        // Use empty default objects
-        cachedKeyVersionList = Collections.emptyList();
-        cachedProtoExtensions = ExtensionRegistry.getEmptyRegistry();
-      } else {
-        // Generate on demand
-        cachedKeyVersionList = null;
-        cachedProtoExtensions = null;
-      }
-    }
   }
 
   /**
@@ -94,10 +73,7 @@ public class KeyVersionRegistry {
     if (type == null) {
       throw new NullPointerException("type");
     }
-    RegisteredKeyVersion regKeyVersion;
-    synchronized (keyVersions) {
-      regKeyVersion = keyVersions.get(type);
-    }
+    RegisteredKeyVersion regKeyVersion = state.keyVersions.get(type);
     if (regKeyVersion == null) {
       throw new UnregisteredKeyVersionException(type);
     }
@@ -115,9 +91,7 @@ public class KeyVersionRegistry {
     if (type == null) {
       throw new NullPointerException("type");
     }
-    synchronized (keyVersions) {
-      return keyVersions.containsKey(type);
-    }
+    return state.keyVersions.containsKey(type);
   }
 
   /**
@@ -132,9 +106,7 @@ public class KeyVersionRegistry {
     if (type == null) {
       throw new NullPointerException("type");
     }
-    synchronized (keyVersions) {
-      return keyVersions.get(type);
-    }
+    return state.keyVersions.get(type);
   }
 
   /**
@@ -142,35 +114,7 @@ public class KeyVersionRegistry {
    * registered key versions.
    */
   public ExtensionRegistry getProtoExtensions() {
-    synchronized (keyVersions) {
-      ExtensionRegistry registry = cachedProtoExtensions;
-      if (registry == null) {
-        registry = ExtensionRegistry.newInstance();
-        for (RegisteredKeyVersion rkv : getRegisteredKeyVersions()) {
-          try {
-            rkv.registerProtoExtensions(registry);
-          } catch (IllegalArgumentException e) {
-            // Might get this if the proto is broken. Just print trace and
-            // continue.
-            // TODO(darylseah): Perhaps log this?
-            e.printStackTrace();
-          } catch (IllegalAccessException e) {
-            // Might get this if the proto is broken. Just print trace and
-            // continue.
-            // TODO(darylseah): Perhaps log this?
-            e.printStackTrace();
-          } catch (InvocationTargetException e) {
-            // Might get this if the proto is broken. Just print trace and
-            // continue.
-            // TODO(darylseah): Perhaps log this?
-            e.printStackTrace();
-          }
-        }
-        registry = registry.getUnmodifiable();
-        cachedProtoExtensions = registry;
-      }
-      return registry;
-    }
+    return state.protoExtensions;
   }
 
   /**
@@ -194,12 +138,15 @@ public class KeyVersionRegistry {
     RegisteredKeyVersion regKeyVersion = new RegisteredKeyVersion(context, kvClass);
     Type type = regKeyVersion.getType();
 
-    synchronized (keyVersions) {
-      if (keyVersions.containsKey(type)) {
+    synchronized (lock) {
+      Snapshot current = state;
+      if (current.keyVersions.containsKey(type)) {
         return null;
       }
-      keyVersions.put(type, regKeyVersion);
-      invalidateCaches();
+      List<RegisteredKeyVersion> list =
+          new ArrayList<RegisteredKeyVersion>(current.keyVersionList);
+      list.add(regKeyVersion);
+      state = new Snapshot(list);
     }
     return regKeyVersion;
   }
@@ -216,13 +163,18 @@ public class KeyVersionRegistry {
     if (type == null) {
       throw new NullPointerException("type");
     }
-    synchronized (keyVersions) {
-      if (keyVersions.remove(type) != null) {
-        invalidateCaches();
-        return true;
+    synchronized (lock) {
+      Snapshot current = state;
+      RegisteredKeyVersion regKeyVersion = current.keyVersions.get(type);
+      if (regKeyVersion == null) {
+        return false;
       }
+      List<RegisteredKeyVersion> list =
+          new ArrayList<RegisteredKeyVersion>(current.keyVersionList);
+      list.remove(regKeyVersion);
+      state = new Snapshot(list);
     }
-    return false;
+    return true;
   }
 
   /**
@@ -230,14 +182,63 @@ public class KeyVersionRegistry {
    * versions, in registration order.
    */
   public List<RegisteredKeyVersion> getRegisteredKeyVersions() {
-    synchronized (keyVersions) {
-      List<RegisteredKeyVersion> list = cachedKeyVersionList;
-      if (list == null) {
-        list =
-            Collections.unmodifiableList(new ArrayList<RegisteredKeyVersion>(keyVersions.values()));
-        cachedKeyVersionList = list;
+    return state.keyVersionList;
+  }
+
+  /**
+   * Immutable state of the registry. Everything derived from the registrations
+   * is prepared up front, so that the getters only read fields.
+   */
+  private static class Snapshot {
+
+    // Mapping of key version type to the registered (and verified) key version
+    final EnumMap<Type, RegisteredKeyVersion> keyVersions =
+        new EnumMap<Type, RegisteredKeyVersion>(Type.class);
+
+    // Unmodifiable list of all registered key versions, in registration order
+    final List<RegisteredKeyVersion> keyVersionList;
+
+    // Proto extension registry of all registered key versions
+    final ExtensionRegistry protoExtensions;
+
+    /**
+     * Creates an empty snapshot, using empty default objects.
+     */
+    Snapshot() {
+      keyVersionList = Collections.emptyList();
+      protoExtensions = ExtensionRegistry.getEmptyRegistry();
+    }
+
+    /**
+     * Creates a snapshot of the given registrations.
+     *
+     * @param list Registered key versions, in registration order.
+     */
+    Snapshot(List<RegisteredKeyVersion> list) {
+      keyVersionList = Collections.unmodifiableList(list);
+      ExtensionRegistry registry = ExtensionRegistry.newInstance();
+      for (RegisteredKeyVersion rkv : list) {
+        keyVersions.put(rkv.getType(), rkv);
+        try {
+          rkv.registerProtoExtensions(registry);
+        } catch (IllegalArgumentException e) {
+          // Might get this if the proto is broken. Just print trace and
+          // continue.
+          // TODO(darylseah): Perhaps log this?
+          e.printStackTrace();
+        } catch (IllegalAccessException e) {
+          // Might get this if the proto is broken. Just print trace and
+          // continue.
+          // TODO(darylseah): Perhaps log this?
+          e.printStackTrace();
+        } catch (InvocationTargetException e) {
+          // Might get this if the proto is broken. Just print trace and
+          // continue.
+          // TODO(darylseah): Perhaps log this?
+          e.printStackTrace();
+        }
       }
-      return list;
+      protoExtensions = registry.getUnmodifiable();
     }
   }
 }
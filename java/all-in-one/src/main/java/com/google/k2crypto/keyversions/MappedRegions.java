@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Helper for feeding the contents of a file to a JCE engine through memory-mapped regions, so that
+ * files of any size are processed in constant heap memory without copying through user buffers.
+ */
+final class MappedRegions {
+
+  /**
+   * Size in bytes of each mapped region.
+   */
+  static final long REGION_SIZE = 1L << 26;
+
+  /**
+   * Receives each region of the file in order.
+   */
+  interface Handler {
+    void handle(ByteBuffer region) throws GeneralSecurityException;
+  }
+
+  private MappedRegions() {}
+
+  /**
+   * Maps the file from position 0 to its current size, one region at a time, and passes each
+   * region to the handler. The position of the channel is not used or modified.
+   *
+   * @param channel Channel of the file to map, must be readable
+   * @param handler Handler receiving the regions
+   */
+  static void forEach(FileChannel channel, Handler handler)
+      throws IOException, GeneralSecurityException {
+    long size = channel.size();
+    for (long position = 0; position < size; position += REGION_SIZE) {
+      long length = Math.min(REGION_SIZE, size - position);
+      handler.handle(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+    }
+  }
+}
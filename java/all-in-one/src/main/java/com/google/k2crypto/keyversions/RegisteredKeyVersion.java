@@ -42,14 +42,24 @@ public class RegisteredKeyVersion {
   // Class of the registered key version implementation
   private final Class<? extends KeyVersion> keyVersionClass;
 
-  // Builder constructor derived from the KeyVersion class
-  private final Constructor<? extends Builder> builderConstructor;
+  // Builder class derived from the KeyVersion class
+  private final Class<? extends Builder> builderClass;
+
+  // Factory creating builders, bound once at registration
+  private final BuilderFactory builderFactory;
+
+  // Proto type of the key version
+  private final Type type;
+
+  // Generated protocol buffer class of the key version
+  private final Class<?> protoClass;
 
   // Derived method that will register all proto extensions for the key version
+  // (null if the key version has a generated registration)
   private final Method registerProtoExtensions;
 
-  // Meta-data annotation on the KeyVersion class
-  private final KeyVersionInfo info;
+  // Registration generated at compile time (null if registered reflectively)
+  private final KeyVersionRegistration registration;
 
   /**
    * Constructs a registered key version from a class and verifies that it
@@ -71,71 +81,118 @@ public class RegisteredKeyVersion {
     this.context = context;
     this.keyVersionClass = kvClass;
 
-    // Check the Builder class
-    try {
-      Class<?> builder =
-          Class.forName(kvClass.getName() + "$Builder", true, kvClass.getClassLoader());
-
-      if (!Builder.class.isAssignableFrom(builder)) {
-        // The builder class does not extend KeyVersion.Builder
-        throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_PARENT);
-      } else if (!kvClass.isAssignableFrom(builder.getMethod("build").getReturnType())) {
-        // There is no build() method returning the key version type
-        throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_BUILD);
+    KeyVersionRegistration registration = findRegistration(kvClass);
+    if (registration != null) {
+      // The processor only generates registrations for key versions that
+      // pass the static checks below. The builder constructor can still fail
+      // at runtime, so try it out once like the reflective path does.
+      try {
+        registration.newBuilder();
+      } catch (RuntimeException e) {
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
       }
+      builderClass = registration.getBuilderClass();
+      builderFactory = registration;
+      type = registration.getType();
+      protoClass = registration.getProtoClass();
+      registerProtoExtensions = null;
+    } else {
+      // Check the Builder class
+      try {
+        Class<?> builder =
+            Class.forName(kvClass.getName() + "$Builder", true, kvClass.getClassLoader());
 
-      // The following constructor extraction is reflectively type checked
-      @SuppressWarnings("unchecked")
-      Constructor<? extends Builder> constructor =
-          (Constructor<? extends Builder>) builder.getDeclaredConstructor();
+        if (!Builder.class.isAssignableFrom(builder)) {
+          // The builder class does not extend KeyVersion.Builder
+          throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_PARENT);
+        } else if (!kvClass.isAssignableFrom(builder.getMethod("build").getReturnType())) {
+          // There is no build() method returning the key version type
+          throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_BUILD);
+        }
 
-      // Constructor can only throw Errors or RuntimeExceptions
-      for (Class<?> exClass : constructor.getExceptionTypes()) {
-        if (!RuntimeException.class.isAssignableFrom(exClass)
-            && !Error.class.isAssignableFrom(exClass)) {
-          throw new KeyVersionException(kvClass, KeyVersionException.Reason.ILLEGAL_THROWS);
+        // The following constructor extraction is reflectively type checked
+        @SuppressWarnings("unchecked")
+        Constructor<? extends Builder> constructor =
+            (Constructor<? extends Builder>) builder.getDeclaredConstructor();
+
+        // Constructor can only throw Errors or RuntimeExceptions
+        for (Class<?> exClass : constructor.getExceptionTypes()) {
+          if (!RuntimeException.class.isAssignableFrom(exClass)
+              && !Error.class.isAssignableFrom(exClass)) {
+            throw new KeyVersionException(kvClass, KeyVersionException.Reason.ILLEGAL_THROWS);
+          }
         }
-      }
 
-      // Check that the builder can instantiate (should not be much overhead)
-      constructor.newInstance();
-      builderConstructor = constructor;
+        // Check that the builder can instantiate (should not be much overhead)
+        constructor.newInstance();
+        builderClass = constructor.getDeclaringClass();
+        builderFactory = new ReflectiveBuilderFactory(constructor);
 
-    } catch (ClassNotFoundException ex) {
-      // The builder class was not found
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.NO_BUILDER);
-    } catch (NoSuchMethodException ex) {
-      // This exception should only be thrown by the constructor check
-      // (and not the build method check).
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.NO_CONSTRUCTOR);
-    } catch (IllegalArgumentException e) {
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
-    } catch (InstantiationException e) {
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
-    } catch (IllegalAccessException e) {
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
-    } catch (InvocationTargetException e) {
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
-    }
+      } catch (ClassNotFoundException ex) {
+        // The builder class was not found
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.NO_BUILDER);
+      } catch (NoSuchMethodException ex) {
+        // This exception should only be thrown by the constructor check
+        // (and not the build method check).
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.NO_CONSTRUCTOR);
+      } catch (IllegalArgumentException e) {
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
+      } catch (InstantiationException e) {
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
+      } catch (IllegalAccessException e) {
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
+      } catch (InvocationTargetException e) {
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.INSTANTIATE_FAIL, e);
+      }
 
-    // Check the info annotation
-    info = kvClass.getAnnotation(KeyVersionInfo.class);
-    if (info == null) {
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.NO_METADATA);
+      // Check the info annotation
+      KeyVersionInfo info = kvClass.getAnnotation(KeyVersionInfo.class);
+      if (info == null) {
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.NO_METADATA);
+      }
+      type = info.type();
+      protoClass = info.proto();
+
+      // What we really need is the static registerAllExtensions() method on the
+      // generated proto. We cannot verify that the proto really belongs to
+      // the key version (or that it really is a generated proto).
+      try {
+        Method method = protoClass.getMethod("registerAllExtensions", ExtensionRegistry.class);
+        if (!Modifier.isStatic(method.getModifiers())) {
+          throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_PROTO);
+        }
+        registerProtoExtensions = method;
+      } catch (NoSuchMethodException ex) {
+        throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_PROTO);
+      }
     }
+    this.registration = registration;
+  }
 
-    // What we really need is the static registerAllExtensions() method on the
-    // generated proto. We cannot verify that the proto really belongs to
-    // the key version (or that it really is a generated proto).
+  /**
+   * Returns the registration generated for the key version class, or null if
+   * the class does not have one.
+   *
+   * @param kvClass Class of the key version implementation.
+   */
+  private static KeyVersionRegistration findRegistration(Class<? extends KeyVersion> kvClass) {
+    String name = kvClass.getName() + KeyVersionRegistration.CLASS_SUFFIX;
     try {
-      registerProtoExtensions =
-          info.proto().getMethod("registerAllExtensions", ExtensionRegistry.class);
-      if (!Modifier.isStatic(registerProtoExtensions.getModifiers())) {
-        throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_PROTO);
+      Class<?> regClass = Class.forName(name, true, kvClass.getClassLoader());
+      if (KeyVersionRegistration.class.isAssignableFrom(regClass)) {
+        KeyVersionRegistration registration = (KeyVersionRegistration) regClass.newInstance();
+        if (kvClass.equals(registration.getKeyVersionClass())) {
+          return registration;
+        }
       }
-    } catch (NoSuchMethodException ex) {
-      throw new KeyVersionException(kvClass, KeyVersionException.Reason.BAD_PROTO);
+    } catch (ClassNotFoundException ex) {
+      // No generated registration; fall back to reflection
+    } catch (InstantiationException ex) {
+      // Not a usable registration; fall back to reflection
+    } catch (IllegalAccessException ex) {
+      // Not a usable registration; fall back to reflection
     }
+    return null;
   }
 
   /**
@@ -146,24 +203,14 @@ public class RegisteredKeyVersion {
   }
 
   /**
-   * Instantiates a Builder for building the key version.
+   * Instantiates a Builder for building the key version. The builder draws
+   * key material from the pool of the context, if it has one.
    */
   Builder newBuilder() {
-    try {
-      // Use reflection to instantiate the builder
-      return builderConstructor.newInstance();
-    } catch (InvocationTargetException ex) {
-      return handleReflectionExecption(ex);
-    } catch (IllegalArgumentException ex) {
-      return handleReflectionExecption(ex);
-    } catch (InstantiationException ex) {
-      return handleReflectionExecption(ex);
-    } catch (IllegalAccessException ex) {
-      return handleReflectionExecption(ex);
-    }
+    return builderFactory.newBuilder().keyMaterialPool(context.getKeyMaterialPool());
   }
 
-  private Builder handleReflectionExecption(Exception ex) throws Error {
+  private static Builder handleReflectionExecption(Exception ex) throws Error {
     Throwable t = ex.getCause();
     // Re-throw throwables that do not need an explicit catch. (This should
     // not actually happen unless the builder has a flaky constructor.)
@@ -191,14 +238,18 @@ public class RegisteredKeyVersion {
    */
   void registerProtoExtensions(ExtensionRegistry registry)
       throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-    registerProtoExtensions.invoke(null, registry);
+    if (registration != null) {
+      registration.registerProtoExtensions(registry);
+    } else {
+      registerProtoExtensions.invoke(null, registry);
+    }
   }
 
   /**
    * Returns the proto type of the key version.
    */
   public Type getType() {
-    return info.type();
+    return type;
   }
 
   /**
@@ -212,14 +263,14 @@ public class RegisteredKeyVersion {
    * Returns the builder class for the key version.
    */
   public Class<? extends Builder> getBuilderClass() {
-    return builderConstructor.getDeclaringClass();
+    return builderClass;
   }
 
   /**
    * Returns the generated protocol buffer class for the key version.
    */
   public Class<?> getProtoClass() {
-    return info.proto();
+    return protoClass;
   }
 
   /**
@@ -254,6 +305,44 @@ public class RegisteredKeyVersion {
    */
   @Override
   public String toString() {
-    return info.type().name() + ":" + keyVersionClass.getName();
+    return type.name() + ":" + keyVersionClass.getName();
+  }
+
+  /**
+   * Default factory that instantiates builders through their reflected
+   * constructor.
+   */
+  private static class ReflectiveBuilderFactory implements BuilderFactory {
+
+    // Verified no-argument constructor of the builder class
+    private final Constructor<? extends Builder> constructor;
+
+    ReflectiveBuilderFactory(Constructor<? extends Builder> constructor) {
+      try {
+        // Skip the access checks on every instantiation
+        constructor.setAccessible(true);
+      } catch (SecurityException ex) {
+        // Not allowed; the checks will pass anyway for a public builder
+      }
+      this.constructor = constructor;
+    }
+
+    /**
+     * @see BuilderFactory#newBuilder()
+     */
+    public Builder newBuilder() {
+      try {
+        // Use reflection to instantiate the builder
+        return constructor.newInstance();
+      } catch (InvocationTargetException ex) {
+        return handleReflectionExecption(ex);
+      } catch (IllegalArgumentException ex) {
+        return handleReflectionExecption(ex);
+      } catch (InstantiationException ex) {
+        return handleReflectionExecption(ex);
+      } catch (IllegalAccessException ex) {
+        return handleReflectionExecption(ex);
+      }
+    }
   }
 }
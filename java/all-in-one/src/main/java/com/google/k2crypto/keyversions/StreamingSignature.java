@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.EncryptionException;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+
+/**
+ * Base class of the objects that sign or verify data supplied incrementally, so that payloads of
+ * any size can be processed in constant memory. Each object handles a single signature: data is
+ * added with the {@code update} methods, and the object is then finished by the signing or
+ * verification method of the subclass.
+ *
+ * <p>The underlying {@code Signature} is borrowed from the pool of the key version and returned
+ * once the object is finished. Objects that are abandoned before they are finished simply let the
+ * {@code Signature} be garbage collected.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @param <S> The concrete type, returned by the {@code update} methods for chaining
+ */
+public abstract class StreamingSignature<S extends StreamingSignature<S>> {
+
+  // Size of the buffer used when reading input streams
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  // Pool the signature was borrowed from
+  private final EnginePool<Signature> pool;
+
+  // Signature being updated, or null once finished
+  private Signature signature;
+
+  /**
+   * Borrows an initialized signature from the pool.
+   *
+   * @param pool Pool of signatures initialized for signing or verification
+   * @throws EncryptionException if no signature could be created
+   */
+  StreamingSignature(EnginePool<Signature> pool) throws EncryptionException {
+    this.pool = pool;
+    try {
+      this.signature = pool.acquire();
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException("Failed to create signature", e);
+    }
+  }
+
+  /**
+   * Adds a byte array to the data.
+   *
+   * @param data The data to add
+   * @return This object
+   * @throws EncryptionException
+   */
+  public S update(byte[] data) throws EncryptionException {
+    return update(data, 0, data.length);
+  }
+
+  /**
+   * Adds part of a byte array to the data.
+   *
+   * @param data Array holding the data to add
+   * @param offset Offset of the data in the array
+   * @param length Length of the data
+   * @return This object
+   * @throws EncryptionException
+   */
+  public S update(byte[] data, int offset, int length)
+      throws EncryptionException {
+    Signature signature = active();
+    try {
+      signature.update(data, offset, length);
+      return self();
+    } catch (Exception e) {
+      throw failed(e);
+    }
+  }
+
+  /**
+   * Adds the remaining bytes of a heap or direct buffer to the data. The position of the buffer is
+   * advanced to its limit.
+   *
+   * @param data The buffer of data to add
+   * @return This object
+   * @throws EncryptionException
+   */
+  public S update(ByteBuffer data) throws EncryptionException {
+    Signature signature = active();
+    try {
+      signature.update(data);
+      return self();
+    } catch (Exception e) {
+      throw failed(e);
+    }
+  }
+
+  /**
+   * Adds everything read from a stream to the data. The stream is read to the end but not closed.
+   *
+   * @param in The stream of data to add
+   * @return This object
+   * @throws EncryptionException
+   */
+  public S update(InputStream in) throws EncryptionException {
+    Signature signature = active();
+    try {
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        signature.update(buffer, 0, count);
+      }
+      return self();
+    } catch (Exception e) {
+      throw failed(e);
+    }
+  }
+
+  /**
+   * Adds the entire contents of a file to the data. The file is read through memory-mapped
+   * regions, so files of any size are processed in constant heap memory. The position of the
+   * channel is not used or modified.
+   *
+   * @param file The channel of the file to add
+   * @return This object
+   * @throws EncryptionException
+   */
+  public S update(FileChannel file) throws EncryptionException {
+    final Signature signature = active();
+    try {
+      MappedRegions.forEach(file, new MappedRegions.Handler() {
+        @Override
+        public void handle(ByteBuffer region) throws GeneralSecurityException {
+          signature.update(region);
+        }
+      });
+      return self();
+    } catch (Exception e) {
+      throw failed(e);
+    }
+  }
+
+  /**
+   * Returns this object as its concrete type.
+   */
+  @SuppressWarnings("unchecked")
+  private S self() {
+    return (S) this;
+  }
+
+  /**
+   * Returns the signature being updated.
+   *
+   * @throws IllegalStateException if this object is finished
+   */
+  final Signature active() {
+    if (signature == null) {
+      throw new IllegalStateException("Signature is already finished");
+    }
+    return signature;
+  }
+
+  /**
+   * Finishes this object after the signature completed normally, returning the signature to the
+   * pool.
+   */
+  final void finish() {
+    pool.release(signature);
+    signature = null;
+  }
+
+  /**
+   * Finishes this object after a failure, discarding the signature whose state is unknown, and
+   * returns the exception to throw.
+   */
+  final EncryptionException failed(Exception cause) {
+    signature = null;
+    return new EncryptionException("Signature update failed", cause);
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.EncryptionException;
+
+import java.security.Signature;
+
+/**
+ * Signs data supplied incrementally with a private key version. Obtain one from the private key
+ * version, add the data with the {@code update} methods and finish with {@link #sign()}.
+ */
+public final class StreamingSigner extends StreamingSignature<StreamingSigner> {
+
+  /**
+   * @param pool Pool of signatures initialized for signing
+   * @throws EncryptionException if no signature could be created
+   */
+  StreamingSigner(EnginePool<Signature> pool) throws EncryptionException {
+    super(pool);
+  }
+
+  /**
+   * Signs all the data added so far and finishes this signer.
+   *
+   * @return The digital signature
+   * @throws EncryptionException
+   * @throws IllegalStateException if this signer is already finished
+   */
+  public byte[] sign() throws EncryptionException {
+    Signature signature = active();
+    try {
+      byte[] result = signature.sign();
+      finish();
+      return result;
+    } catch (Exception e) {
+      throw failed(e);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import com.google.k2crypto.exceptions.EncryptionException;
+
+import java.security.Signature;
+
+/**
+ * Verifies a signature on data supplied incrementally with a public key version. Obtain one from
+ * the public key version, add the data with the {@code update} methods and finish with
+ * {@link #verify(byte[])}.
+ */
+public final class StreamingVerifier extends StreamingSignature<StreamingVerifier> {
+
+  /**
+   * @param pool Pool of signatures initialized for verification
+   * @throws EncryptionException if no signature could be created
+   */
+  StreamingVerifier(EnginePool<Signature> pool) throws EncryptionException {
+    super(pool);
+  }
+
+  /**
+   * Verifies a signature on all the data added so far and finishes this verifier.
+   *
+   * @param sig The digital signature to verify
+   * @return True if and only if the signature is valid for the data
+   * @throws EncryptionException
+   * @throws IllegalStateException if this verifier is already finished
+   */
+  public boolean verify(byte[] sig) throws EncryptionException {
+    Signature signature = active();
+    try {
+      boolean verified = signature.verify(sig);
+      finish();
+      return verified;
+    } catch (Exception e) {
+      throw failed(e);
+    }
+  }
+}
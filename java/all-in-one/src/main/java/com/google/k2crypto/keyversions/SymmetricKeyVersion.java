@@ -14,16 +14,39 @@
 
 package com.google.k2crypto.keyversions;
 
+import java.security.GeneralSecurityException;
+
 import javax.crypto.Cipher;
 
 /**
  * This class represents a SymmetricKeyVersion in K2. It is abstract and extended by specific
  * symmetric key version implementations such as AESKey
  *
+ * <p>Initialized ciphers are pooled per key version, so that any number of threads can encrypt
+ * and decrypt with the same key version concurrently. A cipher obtained with one of the
+ * {@code acquire} methods belongs to the caller until it is handed back with the matching
+ * {@code release} method.
+ *
  * @author John Maheswaran (maheswaran@google.com)
  */
 public abstract class SymmetricKeyVersion extends KeyVersion {
 
+  // Pool of initialized encrypting ciphers
+  private final EnginePool<Cipher> encryptingCiphers = new EnginePool<Cipher>() {
+    @Override
+    protected Cipher newEngine() throws GeneralSecurityException {
+      return newCipher(Cipher.ENCRYPT_MODE);
+    }
+  };
+
+  // Pool of initialized decrypting ciphers
+  private final EnginePool<Cipher> decryptingCiphers = new EnginePool<Cipher>() {
+    @Override
+    protected Cipher newEngine() throws GeneralSecurityException {
+      return newCipher(Cipher.DECRYPT_MODE);
+    }
+  };
+
   /**
    * Passes on the Builder to initialize the KeyVersion super-class.
    *
@@ -34,16 +57,145 @@ public abstract class SymmetricKeyVersion extends KeyVersion {
   }
 
   /**
-   * Method that returns the symmetric key version's encrypting Cipher
+   * Creates a new Cipher initialized with the key version.
+   *
+   * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @return A freshly initialized Cipher
+   * @throws GeneralSecurityException if the Cipher could not be created or initialized
+   */
+  protected abstract Cipher newCipher(int opmode) throws GeneralSecurityException;
+
+  /**
+   * Returns the length of the ciphertext produced when encrypting a plaintext of the given length
+   * with this key version. Use it to size output buffers before encrypting into them.
+   *
+   * @param plaintextLength Length of the plaintext in bytes
+   * @return The exact length of the ciphertext in bytes
+   */
+  public abstract int getEncryptedLength(int plaintextLength);
+
+  /**
+   * Returns the buffer size needed to decrypt a ciphertext of the given length with this key
+   * version. The plaintext itself may turn out shorter (e.g. once padding is removed).
+   *
+   * @param ciphertextLength Length of the ciphertext in bytes
+   * @return The maximum length of the plaintext in bytes
+   */
+  public abstract int getMaxDecryptedLength(int ciphertextLength);
+
+  /**
+   * Returns the length of the nonce that must be generated for every message encrypted with this
+   * key version and stored in front of its ciphertext, or 0 if the key version does not use
+   * per-message nonces (the default). Ciphers of key versions with nonces must be initialized with
+   * {@link #initCipher(Cipher, int, byte[])} before each message.
+   *
+   * @return The nonce length in bytes
+   */
+  public int getNonceLength() {
+    return 0;
+  }
+
+  /**
+   * Generates a fresh nonce for a message. Only supported by key versions with a non-zero
+   * {@link #getNonceLength() nonce length}.
+   *
+   * @return A new nonce of {@link #getNonceLength()} bytes
+   */
+  public byte[] newNonce() {
+    throw new UnsupportedOperationException("Key version does not use nonces");
+  }
+
+  /**
+   * Initializes a Cipher obtained from this key version, including pooled ones, for a message with
+   * the given nonce. Only supported by key versions with a non-zero
+   * {@link #getNonceLength() nonce length}.
+   *
+   * @param cipher A Cipher obtained from this key version in the same mode
+   * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+   * @param nonce The nonce of the message
+   * @throws GeneralSecurityException if the Cipher could not be initialized
+   */
+  public void initCipher(Cipher cipher, int opmode, byte[] nonce)
+      throws GeneralSecurityException {
+    throw new UnsupportedOperationException("Key version does not use nonces");
+  }
+
+  /**
+   * Obtains an encrypting Cipher from the pool of this key version. The Cipher is for the exclusive
+   * use of the caller and should be returned with {@link #releaseEncryptingCipher(Cipher)} once the
+   * operation has completed.
+   *
+   * @return An initialized encrypting Cipher
+   * @throws GeneralSecurityException if a new Cipher was needed and could not be created
+   */
+  public Cipher acquireEncryptingCipher() throws GeneralSecurityException {
+    return encryptingCiphers.acquire();
+  }
+
+  /**
+   * Returns an encrypting Cipher to the pool of this key version. The last operation on the Cipher
+   * must have completed normally (i.e. with {@code doFinal}); a Cipher abandoned midway, for
+   * example because of an exception, should be discarded rather than released.
+   *
+   * @param cipher A Cipher obtained from {@link #acquireEncryptingCipher()}
+   */
+  public void releaseEncryptingCipher(Cipher cipher) {
+    encryptingCiphers.release(cipher);
+  }
+
+  /**
+   * Obtains a decrypting Cipher from the pool of this key version. The Cipher is for the exclusive
+   * use of the caller and should be returned with {@link #releaseDecryptingCipher(Cipher)} once the
+   * operation has completed.
+   *
+   * @return An initialized decrypting Cipher
+   * @throws GeneralSecurityException if a new Cipher was needed and could not be created
+   */
+  public Cipher acquireDecryptingCipher() throws GeneralSecurityException {
+    return decryptingCiphers.acquire();
+  }
+
+  /**
+   * Returns a decrypting Cipher to the pool of this key version. The same restrictions as
+   * {@link #releaseEncryptingCipher(Cipher)} apply.
+   *
+   * @param cipher A Cipher obtained from {@link #acquireDecryptingCipher()}
+   */
+  public void releaseDecryptingCipher(Cipher cipher) {
+    decryptingCiphers.release(cipher);
+  }
+
+  /**
+   * Method that returns a new encrypting Cipher for the symmetric key version
    *
    * @return The Cipher used to encrypt data
+   * @deprecated Ciphers are not thread-safe, so this method no longer returns a shared instance.
+   *             Use {@link #acquireEncryptingCipher()} instead.
    */
-  public abstract Cipher getEncryptingCipher();
+  @Deprecated
+  public Cipher getEncryptingCipher() {
+    try {
+      return newCipher(Cipher.ENCRYPT_MODE);
+    } catch (GeneralSecurityException e) {
+      // Cannot happen once the key version has been built
+      throw new IllegalStateException("Failed to create encrypting cipher", e);
+    }
+  }
 
   /**
-   * Method that returns the symmetric key version's decrypting Cipher
+   * Method that returns a new decrypting Cipher for the symmetric key version
    *
    * @return The Cipher used to decrypt data
+   * @deprecated Ciphers are not thread-safe, so this method no longer returns a shared instance.
+   *             Use {@link #acquireDecryptingCipher()} instead.
    */
-  public abstract Cipher getDecryptingCipher();
+  @Deprecated
+  public Cipher getDecryptingCipher() {
+    try {
+      return newCipher(Cipher.DECRYPT_MODE);
+    } catch (GeneralSecurityException e) {
+      // Cannot happen once the key version has been built
+      throw new IllegalStateException("Failed to create decrypting cipher", e);
+    }
+  }
 }
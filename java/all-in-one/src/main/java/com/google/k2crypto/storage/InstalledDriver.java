@@ -17,6 +17,7 @@ package com.google.k2crypto.storage;
 import com.google.k2crypto.K2Context;
 import com.google.k2crypto.storage.driver.Driver;
 import com.google.k2crypto.storage.driver.DriverInfo;
+import com.google.k2crypto.storage.driver.DriverRegistration;
 import com.google.k2crypto.storage.driver.ReadableDriver;
 import com.google.k2crypto.storage.driver.WrappingDriver;
 import com.google.k2crypto.storage.driver.WritableDriver;
@@ -46,10 +47,16 @@ public class InstalledDriver {
   private final Class<? extends Driver> driverClass;
 
   // Constructor obtained from the driver class
+  // (null if the driver has a generated registration)
   private final Constructor<? extends Driver> constructor;
 
-  // Info annotation obtained from the driver class
-  private final DriverInfo info;
+  // Registration generated at compile time (null if installed reflectively)
+  private final DriverRegistration registration;
+
+  // Driver info, from the annotation or the generated registration
+  private final String id;
+  private final String name;
+  private final String version;
 
   // Driver capabilities, derived from the interfaces implemented
   private final boolean canRead;
@@ -86,53 +93,110 @@ public class InstalledDriver {
       throw new StorageDriverException(driverClass, StorageDriverException.Reason.USELESS);
     }
 
-    try {
-      // Check for a constructor with no arguments
-      constructor = driverClass.getDeclaredConstructor();
-      // Constructor can only throw Errors or RuntimeExceptions
-      for (Class<?> exClass : constructor.getExceptionTypes()) {
-        if (!RuntimeException.class.isAssignableFrom(exClass)
-            && !Error.class.isAssignableFrom(exClass)) {
-          throw new StorageDriverException(driverClass,
-              StorageDriverException.Reason.ILLEGAL_THROWS);
+    DriverRegistration registration = findRegistration(driverClass);
+    if (registration != null) {
+      // The processor only generates registrations for drivers that pass the
+      // static checks below. Try to instantiate the driver once, since its
+      // constructor can still fail at runtime.
+      try {
+        registration.newDriver();
+      } catch (RuntimeException ex) {
+        throw new StorageDriverException(driverClass,
+            StorageDriverException.Reason.INSTANTIATE_FAIL, ex);
+      }
+      constructor = null;
+      id = registration.getId();
+      name = registration.getName();
+      version = registration.getVersion();
+    } else {
+      try {
+        // Check for a constructor with no arguments
+        constructor = driverClass.getDeclaredConstructor();
+        // Constructor can only throw Errors or RuntimeExceptions
+        for (Class<?> exClass : constructor.getExceptionTypes()) {
+          if (!RuntimeException.class.isAssignableFrom(exClass)
+              && !Error.class.isAssignableFrom(exClass)) {
+            throw new StorageDriverException(driverClass,
+                StorageDriverException.Reason.ILLEGAL_THROWS);
+          }
         }
+        // Try to instantiate the driver (should work if driver is accessible)
+        constructor.newInstance();
+
+      } catch (NoSuchMethodException ex) {
+        // Constructor not found
+        throw new StorageDriverException(driverClass,
+            StorageDriverException.Reason.NO_CONSTRUCTOR);
+      } catch (InvocationTargetException ex) {
+        // Instantiation failed
+        throw new StorageDriverException(driverClass,
+            StorageDriverException.Reason.INSTANTIATE_FAIL);
+      } catch (IllegalArgumentException ex) {
+        // Instantiation failed
+        throw new StorageDriverException(driverClass,
+            StorageDriverException.Reason.INSTANTIATE_FAIL);
+      } catch (InstantiationException ex) {
+        // Instantiation failed
+        throw new StorageDriverException(driverClass,
+            StorageDriverException.Reason.INSTANTIATE_FAIL);
+      } catch (IllegalAccessException ex) {
+        // Instantiation failed
+        throw new StorageDriverException(driverClass,
+            StorageDriverException.Reason.INSTANTIATE_FAIL);
       }
-      // Try to instantiate the driver (should work if driver is accessible)
-      constructor.newInstance();
 
-    } catch (NoSuchMethodException ex) {
-      // Constructor not found
-      throw new StorageDriverException(driverClass, StorageDriverException.Reason.NO_CONSTRUCTOR);
-    } catch (InvocationTargetException ex) {
-      // Instantiation failed
-      throw new StorageDriverException(driverClass, StorageDriverException.Reason.INSTANTIATE_FAIL);
-    } catch (IllegalArgumentException ex) {
-      // Instantiation failed
-      throw new StorageDriverException(driverClass, StorageDriverException.Reason.INSTANTIATE_FAIL);
-    } catch (InstantiationException ex) {
-      // Instantiation failed
-      throw new StorageDriverException(driverClass, StorageDriverException.Reason.INSTANTIATE_FAIL);
-    } catch (IllegalAccessException ex) {
-      // Instantiation failed
-      throw new StorageDriverException(driverClass, StorageDriverException.Reason.INSTANTIATE_FAIL);
-    }
-
-    // Check that annotation is present
-    info = driverClass.getAnnotation(DriverInfo.class);
-    if (info == null) {
-      throw new StorageDriverException(driverClass, StorageDriverException.Reason.NO_METADATA);
+      // Check that annotation is present
+      DriverInfo info = driverClass.getAnnotation(DriverInfo.class);
+      if (info == null) {
+        throw new StorageDriverException(driverClass, StorageDriverException.Reason.NO_METADATA);
+      }
+      id = info.id();
+      name = info.name();
+      version = info.version();
     }
+    this.registration = registration;
 
     // Check that driver identifier is legal
-    if (!LEGAL_ID.matcher(info.id()).matches()) {
+    if (!LEGAL_ID.matcher(id).matches()) {
       throw new StorageDriverException(driverClass, StorageDriverException.Reason.ILLEGAL_ID);
     }
   }
 
+  /**
+   * Returns the registration generated for the driver class, or null if the
+   * class does not have one.
+   *
+   * @param driverClass Class of the driver implementation.
+   */
+  private static DriverRegistration findRegistration(Class<? extends Driver> driverClass) {
+    String name = driverClass.getName() + DriverRegistration.CLASS_SUFFIX;
+    try {
+      Class<?> regClass = Class.forName(name, true, driverClass.getClassLoader());
+      if (DriverRegistration.class.isAssignableFrom(regClass)) {
+        DriverRegistration registration = (DriverRegistration) regClass.newInstance();
+        if (driverClass.equals(registration.getDriverClass())) {
+          return registration;
+        }
+      }
+    } catch (ClassNotFoundException ex) {
+      // No generated registration; fall back to reflection
+    } catch (InstantiationException ex) {
+      // Not a usable registration; fall back to reflection
+    } catch (IllegalAccessException ex) {
+      // Not a usable registration; fall back to reflection
+    }
+    return null;
+  }
+
   /**
    * Instantiates a new store (driver) from the driver installation.
    */
   Driver instantiate() {
+    if (registration != null) {
+      Driver driver = registration.newDriver();
+      driver.initialize(context);
+      return driver;
+    }
     try {
       // Use reflection to instantiate the driver
       Driver driver = constructor.newInstance();
@@ -182,21 +246,21 @@ public class InstalledDriver {
    * Returns the identifier of the driver.
    */
   public String getId() {
-    return info.id();
+    return id;
   }
 
   /**
    * Returns the descriptive name of the driver.
    */
   public String getName() {
-    return info.name();
+    return name;
   }
 
   /**
    * Returns the version of the driver.
    */
   public String getVersion() {
-    return info.version();
+    return version;
   }
 
   /**
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.storage.driver;
+
+/**
+ * Registration of a {@link Driver} implementation, generated at compile time from its
+ * {@link DriverInfo} annotation by the K2 registration processor.
+ *
+ * <p>The generated class is named after the binary name of the driver class, followed by
+ * {@link #CLASS_SUFFIX}; e.g. {@code K2MemoryDriver} is registered by
+ * {@code K2MemoryDriver_Registration}, and a nested {@code Foo.Bar} by
+ * {@code Foo$Bar_Registration}. When a driver with a generated registration is installed, it
+ * is instantiated through the registration instead of its reflected constructor, and its info is
+ * taken from the registration instead of the annotation. The driver is still instantiated once when
+ * it is installed, so a constructor that fails is reported then. Drivers without one are still
+ * installed through reflection.
+ */
+public interface DriverRegistration {
+
+  /**
+   * Suffix appended to the name of the driver class to get the name of the
+   * generated registration class.
+   */
+  String CLASS_SUFFIX = "_Registration";
+
+  /**
+   * Returns the driver class.
+   */
+  Class<? extends Driver> getDriverClass();
+
+  /**
+   * Returns the identifier of the driver.
+   */
+  String getId();
+
+  /**
+   * Returns the descriptive name of the driver.
+   */
+  String getName();
+
+  /**
+   * Returns the version of the driver.
+   */
+  String getVersion();
+
+  /**
+   * Returns a new, uninitialized instance of the driver.
+   */
+  Driver newDriver();
+}
@@ -40,7 +40,6 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.regex.Pattern;
 
-import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.ExtensionRegistry;
 
 /**
@@ -302,12 +301,8 @@ public class K2FileSystemDriver implements Driver, ReadableDriver, WritableDrive
    */
   private static byte[] serializeKey(Key key) throws StoreIOException {
     try {
-      KeyData data = key.buildData().build();
-      byte[] bytes = new byte[data.getSerializedSize()];
-      CodedOutputStream cos = CodedOutputStream.newInstance(bytes);
-      data.writeTo(cos);
-      cos.checkNoSpaceLeft();
-      return bytes;
+      // the key caches its serialized data until it is modified
+      return key.getDataBytes().toByteArray();
     } catch (Exception ex) {
       throw new StoreIOException(StoreIOException.Reason.SERIALIZATION_ERROR, ex);
     }
@@ -146,7 +146,8 @@ public class K2MemoryDriver implements Driver, ReadableDriver, WritableDriver {
   public void save(Key key) throws StoreException {
     KeyData data;
     try {
-      data = key.buildData().build();
+      // the key caches its data until it is modified
+      data = key.getData();
     } catch (RuntimeException ex) {
       throw new StoreIOException(StoreIOException.Reason.SERIALIZATION_ERROR, ex);
     }
@@ -16,11 +16,16 @@ package com.google.k2crypto;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import com.google.k2crypto.KeyProto.KeyData;
 import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.exceptions.InvalidKeyDataException;
 import com.google.k2crypto.exceptions.KeyModifierException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
 import com.google.k2crypto.keyversions.KeyVersion;
 
 import org.junit.Test;
@@ -182,4 +187,74 @@ public class KeyModifierTest {
     // check that the Key primary is now the SECOND key version
     assertEquals(keyversion2, keymod.getPrimary());
   }
+
+  /**
+   * Test looking up KeyVersions by identifier and rejecting duplicates
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testKeyVersionLookupAndDuplicates() throws Exception {
+    KeyModifier keymod = new KeyModifier();
+    KeyVersion keyversion1 = keymod.addKeyVersion();
+    KeyVersion keyversion2 = keymod.addKeyVersion();
+    assertSame(keyversion1, keymod.getKeyVersion(keyversion1.getId()));
+    assertSame(keyversion2, keymod.getKeyVersion(keyversion2.getId()));
+    assertNull(keymod.getKeyVersion(new AESKeyVersion.Builder().build().getId()));
+
+    // an equal copy of a key version that is already in the Key is rejected
+    KeyVersion copy = new AESKeyVersion.Builder()
+        .matterVector(((AESKeyVersion) keyversion2).getKeyVersionMatter(), null).build();
+    assertTrue(keymod.containsKeyVersion(copy));
+    try {
+      keymod.addKeyVersion(copy);
+      fail("Duplicate KeyVersion should be rejected");
+    } catch (KeyModifierException expected) {
+      // expected
+    }
+    assertEquals(2, keymod.getKeyVersionsCount());
+
+    // the equal copy can be made the primary, and then cannot be removed
+    keymod.setPrimary(copy);
+    assertSame(keyversion2, keymod.getPrimary());
+    try {
+      keymod.removeKeyVersion(copy);
+      fail("Primary KeyVersion should not be removable");
+    } catch (KeyModifierException expected) {
+      // expected
+    }
+
+    // a KeyVersion that is not in the Key cannot be made the primary
+    try {
+      keymod.setPrimary(new AESKeyVersion.Builder().build());
+      fail("KeyVersion not in the Key should not become the primary");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertSame(keyversion2, keymod.getPrimary());
+  }
+
+  /**
+   * Test that Key data containing the same KeyVersion twice is rejected
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDuplicateKeyVersionData() throws Exception {
+    K2Context context = new K2Context();
+    context.getKeyVersionRegistry().register(AESKeyVersion.class);
+    KeyModifier keymod = new KeyModifier();
+    keymod.addKeyVersion();
+    keymod.addKeyVersion();
+    KeyData data = keymod.getKey().buildData().build();
+    assertEquals(2, new Key(context, data).getKeyVersionsCount());
+
+    KeyData duplicated = data.toBuilder().addKeyVersion(data.getKeyVersion(1)).build();
+    try {
+      new Key(context, duplicated);
+      fail("Key data with a duplicate KeyVersion should be rejected");
+    } catch (InvalidKeyDataException expected) {
+      assertEquals(InvalidKeyDataException.Reason.DUPLICATE_KEY_VERSION, expected.getReason());
+    }
+  }
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.k2crypto.KeyProto.KeyData;
+import com.google.k2crypto.exceptions.InvalidKeyDataException;
+import com.google.k2crypto.keyversions.ChaCha20KeyVersion;
+import com.google.k2crypto.keyversions.KeyVersion;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests loading a Key from protobuf data, where key versions other than the primary are built on
+ * first use, and using snapshots of a Key while it is being modified.
+ */
+public class KeyTest {
+
+  private K2Context context;
+
+  private ChaCha20KeyVersion[] keyVersions;
+
+  private KeyData data;
+
+  @Before
+  public void setUp() throws Exception {
+    context = new K2Context();
+    context.getKeyVersionRegistry().register(ChaCha20KeyVersion.class);
+    keyVersions = new ChaCha20KeyVersion[3];
+    Key key = new Key();
+    for (int i = 0; i < keyVersions.length; ++i) {
+      keyVersions[i] = new ChaCha20KeyVersion.Builder().build();
+      key.addKeyVersion(keyVersions[i]);
+    }
+    key.setPrimary(keyVersions[1]);
+    data = key.buildData().build();
+  }
+
+  /**
+   * Tests that a loaded key has the same key versions and data as the original
+   */
+  @Test
+  public void testLoad() throws Exception {
+    Key loaded = new Key(context, data);
+    assertEquals(keyVersions.length, loaded.getKeyVersionsCount());
+    assertEquals(keyVersions[1], loaded.getPrimary());
+    assertEquals(data.toByteString(), loaded.buildData().build().toByteString());
+
+    for (ChaCha20KeyVersion kv : keyVersions) {
+      assertTrue(loaded.containsKeyVersion(kv));
+      KeyVersion loadedKv = loaded.getKeyVersion(kv.getId());
+      assertEquals(kv, loadedKv);
+      assertNotSame(kv, loadedKv);
+      assertSame(loadedKv, loaded.getKeyVersion(kv.getId()));
+    }
+    // the data still matches once every key version has been built
+    assertEquals(data.toByteString(), loaded.buildData().build().toByteString());
+  }
+
+  /**
+   * Tests that data encrypted with an old key version decrypts with the loaded key, and that a key
+   * version that has not been built can be made the primary
+   */
+  @Test
+  public void testUseLoadedKeyVersions() throws Exception {
+    byte[] plaintext = "Get swole or die trying".getBytes();
+    byte[] ciphertext = SymmetricEncryption.encryptBytes(new Key(keyVersions[0]), plaintext);
+
+    Key loaded = new Key(context, data);
+    assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(loaded, ciphertext));
+
+    loaded.setPrimary(keyVersions[2]);
+    assertEquals(keyVersions[2], loaded.getPrimary());
+    assertEquals(2, loaded.buildData().getPrimary());
+    loaded.removeKeyVersion(keyVersions[0]);
+    assertEquals(keyVersions.length - 1, loaded.getKeyVersionsCount());
+  }
+
+  /**
+   * Tests that a key version that fails to build only fails when it is used, and then fails the
+   * same way every time, while a primary that fails to build fails the load
+   */
+  @Test
+  public void testBadKeyVersion() throws Exception {
+    ByteString badCore = ByteString.copyFrom(new byte[] {(byte) 0xFF});
+    KeyVersionData badKv = data.getKeyVersion(0).toBuilder().setCore(badCore).build();
+    KeyData badData = data.toBuilder().setKeyVersion(0, badKv).build();
+
+    Key loaded = new Key(context, badData);
+    assertEquals(keyVersions[1], loaded.getPrimary());
+    for (int i = 0; i < 2; ++i) {
+      try {
+        loaded.getKeyVersion(KeyVersion.computeId(badCore));
+        fail("Key version with a bad core should fail to build");
+      } catch (InvalidKeyDataException expected) {
+        assertEquals(InvalidKeyDataException.Reason.PROTO_PARSE, expected.getReason());
+      }
+    }
+    // the data is written out as it was loaded
+    assertEquals(badData.toByteString(), loaded.buildData().build().toByteString());
+
+    try {
+      new Key(context, badData.toBuilder().setPrimary(0).build());
+      fail("Primary with a bad core should fail to load");
+    } catch (InvalidKeyDataException expected) {
+      assertEquals(InvalidKeyDataException.Reason.PROTO_PARSE, expected.getReason());
+    }
+  }
+
+  /**
+   * Tests that a snapshot does not change when the key is modified
+   */
+  @Test
+  public void testSnapshot() throws Exception {
+    Key key = new Key(context, data);
+    Key.Snapshot snapshot = key.getSnapshot();
+    assertSame(snapshot, key.getSnapshot());
+    List<ByteString> ids = new ArrayList<ByteString>();
+    for (ChaCha20KeyVersion kv : keyVersions) {
+      ids.add(kv.getId());
+    }
+    assertEquals(ids, snapshot.getKeyVersionIds());
+
+    ChaCha20KeyVersion added = new ChaCha20KeyVersion.Builder().build();
+    key.addPrimaryKeyVersion(added);
+    key.removeKeyVersion(keyVersions[0]);
+    assertEquals(added, key.getPrimary());
+    assertEquals(Arrays.asList(ids.get(1), ids.get(2), added.getId()),
+        key.getSnapshot().getKeyVersionIds());
+
+    // the old snapshot still has the old state
+    assertEquals(keyVersions[1], snapshot.getPrimary());
+    assertEquals(keyVersions.length, snapshot.getKeyVersionsCount());
+    assertTrue(snapshot.containsKeyVersion(keyVersions[0]));
+    assertFalse(snapshot.containsKeyVersion(added));
+    assertEquals(keyVersions[0], snapshot.getKeyVersion(ids.get(0)));
+  }
+
+  /**
+   * Tests encrypting and decrypting with a Key from several threads while another thread keeps
+   * rotating it to new primaries and removes key versions
+   */
+  @Test
+  public void testConcurrentRotation() throws Exception {
+    final Key key = new Key(context, data);
+    final byte[] plaintext = "Get swole or die trying".getBytes();
+    final int rotations = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> results = new ArrayList<Future<?>>();
+      results.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int i = 0; i < rotations; ++i) {
+            key.addPrimaryKeyVersion(new ChaCha20KeyVersion.Builder().build());
+            if (i == rotations / 2) {
+              // readers never encrypt with key versions that were not primary while they ran
+              key.removeKeyVersion(keyVersions[0]);
+              key.removeKeyVersion(keyVersions[2]);
+            }
+          }
+          return null;
+        }
+      }));
+      for (int t = 0; t < 3; ++t) {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int i = 0; i < 1000; ++i) {
+              // every snapshot has its primary, and data encrypted with it decrypts
+              Key.Snapshot snapshot = key.getSnapshot();
+              assertTrue(snapshot.containsKeyVersion(snapshot.getPrimary()));
+              assertEquals(snapshot.getKeyVersionIds().size(), snapshot.getKeyVersionsCount());
+              byte[] ciphertext = SymmetricEncryption.encryptBytes(key, plaintext);
+              assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(key, ciphertext));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(keyVersions.length - 2 + rotations, key.getKeyVersionsCount());
+  }
+
+  /**
+   * Tests that the data of a key is cached until the key is modified
+   */
+  @Test
+  public void testDataCaching() throws Exception {
+    Key key = new Key(context, data);
+    KeyData cached = key.getData();
+    assertEquals(data, cached);
+    assertSame(cached, key.getData());
+    ByteString bytes = key.getDataBytes();
+    assertEquals(data.toByteString(), bytes);
+    assertSame(bytes, key.getDataBytes());
+
+    // modifying the key changes the data
+    ChaCha20KeyVersion added = new ChaCha20KeyVersion.Builder().build();
+    key.addPrimaryKeyVersion(added);
+    KeyData modified = key.getData();
+    assertEquals(keyVersions.length + 1, modified.getKeyVersionCount());
+    assertEquals(keyVersions.length, modified.getPrimary());
+    assertSame(added.getData(), modified.getKeyVersion(keyVersions.length));
+    assertEquals(modified.toByteString(), key.getDataBytes());
+    assertEquals(key.buildData().build(), modified);
+  }
+}
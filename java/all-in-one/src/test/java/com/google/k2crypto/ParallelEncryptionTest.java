@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import static com.google.k2crypto.TestFiles.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.AESKeyVersion.Mode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the ParallelEncryption class
+ */
+public class ParallelEncryptionTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Tests that parallel encryption gives the same output as serial encryption for every mode and
+   * for payloads that do not end on a segment or block boundary
+   */
+  @Test
+  public void testMatchesSerialEncryption() throws Exception {
+    ParallelEncryption parallel = new ParallelEncryption(executor, 0, 64, 4);
+    Random random = new Random(1);
+    for (Mode mode : Mode.values()) {
+      AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).build();
+      for (int length : new int[] {0, 1, 64, 65, 1000, 4096 + 7}) {
+        byte[] plaintext = new byte[length];
+        random.nextBytes(plaintext);
+        byte[] expected = SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+        byte[] ciphertext = parallel.encryptBytes(keyVersion, plaintext);
+        assertArrayEquals(expected, ciphertext);
+        assertArrayEquals(plaintext, parallel.decryptBytes(keyVersion, ciphertext));
+        assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(keyVersion, ciphertext));
+      }
+    }
+  }
+
+  /**
+   * Tests parallel encryption and decryption of files, overwriting longer existing output files
+   */
+  @Test
+  public void testEncryptDecryptFile() throws Exception {
+    byte[] plaintext = new byte[100000 + 5];
+    new Random(2).nextBytes(plaintext);
+    File plainFile = File.createTempFile("k2plain", null);
+    File encryptedFile = File.createTempFile("k2encrypted", null);
+    File decryptedFile = File.createTempFile("k2decrypted", null);
+    try {
+      FileOutputStream plainOut = new FileOutputStream(plainFile);
+      plainOut.write(plaintext);
+      plainOut.close();
+      FileOutputStream staleOut = new FileOutputStream(decryptedFile);
+      staleOut.write(new byte[plaintext.length * 2]);
+      staleOut.close();
+
+      for (Mode mode : new Mode[] {Mode.CTR, Mode.CBC}) {
+        AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).build();
+        byte[] expected = SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+        ParallelEncryption parallel = new ParallelEncryption(executor, 0, 4096, 4);
+
+        FileChannel in = new FileInputStream(plainFile).getChannel();
+        FileChannel out = new RandomAccessFile(encryptedFile, "rw").getChannel();
+        assertEquals(expected.length, parallel.encryptFile(keyVersion, in, out));
+        in.close();
+        out.close();
+        assertArrayEquals(expected, readFile(encryptedFile));
+
+        in = new FileInputStream(encryptedFile).getChannel();
+        out = new RandomAccessFile(decryptedFile, "rw").getChannel();
+        assertEquals(plaintext.length, parallel.decryptFile(keyVersion, in, out));
+        in.close();
+        out.close();
+        assertArrayEquals(plaintext, readFile(decryptedFile));
+      }
+    } finally {
+      plainFile.delete();
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests that parallel encryption completes when called from the only thread of the executor it
+   * runs on, instead of waiting forever for segments that can never start
+   */
+  @Test
+  public void testCalledFromExecutorThread() throws Exception {
+    final ExecutorService single = Executors.newSingleThreadExecutor();
+    try {
+      final ParallelEncryption parallel = new ParallelEncryption(single, 0, 64);
+      final AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(Mode.CTR).build();
+      final byte[] plaintext = new byte[4096 + 7];
+      new Random(3).nextBytes(plaintext);
+      byte[] ciphertext = single.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return parallel.encryptBytes(keyVersion, plaintext);
+        }
+      }).get(30, TimeUnit.SECONDS);
+      assertArrayEquals(SymmetricEncryption.encryptBytes(keyVersion, plaintext), ciphertext);
+    } finally {
+      single.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that parallel encryption completes on a bounded executor that rejects tasks once its only
+   * thread and queue slot are taken, however many segments there are
+   */
+  @Test
+  public void testSaturatedExecutor() throws Exception {
+    ExecutorService bounded = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(1));
+    try {
+      ParallelEncryption parallel = new ParallelEncryption(bounded, 0, 64, 8);
+      AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(Mode.CTR).build();
+      byte[] plaintext = new byte[64 * 1000];
+      new Random(4).nextBytes(plaintext);
+      assertArrayEquals(SymmetricEncryption.encryptBytes(keyVersion, plaintext),
+          parallel.encryptBytes(keyVersion, plaintext));
+    } finally {
+      bounded.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that the segment size must be a multiple of the AES block size
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnalignedSegmentSize() {
+    new ParallelEncryption(executor, 0, 100);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.k2crypto.keyversions.AESKeyVersion;
+import com.google.k2crypto.keyversions.AESKeyVersion.Mode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the SeekableDecryptingChannel class
+ */
+public class SeekableDecryptingChannelTest {
+
+  private AESKeyVersion keyVersion;
+
+  private byte[] plaintext;
+
+  private File encryptedFile;
+
+  private SeekableDecryptingChannel channel;
+
+  @Before
+  public void setUp() throws Exception {
+    keyVersion = new AESKeyVersion.Builder().mode(Mode.CTR).build();
+    plaintext = new byte[200000 + 3];
+    new Random(3).nextBytes(plaintext);
+    encryptedFile = File.createTempFile("k2encrypted", null);
+    FileOutputStream out = new FileOutputStream(encryptedFile);
+    out.write(SymmetricEncryption.encryptBytes(keyVersion, plaintext));
+    out.close();
+    channel = new SeekableDecryptingChannel(
+        keyVersion, new FileInputStream(encryptedFile).getChannel());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    channel.close();
+    encryptedFile.delete();
+  }
+
+  /**
+   * Tests reading the whole plaintext sequentially with small reads
+   */
+  @Test
+  public void testSequentialRead() throws Exception {
+    assertEquals(plaintext.length, channel.size());
+    ByteBuffer result = ByteBuffer.allocate(plaintext.length);
+    ByteBuffer chunk = ByteBuffer.allocateDirect(777);
+    while (channel.read(chunk) >= 0) {
+      chunk.flip();
+      result.put(chunk);
+      chunk.clear();
+    }
+    assertEquals(plaintext.length, channel.position());
+    assertArrayEquals(plaintext, result.array());
+  }
+
+  /**
+   * Tests reading ranges at random offsets, including unaligned ones and ones running past the end
+   */
+  @Test
+  public void testRandomAccessRead() throws Exception {
+    Random random = new Random(4);
+    for (int i = 0; i < 200; ++i) {
+      int offset = random.nextInt(plaintext.length);
+      int length = random.nextInt(5000) + 1;
+      int expectedLength = Math.min(length, plaintext.length - offset);
+      ByteBuffer dst = ByteBuffer.allocate(length);
+      assertEquals(expectedLength, channel.position(offset).read(dst));
+      assertEquals(offset + expectedLength, channel.position());
+      assertArrayEquals(Arrays.copyOfRange(plaintext, offset, offset + expectedLength),
+          Arrays.copyOf(dst.array(), expectedLength));
+    }
+  }
+
+  /**
+   * Tests reading at and beyond the end of the plaintext
+   */
+  @Test
+  public void testReadAtEnd() throws Exception {
+    assertEquals(-1, channel.position(plaintext.length).read(ByteBuffer.allocate(10)));
+    assertEquals(-1, channel.position(plaintext.length + 100L).read(ByteBuffer.allocate(10)));
+    assertEquals(0, channel.position(0).read(ByteBuffer.allocate(0)));
+  }
+
+  /**
+   * Tests that a closed channel cannot be used
+   */
+  @Test(expected = ClosedChannelException.class)
+  public void testClosed() throws Exception {
+    channel.close();
+    assertFalse(channel.isOpen());
+    channel.read(ByteBuffer.allocate(10));
+  }
+
+  /**
+   * Tests that only CTR mode key versions are accepted
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testRequiresCtrMode() throws Exception {
+    new SeekableDecryptingChannel(new AESKeyVersion.Builder().mode(Mode.CBC).build(),
+        new FileInputStream(encryptedFile).getChannel());
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import static com.google.k2crypto.TestFiles.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.k2crypto.exceptions.DecryptionException;
+import com.google.k2crypto.keyversions.AESKeyVersion;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the StreamingAEAD class
+ */
+public class StreamingAEADTest {
+
+  private static final int SEGMENT_SIZE = 64;
+
+  private static final int PLAINTEXT_SEGMENT_SIZE = SEGMENT_SIZE - 16;
+
+  private StreamingAEAD aead;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    aead = new StreamingAEAD(new AESKeyVersion.Builder().build(), SEGMENT_SIZE);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Tests encrypting and decrypting byte arrays of lengths around segment boundaries
+   */
+  @Test
+  public void testEncryptDecrypt() throws Exception {
+    Random random = new Random(5);
+    for (int length : new int[] {0, 1, PLAINTEXT_SEGMENT_SIZE - 1, PLAINTEXT_SEGMENT_SIZE,
+        PLAINTEXT_SEGMENT_SIZE + 1, PLAINTEXT_SEGMENT_SIZE * 3, 1000}) {
+      byte[] plaintext = new byte[length];
+      random.nextBytes(plaintext);
+      byte[] ciphertext = aead.encrypt(plaintext);
+      assertEquals(aead.getCiphertextLength(length), ciphertext.length);
+      assertArrayEquals(plaintext, aead.decrypt(ciphertext));
+    }
+  }
+
+  /**
+   * Tests that encrypting the same plaintext twice gives different ciphertexts
+   */
+  @Test
+  public void testFreshKeyPerMessage() throws Exception {
+    byte[] plaintext = new byte[100];
+    assertFalse(Arrays.equals(aead.encrypt(plaintext), aead.encrypt(plaintext)));
+  }
+
+  /**
+   * Tests that modified, truncated and reordered ciphertexts are rejected
+   */
+  @Test
+  public void testTamperingDetected() throws Exception {
+    byte[] plaintext = new byte[PLAINTEXT_SEGMENT_SIZE * 3];
+    byte[] ciphertext = aead.encrypt(plaintext);
+    int header = aead.getHeaderSize();
+
+    // flip a bit in each segment and in the header
+    for (int offset : new int[] {5, header + 3, header + SEGMENT_SIZE + 3, ciphertext.length - 1}) {
+      byte[] modified = ciphertext.clone();
+      modified[offset] ^= 1;
+      assertRejected(modified);
+    }
+    // drop the last segment, which makes the previous one appear last
+    assertRejected(Arrays.copyOf(ciphertext, ciphertext.length - SEGMENT_SIZE));
+    // cut into the middle of a segment
+    assertRejected(Arrays.copyOf(ciphertext, ciphertext.length - 5));
+    // swap the first two segments
+    byte[] swapped = ciphertext.clone();
+    System.arraycopy(ciphertext, header, swapped, header + SEGMENT_SIZE, SEGMENT_SIZE);
+    System.arraycopy(ciphertext, header + SEGMENT_SIZE, swapped, header, SEGMENT_SIZE);
+    assertRejected(swapped);
+    // decrypt with a different key version
+    try {
+      new StreamingAEAD(new AESKeyVersion.Builder().build(), SEGMENT_SIZE).decrypt(ciphertext);
+      fail("Decryption with the wrong key should fail");
+    } catch (DecryptionException expected) {
+      // expected
+    }
+  }
+
+  /**
+   * Tests that a decrypting stream returns verified segments before later ones are read, so reading
+   * can stop early
+   */
+  @Test
+  public void testStreamStopsEarly() throws Exception {
+    byte[] plaintext = new byte[PLAINTEXT_SEGMENT_SIZE * 4];
+    new Random(6).nextBytes(plaintext);
+    byte[] ciphertext = aead.encrypt(plaintext);
+    // corrupt the last segment, which must not matter when only reading the first two
+    ciphertext[ciphertext.length - 1] ^= 1;
+
+    InputStream in = aead.newDecryptingStream(new ByteArrayInputStream(ciphertext));
+    byte[] prefix = new byte[PLAINTEXT_SEGMENT_SIZE * 2];
+    new DataInputStream(in).readFully(prefix);
+    assertArrayEquals(Arrays.copyOf(plaintext, prefix.length), prefix);
+    in.close();
+  }
+
+  /**
+   * Tests parallel file encryption and decryption and single segment decryption out of order
+   */
+  @Test
+  public void testEncryptDecryptFile() throws Exception {
+    byte[] plaintext = new byte[100000 + 7];
+    new Random(7).nextBytes(plaintext);
+    File plainFile = File.createTempFile("k2plain", null);
+    File encryptedFile = File.createTempFile("k2encrypted", null);
+    File decryptedFile = File.createTempFile("k2decrypted", null);
+    try {
+      FileOutputStream plainOut = new FileOutputStream(plainFile);
+      plainOut.write(plaintext);
+      plainOut.close();
+
+      FileChannel in = new FileInputStream(plainFile).getChannel();
+      FileChannel out = new RandomAccessFile(encryptedFile, "rw").getChannel();
+      assertEquals(aead.getCiphertextLength(plaintext.length),
+          aead.encryptFile(in, out, executor, 4));
+      in.close();
+      out.close();
+      // files encrypted in parallel can be decrypted sequentially
+      byte[] ciphertext = readFile(encryptedFile);
+      assertArrayEquals(plaintext, aead.decrypt(ciphertext));
+
+      in = new FileInputStream(encryptedFile).getChannel();
+      out = new RandomAccessFile(decryptedFile, "rw").getChannel();
+      assertEquals(plaintext.length, aead.decryptFile(in, out, executor));
+      out.close();
+      assertArrayEquals(plaintext, readFile(decryptedFile));
+
+      ByteBuffer segment = ByteBuffer.allocate(PLAINTEXT_SEGMENT_SIZE);
+      for (int index : new int[] {2000, 3, plaintext.length / PLAINTEXT_SEGMENT_SIZE, 0}) {
+        segment.clear();
+        int length = aead.decryptSegment(in, index, segment);
+        int offset = index * PLAINTEXT_SEGMENT_SIZE;
+        assertEquals(Math.min(PLAINTEXT_SEGMENT_SIZE, plaintext.length - offset), length);
+        assertArrayEquals(Arrays.copyOfRange(plaintext, offset, offset + length),
+            Arrays.copyOf(segment.array(), length));
+      }
+      in.close();
+    } finally {
+      plainFile.delete();
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  /**
+   * Helper method to check that decrypting the ciphertext fails
+   */
+  private void assertRejected(byte[] ciphertext) {
+    try {
+      aead.decrypt(ciphertext);
+      fail("Tampered ciphertext should be rejected");
+    } catch (DecryptionException expected) {
+      // expected
+    }
+  }
+}
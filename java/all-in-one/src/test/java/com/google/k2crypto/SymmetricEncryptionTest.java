@@ -14,19 +14,44 @@
 
 package com.google.k2crypto;
 
+import static com.google.k2crypto.TestFiles.readFile;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import com.google.k2crypto.KeyProto.KeyData;
 import com.google.k2crypto.exceptions.BuilderException;
 import com.google.k2crypto.exceptions.DecryptionException;
 import com.google.k2crypto.exceptions.EncryptionException;
 import com.google.k2crypto.keyversions.AESKeyVersion;
 import com.google.k2crypto.keyversions.AESKeyVersion.Mode;
 import com.google.k2crypto.keyversions.AESKeyVersion.Padding;
+import com.google.k2crypto.keyversions.ChaCha20KeyVersion;
 import com.google.k2crypto.keyversions.SymmetricKeyVersion;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.crypto.Cipher;
+
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
@@ -74,6 +99,251 @@ public class SymmetricEncryptionTest {
 
   }
 
+  /**
+   * Tests encryption and decryption into caller-supplied arrays, including in place, for every
+   * mode and a range of lengths around the block size.
+   */
+  @Test
+  public void testEncryptDecryptIntoArrays() throws Exception {
+    Random random = new Random(42);
+    for (Mode mode : Mode.values()) {
+      AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).build();
+      for (int length : new int[] {0, 1, 15, 16, 17, 31, 32, 33, 1000}) {
+        byte[] plaintext = new byte[length];
+        random.nextBytes(plaintext);
+        byte[] expected = SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+        assertEquals(expected.length, keyVersion.getEncryptedLength(length));
+
+        // Separate arrays, at non-zero offsets
+        byte[] output = new byte[5 + keyVersion.getEncryptedLength(length)];
+        assertEquals(expected.length,
+            SymmetricEncryption.encryptBytes(keyVersion, plaintext, 0, length, output, 5));
+        assertArrayEquals(expected, Arrays.copyOfRange(output, 5, output.length));
+        byte[] decrypted = new byte[3 + keyVersion.getMaxDecryptedLength(expected.length)];
+        assertEquals(length, SymmetricEncryption.decryptBytes(keyVersion, output, 5,
+            expected.length, decrypted, 3));
+        assertArrayEquals(plaintext, Arrays.copyOfRange(decrypted, 3, 3 + length));
+
+        // In place, with the data at a non-zero offset
+        byte[] buffer = new byte[7 + keyVersion.getEncryptedLength(length)];
+        System.arraycopy(plaintext, 0, buffer, 7, length);
+        assertEquals(expected.length,
+            SymmetricEncryption.encryptInPlace(keyVersion, buffer, 7, length));
+        assertArrayEquals(expected, Arrays.copyOfRange(buffer, 7, buffer.length));
+        assertEquals(length,
+            SymmetricEncryption.decryptInPlace(keyVersion, buffer, 7, expected.length));
+        assertArrayEquals(plaintext, Arrays.copyOfRange(buffer, 7, 7 + length));
+      }
+    }
+  }
+
+  /**
+   * Tests that encrypting into an array that is too small fails.
+   */
+  @Test(expected = EncryptionException.class)
+  public void testEncryptIntoArrayTooSmall() throws Exception {
+    AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(Mode.CBC).build();
+    SymmetricEncryption.encryptBytes(keyVersion, new byte[16], 0, 16, new byte[16], 0);
+  }
+
+  /**
+   * Tests that encrypting and decrypting in place only allocates a small, fixed amount of memory,
+   * with a payload that is a sizeable part of the maximum heap, so that a second buffer of the same
+   * size would not fit in most test JVMs
+   */
+  @Test
+  public void testInPlaceMemory() throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported()
+        && allocations.isThreadAllocatedMemoryEnabled());
+    long threadId = Thread.currentThread().getId();
+
+    int length = (int) Math.min(Runtime.getRuntime().maxMemory() / 3, 256 << 20);
+    long maxAllocated = 1 << 20;
+    byte[] buffer = new byte[length + 16];
+    for (Mode mode : new Mode[] {Mode.CTR, Mode.CBC}) {
+      AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).build();
+      for (int i = 0; i < length; ++i) {
+        buffer[i] = (byte) i;
+      }
+
+      long before = allocations.getThreadAllocatedBytes(threadId);
+      int encryptedLength = SymmetricEncryption.encryptInPlace(keyVersion, buffer, 0, length);
+      long encrypted = allocations.getThreadAllocatedBytes(threadId);
+      assertEquals(length,
+          SymmetricEncryption.decryptInPlace(keyVersion, buffer, 0, encryptedLength));
+      long decrypted = allocations.getThreadAllocatedBytes(threadId);
+
+      assertTrue(mode + " encryption allocated " + (encrypted - before) + " bytes",
+          encrypted - before < maxAllocated);
+      assertTrue(mode + " decryption allocated " + (decrypted - encrypted) + " bytes",
+          decrypted - encrypted < maxAllocated);
+      for (int i = 0; i < length; ++i) {
+        if (buffer[i] != (byte) i) {
+          fail(mode + " data differs at " + i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests encryption and decryption between heap and direct byte buffers, checking that the results
+   * match the byte array methods and that buffer positions are updated.
+   */
+  @Test
+  public void testEncryptDecryptByteBuffers() throws Exception {
+    byte[] plaintext = "32980342yhio#$@^U and some more text to span blocks".getBytes();
+    for (Mode mode : Mode.values()) {
+      AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).build();
+      byte[] expected = SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+
+      for (boolean directSrc : new boolean[] {false, true}) {
+        for (boolean directDst : new boolean[] {false, true}) {
+          ByteBuffer src = allocate(plaintext.length + 3, directSrc);
+          src.position(3);
+          src.put(plaintext).flip().position(3);
+          ByteBuffer encrypted = allocate(expected.length + 16, directDst);
+          assertEquals(expected.length, SymmetricEncryption.encrypt(keyVersion, src, encrypted));
+          assertEquals(src.limit(), src.position());
+          assertEquals(expected.length, encrypted.position());
+
+          byte[] ciphertext = new byte[expected.length];
+          encrypted.flip();
+          encrypted.duplicate().get(ciphertext);
+          assertArrayEquals(expected, ciphertext);
+
+          ByteBuffer decrypted = allocate(expected.length, directSrc);
+          assertEquals(plaintext.length,
+              SymmetricEncryption.decrypt(keyVersion, encrypted, decrypted));
+          byte[] result = new byte[plaintext.length];
+          decrypted.flip();
+          decrypted.get(result);
+          assertArrayEquals(plaintext, result);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests that encrypting into a buffer that is too small fails without consuming the input.
+   */
+  @Test
+  public void testEncryptByteBufferTooSmall() throws Exception {
+    AESKeyVersion keyVersion = new AESKeyVersion.Builder().build();
+    ByteBuffer src = ByteBuffer.wrap(new byte[100]);
+    try {
+      SymmetricEncryption.encrypt(keyVersion, src, ByteBuffer.allocate(10));
+      fail();
+    } catch (EncryptionException expected) {
+      assertEquals(0, src.position());
+    }
+    // The key version remains usable afterwards
+    assertEquals(100, SymmetricEncryption.encrypt(keyVersion, src, ByteBuffer.allocate(100)));
+  }
+
+  /**
+   * Test encrypting and decrypting file channels with buffers both smaller and larger than the
+   * file, including one too large to be retained, comparing against the byte array methods
+   */
+  @Test
+  public void testEncryptDecryptFileChannels() throws Exception {
+    byte[] plaintext = new byte[100000];
+    new Random(42).nextBytes(plaintext);
+    File plainFile = File.createTempFile("k2plain", null);
+    File encryptedFile = File.createTempFile("k2encrypted", null);
+    File decryptedFile = File.createTempFile("k2decrypted", null);
+    try {
+      FileOutputStream plainOut = new FileOutputStream(plainFile);
+      plainOut.write(plaintext);
+      plainOut.close();
+
+      for (Mode mode : Mode.values()) {
+        AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).build();
+        byte[] expected = SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+
+        for (int bufferSize : new int[] {1, 100, 4096, 1 << 20, 4 << 20}) {
+          FileChannel in = new FileInputStream(plainFile).getChannel();
+          FileChannel out = new FileOutputStream(encryptedFile).getChannel();
+          assertEquals(expected.length,
+              SymmetricEncryption.encryptChannel(keyVersion, in, out, bufferSize));
+          in.close();
+          out.close();
+          assertArrayEquals(expected, readFile(encryptedFile));
+
+          in = new FileInputStream(encryptedFile).getChannel();
+          out = new FileOutputStream(decryptedFile).getChannel();
+          assertEquals(plaintext.length,
+              SymmetricEncryption.decryptChannel(keyVersion, in, out, bufferSize));
+          in.close();
+          out.close();
+          assertArrayEquals(plaintext, readFile(decryptedFile));
+        }
+      }
+    } finally {
+      plainFile.delete();
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  /**
+   * Helper method to allocate a heap or direct byte buffer
+   */
+  private static ByteBuffer allocate(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Tests that many threads can encrypt and decrypt with the same key version at the same time
+   * without corrupting each other's results.
+   */
+  @Test
+  public void testConcurrentEncryptDecrypt() throws Exception {
+    final int threads = 8;
+    for (Mode mode : Mode.values()) {
+      final AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).build();
+
+      // Expected ciphertexts are computed up-front on a single thread
+      final List<byte[]> plaintexts = new ArrayList<byte[]>();
+      final List<byte[]> ciphertexts = new ArrayList<byte[]>();
+      Random random = new Random(mode.ordinal());
+      for (int i = 0; i < 64; ++i) {
+        byte[] plaintext = new byte[random.nextInt(3000)];
+        random.nextBytes(plaintext);
+        plaintexts.add(plaintext);
+        ciphertexts.add(SymmetricEncryption.encryptBytes(keyVersion, plaintext));
+      }
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threads; ++t) {
+          results.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              for (int round = 0; round < 20; ++round) {
+                for (int i = 0; i < plaintexts.size(); ++i) {
+                  assertArrayEquals(ciphertexts.get(i),
+                      SymmetricEncryption.encryptBytes(keyVersion, plaintexts.get(i)));
+                  assertArrayEquals(plaintexts.get(i),
+                      SymmetricEncryption.decryptBytes(keyVersion, ciphertexts.get(i)));
+                }
+              }
+              return null;
+            }
+          }));
+        }
+        for (Future<Void> result : results) {
+          result.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+    }
+  }
+
   /**
    * This is a helper method used by the testAESKeyVersionBuilder test to test the encryption and
    * decryption methods of the AESKeyVersion class using a SPECIFIC KEYVERSION (specified by the
@@ -159,4 +429,102 @@ public class SymmetricEncryptionTest {
     return result;
   }
 
+  /**
+   * Tests encryption with the primary of a Key and decryption routed by the header after the
+   * primary has been rotated
+   */
+  @Test
+  public void testKeyEncryptionAcrossRotation() throws Exception {
+    byte[] plaintext = "Get swole or die trying".getBytes();
+    AESKeyVersion first = new AESKeyVersion.Builder().build();
+    Key key = new Key(first);
+    byte[] firstCiphertext = SymmetricEncryption.encryptBytes(key, plaintext);
+    assertEquals(SymmetricEncryption.KEY_CIPHERTEXT_FORMAT, firstCiphertext[0]);
+    assertArrayEquals(first.getShortId().toByteArray(),
+        Arrays.copyOfRange(firstCiphertext, 1, SymmetricEncryption.KEY_HEADER_LENGTH));
+
+    // rotate to a new primary of a different type
+    ChaCha20KeyVersion second = new ChaCha20KeyVersion.Builder().build();
+    key.addKeyVersion(second);
+    key.setPrimary(second);
+    byte[] secondCiphertext = SymmetricEncryption.encryptBytes(key, plaintext);
+    assertArrayEquals(second.getShortId().toByteArray(),
+        Arrays.copyOfRange(secondCiphertext, 1, SymmetricEncryption.KEY_HEADER_LENGTH));
+    assertEquals(SymmetricEncryption.KEY_HEADER_LENGTH + second.getEncryptedLength(
+        plaintext.length), secondCiphertext.length);
+
+    // both decrypt with the key
+    assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(key, firstCiphertext));
+    assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(key, secondCiphertext));
+
+    // the AES data is encrypted with its own IV, which follows the header
+    int ivOffset = SymmetricEncryption.KEY_HEADER_LENGTH;
+    int dataOffset = ivOffset + AESKeyVersion.getBlockSize();
+    assertArrayEquals(plaintext, first.newCipher(Cipher.DECRYPT_MODE,
+        Arrays.copyOfRange(firstCiphertext, ivOffset, dataOffset)).doFinal(
+            firstCiphertext, dataOffset, firstCiphertext.length - dataOffset));
+    assertFalse(Arrays.equals(firstCiphertext, SymmetricEncryption.encryptBytes(
+        new Key(first), plaintext)));
+
+    // bad headers are rejected
+    byte[] badFormat = secondCiphertext.clone();
+    badFormat[0] = 2;
+    assertKeyDecryptionFails(key, badFormat);
+    byte[] badId = secondCiphertext.clone();
+    badId[3] ^= 1;
+    assertKeyDecryptionFails(key, badId);
+    assertKeyDecryptionFails(key, Arrays.copyOf(secondCiphertext, 3));
+
+    // once the old key version is removed its data can no longer be decrypted
+    key.removeKeyVersion(first);
+    assertKeyDecryptionFails(key, firstCiphertext);
+    assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(key, secondCiphertext));
+  }
+
+  /**
+   * Tests that data encrypted with a Key still decrypts once the key has been saved and loaded
+   * again, for key versions with and without per-message nonces
+   */
+  @Test
+  public void testKeyEncryptionAfterReload() throws Exception {
+    byte[] plaintext = "Get swole or die trying".getBytes();
+    K2Context context = new K2Context();
+    context.getKeyVersionRegistry().register(AESKeyVersion.class);
+    context.getKeyVersionRegistry().register(ChaCha20KeyVersion.class);
+    List<SymmetricKeyVersion> keyVersions = new ArrayList<SymmetricKeyVersion>();
+    for (Mode mode : new Mode[] {Mode.CTR, Mode.CBC, Mode.OFB, Mode.CFB}) {
+      keyVersions.add(new AESKeyVersion.Builder().mode(mode).build());
+    }
+    keyVersions.add(new ChaCha20KeyVersion.Builder().build());
+    for (SymmetricKeyVersion keyVersion : keyVersions) {
+      Key key = new Key(keyVersion);
+      byte[] ciphertext = SymmetricEncryption.encryptBytes(key, plaintext);
+      Key loaded = new Key(context, KeyData.parseFrom(key.getDataBytes(),
+          context.getKeyVersionRegistry().getProtoExtensions()));
+      assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(loaded, ciphertext));
+      assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(loaded,
+          SymmetricEncryption.encryptBytes(loaded, plaintext)));
+    }
+  }
+
+  /**
+   * Tests that a Key whose primary has neither per-message nonces nor an IV cannot encrypt
+   */
+  @Test(expected = EncryptionException.class)
+  public void testKeyEncryptionWithoutIv() throws Exception {
+    SymmetricEncryption.encryptBytes(
+        new Key(new AESKeyVersion.Builder().mode(Mode.ECB).build()), new byte[16]);
+  }
+
+  /**
+   * Helper method to check that decrypting data with a Key fails
+   */
+  private static void assertKeyDecryptionFails(Key key, byte[] ciphertext) {
+    try {
+      SymmetricEncryption.decryptBytes(key, ciphertext);
+      fail("Decryption should fail");
+    } catch (DecryptionException expected) {
+      // expected
+    }
+  }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.k2crypto.keyversions.HMACKeyVersion;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the TreeHMAC class
+ */
+public class TreeHMACTest {
+
+  private static final int CHUNK_SIZE = 1000;
+
+  private ExecutorService executor;
+
+  private TreeHMAC treeHmac;
+
+  private File file;
+
+  private FileChannel channel;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(4);
+    treeHmac = new TreeHMAC(
+        HMACKeyVersion.generateHMAC(HMACKeyVersion.HMAC_SHA256), executor, CHUNK_SIZE, 4);
+    file = File.createTempFile("k2tree", null);
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    byte[] data = new byte[CHUNK_SIZE * 20 + 123];
+    new Random(9).nextBytes(data);
+    channel.write(ByteBuffer.wrap(data), 0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    channel.close();
+    file.delete();
+  }
+
+  /**
+   * Tests computing and verifying the root tag of a whole file
+   */
+  @Test
+  public void testVerifyTreeHMAC() throws Exception {
+    TreeHMAC.Index index = treeHmac.computeIndex(channel);
+    assertEquals(21, index.getChunkCount());
+    byte[] root = index.getRootTag();
+    assertArrayEquals(root, treeHmac.getTreeHMAC(channel));
+    assertTrue(treeHmac.verifyTreeHMAC(channel, root));
+
+    // modifying, extending or truncating the file changes the root tag
+    channel.write(ByteBuffer.wrap(new byte[] {1}), CHUNK_SIZE * 5 + 7);
+    assertFalse(treeHmac.verifyTreeHMAC(channel, root));
+    channel.truncate(CHUNK_SIZE * 20);
+    assertFalse(treeHmac.verifyTreeHMAC(channel, root));
+
+    // a different key version gives a different root tag
+    TreeHMAC other = new TreeHMAC(
+        HMACKeyVersion.generateHMAC(HMACKeyVersion.HMAC_SHA256), executor, CHUNK_SIZE);
+    assertFalse(other.verifyTreeHMAC(channel, treeHmac.getTreeHMAC(channel)));
+  }
+
+  /**
+   * Tests verifying single chunks with a stored index
+   */
+  @Test
+  public void testVerifyChunk() throws Exception {
+    TreeHMAC.Index computed = treeHmac.computeIndex(channel);
+    byte[] root = computed.getRootTag();
+    TreeHMAC.Index index = TreeHMAC.Index.fromByteArray(computed.toByteArray());
+    assertTrue(treeHmac.verifyIndex(index, root));
+
+    for (int chunk = 0; chunk < index.getChunkCount(); ++chunk) {
+      assertTrue(treeHmac.verifyChunk(channel, chunk, index, root));
+    }
+
+    // modifying one chunk only fails verification of that chunk
+    channel.write(ByteBuffer.wrap(new byte[] {1}), CHUNK_SIZE * 5 + 7);
+    for (int chunk = 0; chunk < index.getChunkCount(); ++chunk) {
+      assertEquals(chunk != 5, treeHmac.verifyChunk(channel, chunk, index, root));
+    }
+
+    // a tampered index does not match the root tag
+    byte[] stored = computed.toByteArray();
+    stored[stored.length - 1] ^= 1;
+    TreeHMAC.Index tampered = TreeHMAC.Index.fromByteArray(stored);
+    assertFalse(treeHmac.verifyIndex(tampered, root));
+    assertFalse(treeHmac.verifyChunk(channel, 0, tampered, root));
+  }
+
+  /**
+   * Tests verifying single chunks with an index that is verified against the root tag only once
+   */
+  @Test
+  public void testVerifyChunkWithVerifiedIndex() throws Exception {
+    TreeHMAC.Index computed = treeHmac.computeIndex(channel);
+    assertTrue(computed.isVerified());
+    byte[] root = computed.getRootTag();
+    TreeHMAC.Index loaded = TreeHMAC.Index.fromByteArray(computed.toByteArray());
+    assertFalse(loaded.isVerified());
+    TreeHMAC.Index index = treeHmac.verifiedIndex(loaded, root);
+    assertTrue(index.isVerified());
+    assertArrayEquals(root, index.getRootTag());
+
+    channel.write(ByteBuffer.wrap(new byte[] {1}), CHUNK_SIZE * 5 + 7);
+    for (int chunk = 0; chunk < index.getChunkCount(); ++chunk) {
+      assertEquals(chunk != 5, treeHmac.verifyChunk(channel, chunk, index));
+      assertEquals(chunk != 5, treeHmac.verifyChunk(channel, chunk, computed));
+    }
+
+    // a tampered index is not verified
+    byte[] stored = computed.toByteArray();
+    stored[stored.length - 1] ^= 1;
+    assertNull(treeHmac.verifiedIndex(TreeHMAC.Index.fromByteArray(stored), root));
+  }
+
+  /**
+   * Tests that single chunks cannot be verified with an index that has not been verified
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testVerifyChunkWithUnverifiedIndex() throws Exception {
+    TreeHMAC.Index loaded =
+        TreeHMAC.Index.fromByteArray(treeHmac.computeIndex(channel).toByteArray());
+    treeHmac.verifyChunk(channel, 0, loaded);
+  }
+
+  /**
+   * Tests the tree HMAC of an empty file
+   */
+  @Test
+  public void testEmptyFile() throws Exception {
+    channel.truncate(0);
+    TreeHMAC.Index index = treeHmac.computeIndex(channel);
+    assertEquals(0, index.getChunkCount());
+    assertTrue(treeHmac.verifyTreeHMAC(channel, index.getRootTag()));
+    assertTrue(treeHmac.verifyIndex(
+        TreeHMAC.Index.fromByteArray(index.toByteArray()), index.getRootTag()));
+  }
+}
@@ -16,6 +16,9 @@ package com.google.k2crypto.keyversions;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import com.google.k2crypto.SymmetricEncryption;
 import com.google.k2crypto.exceptions.BuilderException;
@@ -27,8 +30,11 @@ import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -80,6 +86,57 @@ public class AESKeyVersionTest {
     assertEquals(toSave.getAlgModePadding(), loaded.getAlgModePadding());
   }
 
+  /**
+   * Tests that ciphers are handed out exclusively and recycled once released.
+   */
+  @Test
+  public void testCipherPool() throws Exception {
+    AESKeyVersion keyVersion = new AESKeyVersion.Builder().build();
+
+    // Two outstanding ciphers must never be the same instance
+    Cipher first = keyVersion.acquireEncryptingCipher();
+    Cipher second = keyVersion.acquireEncryptingCipher();
+    assertNotSame(first, second);
+
+    // A released cipher is handed out again
+    keyVersion.releaseEncryptingCipher(second);
+    assertSame(second, keyVersion.acquireEncryptingCipher());
+
+    // Encrypting and decrypting ciphers come from separate pools
+    Cipher decrypting = keyVersion.acquireDecryptingCipher();
+    assertNotSame(first, decrypting);
+    assertArrayEquals("pool".getBytes(), decrypting.doFinal(first.doFinal("pool".getBytes())));
+    keyVersion.releaseEncryptingCipher(first);
+    keyVersion.releaseDecryptingCipher(decrypting);
+  }
+
+  /**
+   * Tests that counter ciphers continue the keystream at the requested block, including when the
+   * counter carries over into the upper bytes of the IV.
+   */
+  @Test
+  public void testNewCounterCipher() throws Exception {
+    byte[] iv = new byte[16];
+    Arrays.fill(iv, 8, 16, (byte) 0xFF);
+    AESKeyVersion keyVersion = new AESKeyVersion.Builder()
+        .matterVector(new byte[16], iv).build();
+    byte[] plaintext = new byte[16 * 5];
+    byte[] expected = keyVersion.acquireEncryptingCipher().doFinal(plaintext);
+
+    for (int block = 0; block < 5; ++block) {
+      byte[] actual = keyVersion.newCounterCipher(Cipher.ENCRYPT_MODE, block)
+          .doFinal(plaintext, block * 16, plaintext.length - block * 16);
+      assertArrayEquals(Arrays.copyOfRange(expected, block * 16, expected.length), actual);
+    }
+
+    try {
+      new AESKeyVersion.Builder().mode(Mode.CBC).build().newCounterCipher(Cipher.ENCRYPT_MODE, 0);
+      fail("Counter ciphers should require CTR mode");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
   /**
    * This tests the encryption and decryption methods of the AESKeyVersion class.
    *
@@ -97,6 +154,36 @@ public class AESKeyVersionTest {
     testEncryptDecryptKeyVersion(keyVersion);
   }
 
+  /**
+   * Tests that CFB and OFB key versions keep the PKCS5 padding they have always been used with, so
+   * that they read ciphertext written by plain JCE with that padding and write the same ciphertext.
+   */
+  @Test
+  public void testPaddedStreamModes() throws Exception {
+    byte[] matter = new byte[16];
+    byte[] iv = new byte[16];
+    for (int i = 0; i < 16; ++i) {
+      matter[i] = (byte) i;
+      iv[i] = (byte) (100 + i);
+    }
+    byte[] plaintext = "Hello".getBytes();
+    for (Mode mode : new Mode[] {Mode.CFB, Mode.OFB}) {
+      AESKeyVersion keyVersion = new AESKeyVersion.Builder().mode(mode).padding(Padding.PKCS5)
+          .matterVector(matter, iv).build();
+      assertEquals("AES/" + mode + "/PKCS5padding", keyVersion.getAlgModePadding());
+
+      // ciphertext produced with the padding
+      Cipher cipher = Cipher.getInstance("AES/" + mode + "/PKCS5Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(matter, "AES"), new IvParameterSpec(iv));
+      byte[] ciphertext = cipher.doFinal(plaintext);
+      assertEquals(16, ciphertext.length);
+      assertEquals(ciphertext.length, keyVersion.getEncryptedLength(plaintext.length));
+
+      assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(keyVersion, ciphertext));
+      assertArrayEquals(ciphertext, SymmetricEncryption.encryptBytes(keyVersion, plaintext));
+    }
+  }
+
   /**
    * This tests loading a keyVersion matter byte array and using it to encrypt and decrypt a
    * message.
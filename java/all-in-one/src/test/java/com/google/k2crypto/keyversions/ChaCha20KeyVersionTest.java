@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.k2crypto.K2Context;
+import com.google.k2crypto.SymmetricEncryption;
+import com.google.k2crypto.exceptions.DecryptionException;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+import com.google.k2crypto.keyversions.KeyVersionProto.Type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ChaCha20KeyVersion class
+ */
+public class ChaCha20KeyVersionTest {
+
+  private ChaCha20KeyVersion keyVersion;
+
+  @Before
+  public void setUp() throws Exception {
+    keyVersion = new ChaCha20KeyVersion.Builder().build();
+  }
+
+  /**
+   * Tests that the ChaCha20KeyVersion correctly saves to and loads from proto data through the
+   * registry
+   */
+  @Test
+  public void testSaveLoad() throws Exception {
+    K2Context context = new K2Context();
+    KeyVersionRegistry registry = context.getKeyVersionRegistry();
+    registry.register(ChaCha20KeyVersion.class);
+
+    KeyVersionData kvData = keyVersion.buildData().build();
+    assertEquals(Type.CHACHA20, kvData.getType());
+    ChaCha20KeyVersion loaded = (ChaCha20KeyVersion) registry.newBuilder(Type.CHACHA20)
+        .withData(KeyVersionData.parseFrom(kvData.toByteString(), registry.getProtoExtensions()),
+            registry.getProtoExtensions())
+        .build();
+    assertEquals(keyVersion, loaded);
+    assertArrayEquals(keyVersion.getKeyVersionMatter(), loaded.getKeyVersionMatter());
+
+    // messages encrypted with one can be decrypted with the other
+    byte[] plaintext = "Get swole or die trying".getBytes();
+    assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(loaded,
+        SymmetricEncryption.encryptBytes(keyVersion, plaintext)));
+  }
+
+  /**
+   * Tests that every message gets a fresh nonce and that modified or truncated ciphertexts are
+   * rejected
+   */
+  @Test
+  public void testNoncesAndTampering() throws Exception {
+    byte[] plaintext = new byte[100];
+    byte[] ciphertext = SymmetricEncryption.encryptBytes(keyVersion, plaintext);
+    assertEquals(keyVersion.getEncryptedLength(plaintext.length), ciphertext.length);
+    assertFalse(Arrays.equals(ciphertext, SymmetricEncryption.encryptBytes(keyVersion, plaintext)));
+
+    // flip a bit in the nonce, the encrypted data and the tag
+    for (int offset : new int[] {0, ChaCha20KeyVersion.NONCE_LENGTH + 5, ciphertext.length - 1}) {
+      byte[] modified = ciphertext.clone();
+      modified[offset] ^= 1;
+      assertRejected(modified);
+    }
+    assertRejected(Arrays.copyOf(ciphertext, ciphertext.length - 1));
+    assertRejected(Arrays.copyOf(ciphertext, ChaCha20KeyVersion.NONCE_LENGTH - 1));
+    try {
+      SymmetricEncryption.decryptBytes(new ChaCha20KeyVersion.Builder().build(), ciphertext);
+      fail("Decryption with the wrong key should fail");
+    } catch (DecryptionException expected) {
+      // expected
+    }
+  }
+
+  /**
+   * Tests encryption and decryption into caller-supplied arrays and in place
+   */
+  @Test
+  public void testEncryptDecryptIntoArrays() throws Exception {
+    Random random = new Random(17);
+    for (int length : new int[] {0, 1, 63, 64, 65, 1000}) {
+      byte[] plaintext = new byte[length];
+      random.nextBytes(plaintext);
+      int encryptedLength = keyVersion.getEncryptedLength(length);
+
+      byte[] output = new byte[5 + encryptedLength];
+      assertEquals(encryptedLength,
+          SymmetricEncryption.encryptBytes(keyVersion, plaintext, 0, length, output, 5));
+      assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(keyVersion,
+          Arrays.copyOfRange(output, 5, output.length)));
+      byte[] decrypted = new byte[3 + keyVersion.getMaxDecryptedLength(encryptedLength)];
+      assertEquals(length,
+          SymmetricEncryption.decryptBytes(keyVersion, output, 5, encryptedLength, decrypted, 3));
+      assertArrayEquals(plaintext, Arrays.copyOfRange(decrypted, 3, 3 + length));
+
+      byte[] buffer = new byte[7 + encryptedLength];
+      System.arraycopy(plaintext, 0, buffer, 7, length);
+      assertEquals(encryptedLength,
+          SymmetricEncryption.encryptInPlace(keyVersion, buffer, 7, length));
+      assertEquals(length,
+          SymmetricEncryption.decryptInPlace(keyVersion, buffer, 7, encryptedLength));
+      assertArrayEquals(plaintext, Arrays.copyOfRange(buffer, 7, 7 + length));
+    }
+  }
+
+  /**
+   * Tests encryption and decryption of heap and direct byte buffers
+   */
+  @Test
+  public void testEncryptDecryptByteBuffers() throws Exception {
+    byte[] plaintext = "32980342yhio#$@^U and some more text to span blocks".getBytes();
+    int encryptedLength = keyVersion.getEncryptedLength(plaintext.length);
+    for (boolean direct : new boolean[] {false, true}) {
+      ByteBuffer src = direct ? ByteBuffer.allocateDirect(plaintext.length)
+          : ByteBuffer.allocate(plaintext.length);
+      src.put(plaintext).flip();
+      ByteBuffer encrypted = direct ? ByteBuffer.allocateDirect(encryptedLength + 10)
+          : ByteBuffer.allocate(encryptedLength + 10);
+      encrypted.position(10);
+      assertEquals(encryptedLength, SymmetricEncryption.encrypt(keyVersion, src, encrypted));
+      assertEquals(10 + encryptedLength, encrypted.position());
+
+      encrypted.flip().position(10);
+      ByteBuffer decrypted = ByteBuffer.allocate(encryptedLength);
+      assertEquals(plaintext.length,
+          SymmetricEncryption.decrypt(keyVersion, encrypted, decrypted));
+      assertArrayEquals(plaintext, Arrays.copyOf(decrypted.array(), plaintext.length));
+    }
+  }
+
+  /**
+   * Tests encryption and decryption of streams and file channels
+   */
+  @Test
+  public void testEncryptDecryptStreamsAndChannels() throws Exception {
+    byte[] plaintext = new byte[100000];
+    new Random(18).nextBytes(plaintext);
+
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    SymmetricEncryption.encryptStream(keyVersion, new ByteArrayInputStream(plaintext), encrypted);
+    byte[] ciphertext = encrypted.toByteArray();
+    assertArrayEquals(plaintext, SymmetricEncryption.decryptBytes(keyVersion, ciphertext));
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    SymmetricEncryption.decryptStream(keyVersion, new ByteArrayInputStream(ciphertext), decrypted);
+    assertArrayEquals(plaintext, decrypted.toByteArray());
+
+    File plainFile = File.createTempFile("k2plain", null);
+    File encryptedFile = File.createTempFile("k2encrypted", null);
+    File decryptedFile = File.createTempFile("k2decrypted", null);
+    try {
+      FileOutputStream plainOut = new FileOutputStream(plainFile);
+      plainOut.write(plaintext);
+      plainOut.close();
+
+      FileChannel in = new FileInputStream(plainFile).getChannel();
+      FileChannel out = new FileOutputStream(encryptedFile).getChannel();
+      assertEquals(keyVersion.getEncryptedLength(plaintext.length),
+          SymmetricEncryption.encryptChannel(keyVersion, in, out, 4096));
+      in.close();
+      out.close();
+
+      in = new FileInputStream(encryptedFile).getChannel();
+      out = new FileOutputStream(decryptedFile).getChannel();
+      assertEquals(plaintext.length,
+          SymmetricEncryption.decryptChannel(keyVersion, in, out, 4096));
+      in.close();
+      out.close();
+      FileInputStream result = new FileInputStream(decryptedFile);
+      byte[] data = new byte[plaintext.length];
+      assertEquals(plaintext.length, result.read(data));
+      result.close();
+      assertArrayEquals(plaintext, data);
+    } finally {
+      plainFile.delete();
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  /**
+   * Helper method to check that decrypting the ciphertext fails
+   */
+  private void assertRejected(byte[] ciphertext) {
+    try {
+      SymmetricEncryption.decryptBytes(keyVersion, ciphertext);
+      fail("Tampered ciphertext should be rejected");
+    } catch (DecryptionException expected) {
+      // expected
+    }
+  }
+}
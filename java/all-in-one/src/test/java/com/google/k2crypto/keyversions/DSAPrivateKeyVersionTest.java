@@ -15,11 +15,27 @@
 package com.google.k2crypto.keyversions;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.k2crypto.exceptions.BuilderException;
 import com.google.k2crypto.exceptions.EncryptionException;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.Test;
 
 /**
@@ -58,6 +74,91 @@ public class DSAPrivateKeyVersionTest {
     assertFalse(verified);
   }
 
+  /**
+   * Tests that the public key version is created once, and that a single key version pair signs
+   * and verifies correctly when used by many threads at once.
+   */
+  @Test
+  public void testConcurrentSignVerify() throws Exception {
+    final DSAPrivateKeyVersion privateKeyVersion = new DSAPrivateKeyVersion.Builder().build();
+    final DSAPublicKeyVersion publicKeyVersion = privateKeyVersion.getPublic();
+    assertSame(publicKeyVersion, privateKeyVersion.getPublic());
 
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 8; ++i) {
+        final byte[] data = ("thread " + i).getBytes();
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int j = 0; j < 50; ++j) {
+              byte[] signature = privateKeyVersion.signData(data);
+              if (!publicKeyVersion.verifySig(data, signature)
+                  || publicKeyVersion.verifySig("other data".getBytes(), signature)) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
 
+  /**
+   * Tests signing and verifying data supplied incrementally from arrays, buffers, streams and
+   * files, which must match signing the whole array at once.
+   */
+  @Test
+  public void testStreamingSignVerify() throws Exception {
+    DSAPrivateKeyVersion privateKeyVersion = new DSAPrivateKeyVersion.Builder().build();
+    DSAPublicKeyVersion publicKeyVersion = privateKeyVersion.getPublic();
+    byte[] data = new byte[100000];
+    new Random(11).nextBytes(data);
+
+    // sign the data in pieces from different sources
+    StreamingSigner signer = privateKeyVersion.newSigner();
+    signer.update(data, 0, 1000);
+    ByteBuffer direct = ByteBuffer.allocateDirect(9000);
+    direct.put(data, 1000, 9000).flip();
+    signer.update(direct);
+    signer.update(new ByteArrayInputStream(data, 10000, data.length - 10000));
+    byte[] signature = signer.sign();
+    assertTrue(publicKeyVersion.verifySig(data, signature));
+
+    try {
+      signer.sign();
+      fail("A finished signer should not be reusable");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+
+    // verify the signature over a file
+    File file = File.createTempFile("k2signed", null);
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(data);
+      out.close();
+      FileChannel channel = new FileInputStream(file).getChannel();
+      try {
+        assertTrue(publicKeyVersion.newVerifier().update(channel).verify(signature));
+        assertTrue(publicKeyVersion.verifySig(
+            data, privateKeyVersion.newSigner().update(channel).sign()));
+      } finally {
+        channel.close();
+      }
+    } finally {
+      file.delete();
+    }
+
+    StreamingVerifier verifier = publicKeyVersion.newVerifier();
+    verifier.update(data, 0, data.length - 1);
+    assertFalse(verifier.verify(signature));
+  }
 }
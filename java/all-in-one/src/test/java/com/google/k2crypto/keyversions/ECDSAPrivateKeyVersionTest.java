@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.k2crypto.K2Context;
+import com.google.k2crypto.Key;
+import com.google.k2crypto.KeyProto.KeyData;
+import com.google.k2crypto.exceptions.BuilderException;
+import com.google.k2crypto.keyversions.ECDSAPrivateKeyVersion.Curve;
+import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
+import com.google.k2crypto.keyversions.KeyVersionProto.Type;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test signing and verification for ECDSAPrivateKeyVersion class using ECDSAPublicKeyVersion for
+ * verification
+ */
+public class ECDSAPrivateKeyVersionTest {
+
+  /**
+   * Tests digital signing and verification on every curve
+   */
+  @Test
+  public void testSignVerify() throws Exception {
+    byte[] data = "Get swole or die trying".getBytes();
+    for (Curve curve : Curve.values()) {
+      ECDSAPrivateKeyVersion privateKeyVersion =
+          new ECDSAPrivateKeyVersion.Builder().curve(curve).build();
+      ECDSAPublicKeyVersion publicKeyVersion = privateKeyVersion.getPublic();
+      assertSame(publicKeyVersion, privateKeyVersion.getPublic());
+      assertEquals(curve, publicKeyVersion.getCurve());
+
+      byte[] signature = privateKeyVersion.signData(data);
+      assertTrue(publicKeyVersion.verifySig(data, signature));
+      assertFalse(publicKeyVersion.verifySig("other data".getBytes(), signature));
+
+      // the signature does not verify using a different public key
+      ECDSAPrivateKeyVersion other = new ECDSAPrivateKeyVersion.Builder().curve(curve).build();
+      assertFalse(other.getPublic().verifySig(data, signature));
+    }
+  }
+
+  /**
+   * Tests signing and verifying data supplied incrementally, which must match signing the whole
+   * array at once
+   */
+  @Test
+  public void testStreamingSignVerify() throws Exception {
+    ECDSAPrivateKeyVersion privateKeyVersion = new ECDSAPrivateKeyVersion.Builder().build();
+    ECDSAPublicKeyVersion publicKeyVersion = privateKeyVersion.getPublic();
+    byte[] data = new byte[10000];
+    new Random(12).nextBytes(data);
+
+    StreamingSigner signer = privateKeyVersion.newSigner();
+    signer.update(data, 0, 1000);
+    ByteBuffer direct = ByteBuffer.allocateDirect(4000);
+    direct.put(data, 1000, 4000).flip();
+    signer.update(direct);
+    signer.update(new ByteArrayInputStream(data, 5000, data.length - 5000));
+    byte[] signature = signer.sign();
+    assertTrue(publicKeyVersion.verifySig(data, signature));
+
+    assertTrue(publicKeyVersion.newVerifier().update(data).verify(signature));
+    assertFalse(publicKeyVersion.newVerifier().update(data, 1, data.length - 1).verify(signature));
+  }
+
+  /**
+   * Tests that a key version saved as protobuf data and loaded through the registry verifies
+   * signatures made by the original
+   */
+  @Test
+  public void testSaveLoad() throws Exception {
+    K2Context context = new K2Context();
+    KeyVersionRegistry registry = context.getKeyVersionRegistry();
+    registry.register(ECDSAPrivateKeyVersion.class);
+
+    ECDSAPrivateKeyVersion original =
+        new ECDSAPrivateKeyVersion.Builder().curve(Curve.P384).build();
+    KeyVersionData kvData = original.buildData().build();
+    assertEquals(Type.ECDSA, kvData.getType());
+
+    ECDSAPrivateKeyVersion loaded = (ECDSAPrivateKeyVersion) registry.newBuilder(Type.ECDSA)
+        .withData(KeyVersionData.parseFrom(kvData.toByteString(), registry.getProtoExtensions()),
+            registry.getProtoExtensions())
+        .build();
+    assertEquals(original, loaded);
+    assertEquals(Curve.P384, loaded.getCurve());
+
+    byte[] data = "Get swole or die trying".getBytes();
+    assertTrue(original.getPublic().verifySig(data, loaded.signData(data)));
+    assertTrue(loaded.getPublic().verifySig(data, original.signData(data)));
+  }
+
+  /**
+   * Tests that a public key version saved on its own, also as part of a Key, loads through the
+   * registry and verifies signatures made by the private key version
+   */
+  @Test
+  public void testSaveLoadPublic() throws Exception {
+    K2Context context = new K2Context();
+    KeyVersionRegistry registry = context.getKeyVersionRegistry();
+    registry.register(ECDSAPrivateKeyVersion.class);
+    registry.register(ECDSAPublicKeyVersion.class);
+
+    ECDSAPrivateKeyVersion privateKeyVersion =
+        new ECDSAPrivateKeyVersion.Builder().curve(Curve.P384).build();
+    ECDSAPublicKeyVersion original = privateKeyVersion.getPublic();
+    KeyVersionData kvData = original.getData();
+    assertEquals(Type.ECDSA_PUBLIC, kvData.getType());
+
+    Key key = new Key(context, KeyData.parseFrom(new Key(original).getDataBytes(),
+        registry.getProtoExtensions()));
+    ECDSAPublicKeyVersion loaded = (ECDSAPublicKeyVersion) key.getKeyVersion(original.getId());
+    assertEquals(original, loaded);
+    assertEquals(Curve.P384, loaded.getCurve());
+
+    byte[] data = "Get swole or die trying".getBytes();
+    assertTrue(loaded.verifySig(data, privateKeyVersion.signData(data)));
+  }
+
+  /**
+   * Tests that loading a key pair whose halves do not belong together fails
+   */
+  @Test(expected = BuilderException.class)
+  public void testRejectMismatchedKeyPair() throws Exception {
+    KeyPair first = generateKeyPair("secp256r1");
+    KeyPair second = generateKeyPair("secp256r1");
+    new ECDSAPrivateKeyVersion.Builder().encodedKeyPair(
+        first.getPrivate().getEncoded(), second.getPublic().getEncoded()).build();
+  }
+
+  /**
+   * Tests that loading keys on a different curve than the one stored with them fails
+   */
+  @Test
+  public void testRejectWrongCurve() throws Exception {
+    KeyPair keyPair = generateKeyPair("secp384r1");
+    assertBuildFails(new ECDSAPrivateKeyVersion.Builder().curve(Curve.P256).encodedKeyPair(
+        keyPair.getPrivate().getEncoded(), keyPair.getPublic().getEncoded()));
+    assertBuildFails(new ECDSAPublicKeyVersion.Builder().curve(Curve.P256)
+        .encodedPublicKey(keyPair.getPublic().getEncoded()));
+    new ECDSAPublicKeyVersion.Builder().curve(Curve.P384)
+        .encodedPublicKey(keyPair.getPublic().getEncoded()).build();
+  }
+
+  /**
+   * Tests that loading a public key whose point is not on the curve fails
+   */
+  @Test
+  public void testRejectPointOffCurve() throws Exception {
+    byte[] encoded = generateKeyPair("secp256r1").getPublic().getEncoded();
+    // the encoding ends with the uncompressed coordinates of the point
+    encoded[encoded.length - 1] ^= 1;
+    assertBuildFails(new ECDSAPublicKeyVersion.Builder().encodedPublicKey(encoded));
+  }
+
+  /**
+   * Helper method to generate an EC key pair outside of K2
+   */
+  private static KeyPair generateKeyPair(String curveName) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec(curveName));
+    return generator.generateKeyPair();
+  }
+
+  /**
+   * Helper method to check that building a key version fails
+   */
+  private static void assertBuildFails(KeyVersion.Builder builder) {
+    try {
+      builder.build();
+      fail("Building the key version should fail");
+    } catch (BuilderException expected) {
+      // expected
+    }
+  }
+}
@@ -2,12 +2,31 @@ package com.google.k2crypto.keyversions;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.google.k2crypto.exceptions.BuilderException;
 import com.google.k2crypto.exceptions.EncryptionException;
 import com.google.k2crypto.keyversions.KeyVersionProto.KeyVersionData;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.junit.Test;
 
 import com.google.protobuf.ByteString;
@@ -83,4 +102,160 @@ public class HMACKeyVersionTest {
       assertTrue(keyversion2.verifyHMAC(hmac, message.getBytes()));
     }
   }
+
+  /**
+   * Tests that the HMAC is computed with the algorithm given to the builder.
+   */
+  @Test
+  public void testAlgorithm() throws Exception {
+    byte[] matter = "some key matter".getBytes();
+    byte[] message = "message".getBytes();
+    for (String algorithm : new String[] {HMACKeyVersion.HMAC_MD5, HMACKeyVersion.HMAC_SHA1,
+        HMACKeyVersion.HMAC_SHA256, HMACKeyVersion.HMAC_SHA384, HMACKeyVersion.HMAC_SHA512}) {
+      HMACKeyVersion keyVersion = HMACKeyVersion.generateHMAC(algorithm, matter);
+      assertEquals(algorithm, keyVersion.getAlgorithm());
+
+      Mac mac = Mac.getInstance(algorithm);
+      mac.init(new SecretKeySpec(matter, algorithm));
+      assertArrayEquals(mac.doFinal(message), keyVersion.getRawHMAC(message));
+    }
+  }
+
+  /**
+   * Tests that a single HMAC key version gives correct results when used by many threads at once.
+   */
+  @Test
+  public void testConcurrentHMAC() throws Exception {
+    final HMACKeyVersion keyVersion = HMACKeyVersion.generateHMAC(HMACKeyVersion.HMAC_SHA256);
+    final byte[] message = new byte[1000];
+    final byte[] expected = keyVersion.getRawHMAC(message);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 8; ++i) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int j = 0; j < 500; ++j) {
+              if (!Arrays.equals(expected, keyVersion.getRawHMAC(message))
+                  || !keyVersion.verifyHMAC(expected, message)) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Tests that the incremental, stream, buffer and file methods give the same HMAC as the byte
+   * array method.
+   */
+  @Test
+  public void testStreamingHMAC() throws Exception {
+    HMACKeyVersion keyVersion = HMACKeyVersion.generateHMAC(HMACKeyVersion.HMAC_SHA256);
+    byte[] message = new byte[100000];
+    new Random(8).nextBytes(message);
+    byte[] expected = keyVersion.getRawHMAC(message);
+
+    Mac mac = keyVersion.newMac();
+    for (int offset = 0; offset < message.length; offset += 999) {
+      mac.update(message, offset, Math.min(999, message.length - offset));
+    }
+    assertArrayEquals(expected, mac.doFinal());
+
+    assertArrayEquals(expected, keyVersion.getRawHMAC(new ByteArrayInputStream(message)));
+
+    ByteBuffer heap = ByteBuffer.wrap(message);
+    assertArrayEquals(expected, keyVersion.getRawHMAC(heap));
+    assertEquals(heap.limit(), heap.position());
+    ByteBuffer direct = ByteBuffer.allocateDirect(message.length);
+    direct.put(message).flip();
+    assertArrayEquals(expected, keyVersion.getRawHMAC(direct));
+
+    File file = File.createTempFile("k2hmac", null);
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(message);
+      out.close();
+      FileChannel channel = new FileInputStream(file).getChannel();
+      try {
+        assertArrayEquals(expected, keyVersion.getRawHMAC(channel));
+      } finally {
+        channel.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Tests HMAC verification against the JCE Mac, with short and long keys and with wrong HMACs.
+   */
+  @Test
+  public void testVerifyHMAC() throws Exception {
+    byte[] message = "verify this message".getBytes();
+    for (String algorithm : new String[] {HMACKeyVersion.HMAC_MD5, HMACKeyVersion.HMAC_SHA1,
+        HMACKeyVersion.HMAC_SHA256, HMACKeyVersion.HMAC_SHA384, HMACKeyVersion.HMAC_SHA512}) {
+      // key lengths below, at and above the digest block sizes
+      for (int keyLength : new int[] {5, 64, 128, 200}) {
+        byte[] matter = new byte[keyLength];
+        new Random(keyLength).nextBytes(matter);
+        HMACKeyVersion keyVersion = HMACKeyVersion.generateHMAC(algorithm, matter);
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(matter, algorithm));
+        byte[] hmac = mac.doFinal(message);
+
+        assertTrue(keyVersion.verifyHMAC(hmac, message));
+        byte[] modified = hmac.clone();
+        modified[modified.length - 1] ^= 1;
+        assertFalse(keyVersion.verifyHMAC(modified, message));
+        assertFalse(keyVersion.verifyHMAC(Arrays.copyOf(hmac, hmac.length - 1), message));
+        assertFalse(keyVersion.verifyHMAC(hmac, "another message".getBytes()));
+
+        // verify from offsets within larger arrays
+        byte[] hmacArray = new byte[hmac.length + 3];
+        System.arraycopy(hmac, 0, hmacArray, 2, hmac.length);
+        byte[] messageArray = new byte[message.length + 10];
+        System.arraycopy(message, 0, messageArray, 7, message.length);
+        assertTrue(keyVersion.verifyHMAC(
+            hmacArray, 2, hmac.length, messageArray, 7, message.length));
+      }
+    }
+  }
+
+  /**
+   * Tests that HMACs computed from precomputed digest states match the JCE Mac.
+   */
+  @Test
+  public void testPrecomputedPads() throws Exception {
+    for (String algorithm : new String[] {HMACKeyVersion.HMAC_SHA1, HMACKeyVersion.HMAC_SHA256,
+        HMACKeyVersion.HMAC_SHA384, HMACKeyVersion.HMAC_SHA512}) {
+      byte[] matter = new byte[32];
+      new Random(10).nextBytes(matter);
+      HMACKeyVersion keyVersion = new HMACKeyVersion.Builder().algorithm(algorithm)
+          .matterVector(matter).precomputePads(true).build();
+      assertTrue(keyVersion.isPrecomputingPads());
+      Mac mac = Mac.getInstance(algorithm);
+      mac.init(new SecretKeySpec(matter, algorithm));
+
+      for (int length : new int[] {0, 1, 55, 64, 100, 1000}) {
+        byte[] message = new byte[length];
+        new Random(length).nextBytes(message);
+        byte[] expected = mac.doFinal(message);
+        // compute twice to make sure the precomputed states are not modified
+        assertArrayEquals(expected, keyVersion.getRawHMAC(message));
+        assertArrayEquals(expected, keyVersion.getRawHMAC(message));
+        assertTrue(keyVersion.verifyHMAC(expected, message));
+      }
+    }
+  }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.k2crypto.K2Context;
+import com.google.k2crypto.SymmetricEncryption;
+import com.google.k2crypto.keyversions.KeyVersionProto.Type;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the KeyMaterialPool class
+ */
+public class KeyMaterialPoolTest {
+
+  private static final int CAPACITY = 3;
+
+  private KeyMaterialPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new KeyMaterialPool(CAPACITY, 1);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Tests that the first take generates synchronously and later takes are served from material
+   * generated in the background
+   */
+  @Test
+  public void testRefill() throws Exception {
+    CountingGenerator generator = new CountingGenerator();
+    assertEquals(Integer.valueOf(0), pool.take("test", generator));
+    awaitReady("test", CAPACITY);
+    assertEquals(1 + CAPACITY, generator.count.get());
+
+    // ready material is handed out in the order it was generated
+    assertEquals(Integer.valueOf(1), pool.take("test", generator));
+    assertEquals(Integer.valueOf(2), pool.take("test", generator));
+    awaitReady("test", CAPACITY);
+    assertEquals(3 + CAPACITY, generator.count.get());
+  }
+
+  /**
+   * Tests that builders draw from the pool and still generate distinct, usable key versions
+   */
+  @Test
+  public void testBuilders() throws Exception {
+    AESKeyVersion aes = new AESKeyVersion.Builder().keyMaterialPool(pool).build();
+    awaitReady("AES/128", CAPACITY);
+    AESKeyVersion pooledAes = new AESKeyVersion.Builder().keyMaterialPool(pool).build();
+    assertFalse(Arrays.equals(aes.getKeyVersionMatter(), pooledAes.getKeyVersionMatter()));
+    byte[] data = new byte[100];
+    assertArrayEquals(data, SymmetricEncryption.decryptBytes(pooledAes,
+        SymmetricEncryption.encryptBytes(pooledAes, data)));
+
+    HMACKeyVersion hmac = new HMACKeyVersion.Builder().algorithm(HMACKeyVersion.HMAC_SHA256)
+        .keyMaterialPool(pool).build();
+    awaitReady("HMAC/SHA-256", CAPACITY);
+    HMACKeyVersion pooledHmac = new HMACKeyVersion.Builder()
+        .algorithm(HMACKeyVersion.HMAC_SHA256).keyMaterialPool(pool).build();
+    assertFalse(Arrays.equals(hmac.getRawHMAC(data), pooledHmac.getRawHMAC(data)));
+    assertTrue(pooledHmac.verifyHMAC(pooledHmac.getRawHMAC(data), data));
+  }
+
+  /**
+   * Tests that builders obtained from the registry use the pool of the context
+   */
+  @Test
+  public void testContextPool() throws Exception {
+    K2Context context = new K2Context();
+    KeyVersionRegistry registry = context.getKeyVersionRegistry();
+    registry.register(AESKeyVersion.class);
+    assertEquals(null, registry.newBuilder(Type.AES).getKeyMaterialPool());
+    context.setKeyMaterialPool(pool);
+    assertSame(pool, registry.newBuilder(Type.AES).getKeyMaterialPool());
+  }
+
+  /**
+   * Tests that material is generated synchronously once the pool is shut down
+   */
+  @Test
+  public void testShutdown() throws Exception {
+    CountingGenerator generator = new CountingGenerator();
+    pool.take("test", generator);
+    awaitReady("test", CAPACITY);
+    pool.shutdown();
+    assertEquals(0, pool.getReadyCount("test"));
+    assertEquals(Integer.valueOf(1 + CAPACITY), pool.take("test", generator));
+    assertEquals(0, pool.getReadyCount("test"));
+  }
+
+  /**
+   * Helper method to wait until the pool has the given number of ready items of a kind
+   */
+  private void awaitReady(String kind, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (pool.getReadyCount(kind) < count) {
+      assertTrue("Pool was not refilled in time", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Generator returning the number of items it has generated before
+   */
+  private static class CountingGenerator implements KeyMaterialPool.Generator<Integer> {
+
+    final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Integer generate() throws GeneralSecurityException {
+      return count.getAndIncrement();
+    }
+  }
+}
@@ -17,7 +17,9 @@ package com.google.k2crypto.keyversions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -38,6 +40,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.ExtensionRegistry;
 
 /**
  * Unit tests for the KeyVersionRegistry.
@@ -162,6 +165,36 @@ public class KeyVersionRegistryTest {
     assertEquals(1, list.size());
   }
 
+  /**
+   * Tests that the registrations are published as a whole, so that the objects
+   * returned by the registry are shared until the next change.
+   */
+  @Test
+  public final void testSharedState() throws K2Exception {
+    KeyVersionRegistry registry = new KeyVersionRegistry(context);
+    final FieldDescriptor fd = MockKeyVersionCore.extension.getDescriptor();
+    ExtensionRegistry empty = registry.getProtoExtensions();
+    assertSame(empty, registry.getProtoExtensions());
+
+    RegisteredKeyVersion rkv = registry.register(OneKeyVersion.class);
+    ExtensionRegistry extensions = registry.getProtoExtensions();
+    assertNotSame(empty, extensions);
+    assertSame(extensions, registry.getProtoExtensions());
+    assertSame(registry.getRegisteredKeyVersions(), registry.getRegisteredKeyVersions());
+    assertNull(empty.findExtensionByName(fd.getFullName()));
+
+    // A failed registration does not replace the state
+    assertNull(registry.register(MockKeyVersion.class));
+    assertSame(extensions, registry.getProtoExtensions());
+
+    // Every builder is new
+    assertNotSame(rkv.newBuilder(), rkv.newBuilder());
+
+    assertTrue(registry.unregister(rkv.getType()));
+    assertNull(registry.getProtoExtensions().findExtensionByName(fd.getFullName()));
+    assertEquals(fd, extensions.findExtensionByName(fd.getFullName()).descriptor);
+  }
+
   // Test "data" for the above
   public static class OneKeyVersion extends MockKeyVersion {
     private OneKeyVersion(Builder builder) {
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.keyversions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests for the identifiers, hash codes, equality and data of the KeyVersion class
+ */
+public class KeyVersionTest {
+
+  /**
+   * Tests that the identifier is the SHA-256 digest of the core and that the short identifier is
+   * its prefix
+   */
+  @Test
+  public void testIds() throws Exception {
+    MockKeyVersion kv = new MockKeyVersion.Builder().build();
+    ByteString id = kv.getId();
+    assertEquals(KeyVersion.ID_LENGTH, id.size());
+    assertArrayEquals(
+        MessageDigest.getInstance("SHA-256").digest(kv.getCore().toByteArray()), id.toByteArray());
+    assertSame(id, kv.getId());
+
+    ByteString shortId = kv.getShortId();
+    assertEquals(KeyVersion.SHORT_ID_LENGTH, shortId.size());
+    assertEquals(id.substring(0, KeyVersion.SHORT_ID_LENGTH), shortId);
+    assertSame(shortId, kv.getShortId());
+  }
+
+  /**
+   * Tests that key versions with the same core are equal and have the same hash code, while other
+   * key versions are not equal
+   */
+  @Test
+  public void testEqualsAndHashCode() throws Exception {
+    MockKeyVersion kv = new MockKeyVersion.Builder().build();
+    MockKeyVersion same = new MockKeyVersion.Builder().material(kv.material).build();
+    MockKeyVersion other = new MockKeyVersion.Builder().build();
+
+    assertEquals(kv, same);
+    assertEquals(kv.hashCode(), same.hashCode());
+    assertEquals(kv.getId(), same.getId());
+    assertFalse(kv.equals(other));
+    assertFalse(kv.getId().equals(other.getId()));
+    assertFalse(kv.equals(null));
+  }
+
+  /**
+   * Tests that the data of a key version is built once
+   */
+  @Test
+  public void testDataCaching() throws Exception {
+    MockKeyVersion kv = new MockKeyVersion.Builder().comments("cached").build();
+    assertSame(kv.getData(), kv.getData());
+    assertEquals(kv.buildData().build(), kv.getData());
+  }
+}
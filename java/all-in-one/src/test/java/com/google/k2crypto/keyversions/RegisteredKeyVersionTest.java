@@ -147,6 +147,89 @@ public class RegisteredKeyVersionTest {
     assertEquals(fd, registry.findExtensionByName(fd.getFullName()).descriptor);
   }
 
+  /**
+   * Tests that a key version with a registration generated at compile time is
+   * registered with the same information that reflection would find.
+   */
+  @Test
+  public final void testAcceptGenerated() throws Exception {
+    Class<?> regClass =
+        Class.forName(AESKeyVersion.class.getName() + KeyVersionRegistration.CLASS_SUFFIX);
+    assertTrue(KeyVersionRegistration.class.isAssignableFrom(regClass));
+
+    RegisteredKeyVersion rkv =
+        checkAcceptRegistration(AESKeyVersion.class, AESKeyVersion.Builder.class);
+    assertEquals(KeyVersionProto.Type.AES, rkv.getType());
+    assertEquals(AesKeyVersionProto.class, rkv.getProtoClass());
+
+    ExtensionRegistry registry = ExtensionRegistry.newInstance();
+    rkv.registerProtoExtensions(registry);
+    FieldDescriptor fd = AesKeyVersionProto.AesKeyVersionCore.extension.getDescriptor();
+    assertEquals(fd, registry.findExtensionByName(fd.getFullName()).descriptor);
+  }
+
+  /**
+   * Tests rejection of a key version with a generated registration whose
+   * builder constructor fails at runtime.
+   */
+  @Test
+  public final void testRejectGeneratedFailingBuilder() {
+    try {
+      new RegisteredKeyVersion(context, KVWithFailingBuilder.class);
+      fail("Key versions whose registration cannot create a builder should be rejected.");
+    } catch (KeyVersionException expected) {
+      assertEquals(KVWithFailingBuilder.class, expected.getKeyVersionClass());
+      assertEquals(KeyVersionException.Reason.INSTANTIATE_FAIL, expected.getReason());
+      // Thrown directly by the registration, not wrapped by reflection
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  // Test "data" for the above
+  public static class KVWithFailingBuilder extends MockKeyVersion {
+    private KVWithFailingBuilder(Builder builder) {
+      super(builder);
+    }
+
+    public static class Builder extends MockKeyVersion.Builder {
+      public Builder() {
+        throw new IllegalStateException();
+      }
+
+      @Override
+      public KVWithFailingBuilder build() {
+        return null;
+      }
+    }
+  }
+
+  // Stands in for the registration the processor would generate
+  public static class KVWithFailingBuilder_Registration implements KeyVersionRegistration {
+    public Class<? extends KeyVersion> getKeyVersionClass() {
+      return KVWithFailingBuilder.class;
+    }
+
+    public Class<? extends KeyVersion.Builder> getBuilderClass() {
+      return KVWithFailingBuilder.Builder.class;
+    }
+
+    public KeyVersionProto.Type getType() {
+      return KeyVersionProto.Type.TEST;
+    }
+
+    public Class<?> getProtoClass() {
+      return MockKeyVersionProto.class;
+    }
+
+    public void registerProtoExtensions(ExtensionRegistry registry) {
+      MockKeyVersionProto.registerAllExtensions(registry);
+    }
+
+    public KeyVersion.Builder newBuilder() {
+      return new KVWithFailingBuilder.Builder();
+    }
+  }
+
   /**
    * Tests rejection of a key version without a builder inner-class.
    */
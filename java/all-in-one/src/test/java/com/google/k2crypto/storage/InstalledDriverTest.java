@@ -24,7 +24,9 @@ import com.google.k2crypto.K2Exception;
 import com.google.k2crypto.Key;
 import com.google.k2crypto.storage.driver.Driver;
 import com.google.k2crypto.storage.driver.DriverInfo;
+import com.google.k2crypto.storage.driver.DriverRegistration;
 import com.google.k2crypto.storage.driver.ReadableDriver;
+import com.google.k2crypto.storage.driver.impl.K2MemoryDriver;
 
 import java.net.URI;
 
@@ -146,6 +148,26 @@ public class InstalledDriverTest {
     assertTrue(idriver.isWrapSupported());
   }
 
+  /**
+   * Tests that a driver with a registration generated at compile time is
+   * installed with the same information as the annotation.
+   */
+  @Test
+  public final void testAcceptGeneratedDriver() throws Exception {
+    Class<?> regClass =
+        Class.forName(K2MemoryDriver.class.getName() + DriverRegistration.CLASS_SUFFIX);
+    assertTrue(DriverRegistration.class.isAssignableFrom(regClass));
+
+    InstalledDriver idriver = new InstalledDriver(context, K2MemoryDriver.class);
+    DriverInfo info = K2MemoryDriver.class.getAnnotation(DriverInfo.class);
+    assertEquals(info.id(), idriver.getId());
+    assertEquals(info.name(), idriver.getName());
+    assertEquals(info.version(), idriver.getVersion());
+    assertTrue(idriver.canRead());
+    assertTrue(idriver.canWrite());
+    assertTrue(idriver.instantiate() instanceof K2MemoryDriver);
+  }
+
   /**
    * Tests acceptance of a read-only driver.
    */
@@ -209,6 +231,54 @@ public class InstalledDriverTest {
     public NoConstructorDriver(Object obj) {}
   }
 
+  /**
+   * Tests rejection of a driver with a generated registration whose
+   * constructor fails at runtime.
+   */
+  @Test
+  public final void testRejectGeneratedFailingDriver() {
+    try {
+      new InstalledDriver(context, FailingDriver.class);
+      fail("Drivers whose registration cannot instantiate them should be rejected.");
+    } catch (StorageDriverException expected) {
+      assertEquals(FailingDriver.class, expected.getDriverClass());
+      assertEquals(StorageDriverException.Reason.INSTANTIATE_FAIL, expected.getReason());
+      // Thrown directly by the registration, not wrapped by reflection
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  // Test "data" for the above
+  @DriverInfo(id = "mock", name = "Failing Driver", version = "1.0")
+  public static class FailingDriver extends MockDriver.Normal {
+    public FailingDriver() {
+      throw new IllegalStateException();
+    }
+  }
+
+  // Stands in for the registration the processor would generate
+  public static class FailingDriver_Registration implements DriverRegistration {
+    public Class<? extends Driver> getDriverClass() {
+      return FailingDriver.class;
+    }
+
+    public String getId() {
+      return "mock";
+    }
+
+    public String getName() {
+      return "Failing Driver";
+    }
+
+    public String getVersion() {
+      return "1.0";
+    }
+
+    public Driver newDriver() {
+      return new FailingDriver();
+    }
+  }
+
   /**
    * Tests rejection of an abstract driver.
    */
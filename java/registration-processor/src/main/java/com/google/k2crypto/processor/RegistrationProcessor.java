@@ -0,0 +1,449 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor that generates the registration of every key version annotated with
+ * {@code @KeyVersionInfo} and every storage driver annotated with {@code @DriverInfo}, so that
+ * they can be registered without reflection.
+ *
+ * <p>For a class {@code Foo}, the processor generates {@code Foo_Registration} in the same package
+ * (for nested classes, the binary name is used, e.g. {@code Foo$Bar_Registration}), implementing
+ * {@code KeyVersionRegistration} or {@code DriverRegistration}. The class is only generated if it
+ * would pass the static checks that the registry makes through reflection; otherwise nothing is
+ * generated and the class is still registered (or rejected) through reflection at runtime. Whether
+ * the constructors succeed can only be known at runtime, so the registry still tries them out once
+ * through the generated registration.
+ *
+ * <p>The processor refers to the K2 types by name only, so that it does not depend on the library
+ * it is used to compile.
+ */
+public class RegistrationProcessor extends AbstractProcessor {
+
+  // Annotations processed
+  static final String KEY_VERSION_INFO = "com.google.k2crypto.keyversions.KeyVersionInfo";
+  static final String DRIVER_INFO = "com.google.k2crypto.storage.driver.DriverInfo";
+
+  // Types referred to by the checks and the generated code
+  private static final String KEY_VERSION = "com.google.k2crypto.keyversions.KeyVersion";
+  private static final String KEY_VERSION_BUILDER = KEY_VERSION + ".Builder";
+  private static final String KEY_VERSION_REGISTRATION =
+      "com.google.k2crypto.keyversions.KeyVersionRegistration";
+  private static final String KEY_VERSION_TYPE =
+      "com.google.k2crypto.keyversions.KeyVersionProto.Type";
+  private static final String DRIVER = "com.google.k2crypto.storage.driver.Driver";
+  private static final String READABLE_DRIVER = "com.google.k2crypto.storage.driver.ReadableDriver";
+  private static final String WRITABLE_DRIVER = "com.google.k2crypto.storage.driver.WritableDriver";
+  private static final String DRIVER_REGISTRATION =
+      "com.google.k2crypto.storage.driver.DriverRegistration";
+  private static final String EXTENSION_REGISTRY = "com.google.protobuf.ExtensionRegistry";
+
+  // Suffix of the generated classes (same as CLASS_SUFFIX of the interfaces)
+  private static final String CLASS_SUFFIX = "_Registration";
+
+  // Same as the pattern InstalledDriver checks the driver identifier against
+  private static final Pattern LEGAL_ID = Pattern.compile("^[a-z][a-z0-9\\+\\-\\.]*$");
+
+  /**
+   * @see javax.annotation.processing.Processor#getSupportedAnnotationTypes()
+   */
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    Set<String> types = new HashSet<String>();
+    types.add(KEY_VERSION_INFO);
+    types.add(DRIVER_INFO);
+    return types;
+  }
+
+  /**
+   * @see javax.annotation.processing.Processor#getSupportedSourceVersion()
+   */
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  /**
+   * @see javax.annotation.processing.Processor#process(Set, RoundEnvironment)
+   */
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (TypeElement annotation : annotations) {
+      String annotationName = annotation.getQualifiedName().toString();
+      // Includes classes inheriting the annotation, as the registry does
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() != ElementKind.CLASS) {
+          continue;
+        }
+        TypeElement type = (TypeElement) element;
+        AnnotationMirror info = findAnnotation(type, annotationName);
+        if (info == null) {
+          continue;
+        } else if (KEY_VERSION_INFO.equals(annotationName)) {
+          processKeyVersion(type, info);
+        } else if (DRIVER_INFO.equals(annotationName)) {
+          processDriver(type, info);
+        }
+      }
+    }
+    // Claim the annotations, which no other processor handles, so that javac does not warn about
+    // unclaimed annotations under -Xlint:processing
+    return true;
+  }
+
+  /**
+   * Generates the registration of a key version, if it conforms.
+   *
+   * @param kvType The key version class.
+   * @param info The {@code KeyVersionInfo} annotation on the class.
+   */
+  private void processKeyVersion(TypeElement kvType, AnnotationMirror info) {
+    Elements elements = processingEnv.getElementUtils();
+    Types types = processingEnv.getTypeUtils();
+    TypeElement kvBuilderType = elements.getTypeElement(KEY_VERSION_BUILDER);
+    if (kvBuilderType == null || !isAccessible(kvType)) {
+      return;
+    }
+
+    // Find the Builder class, which must extend KeyVersion.Builder
+    TypeElement builder = null;
+    for (TypeElement member : ElementFilter.typesIn(kvType.getEnclosedElements())) {
+      if (member.getKind() == ElementKind.CLASS
+          && member.getSimpleName().contentEquals("Builder")) {
+        builder = member;
+      }
+    }
+    if (builder == null || !isInstantiable(builder)
+        || !types.isSubtype(types.erasure(builder.asType()), types.erasure(kvBuilderType.asType()))
+        || !hasBuildMethod(builder, kvType)) {
+      return;
+    }
+
+    // Extract the type and proto from the annotation
+    String typeName = null;
+    String protoName = null;
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+        : elements.getElementValuesWithDefaults(info).entrySet()) {
+      String key = entry.getKey().getSimpleName().toString();
+      Object value = entry.getValue().getValue();
+      if ("type".equals(key) && value instanceof VariableElement) {
+        typeName = ((VariableElement) value).getSimpleName().toString();
+      } else if ("proto".equals(key) && value instanceof DeclaredType) {
+        protoName =
+            ((TypeElement) ((DeclaredType) value).asElement()).getQualifiedName().toString();
+      }
+    }
+    if (typeName == null || protoName == null) {
+      return;
+    }
+
+    String kvName = kvType.getQualifiedName().toString();
+    String builderName = builder.getQualifiedName().toString();
+    PrintWriter out = createSourceFile(kvType);
+    if (out == null) {
+      return;
+    }
+    writeHeader(out, kvType, "KeyVersionInfo", "key version");
+    out.println("public final class " + registrationName(kvType));
+    out.println("    implements " + KEY_VERSION_REGISTRATION + " {");
+    out.println();
+    out.println("  public Class<? extends " + KEY_VERSION + "> getKeyVersionClass() {");
+    out.println("    return " + kvName + ".class;");
+    out.println("  }");
+    out.println();
+    out.println("  public Class<? extends " + KEY_VERSION_BUILDER + "> getBuilderClass() {");
+    out.println("    return " + builderName + ".class;");
+    out.println("  }");
+    out.println();
+    out.println("  public " + KEY_VERSION_TYPE + " getType() {");
+    out.println("    return " + KEY_VERSION_TYPE + "." + typeName + ";");
+    out.println("  }");
+    out.println();
+    out.println("  public Class<?> getProtoClass() {");
+    out.println("    return " + protoName + ".class;");
+    out.println("  }");
+    out.println();
+    out.println("  public void registerProtoExtensions(" + EXTENSION_REGISTRY + " registry) {");
+    out.println("    " + protoName + ".registerAllExtensions(registry);");
+    out.println("  }");
+    out.println();
+    out.println("  public " + KEY_VERSION_BUILDER + " newBuilder() {");
+    out.println("    return new " + builderName + "();");
+    out.println("  }");
+    out.println("}");
+    out.close();
+  }
+
+  /**
+   * Generates the registration of a storage driver, if it conforms.
+   *
+   * @param driverType The driver class.
+   * @param info The {@code DriverInfo} annotation on the class.
+   */
+  private void processDriver(TypeElement driverType, AnnotationMirror info) {
+    Elements elements = processingEnv.getElementUtils();
+    if (!isAccessible(driverType) || !isInstantiable(driverType)
+        || !isSubtype(driverType, DRIVER)
+        || !(isSubtype(driverType, READABLE_DRIVER) || isSubtype(driverType, WRITABLE_DRIVER))) {
+      return;
+    }
+
+    // Extract the info from the annotation
+    String id = null;
+    String name = null;
+    String version = null;
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+        : elements.getElementValuesWithDefaults(info).entrySet()) {
+      String key = entry.getKey().getSimpleName().toString();
+      Object value = entry.getValue().getValue();
+      if (!(value instanceof String)) {
+        continue;
+      } else if ("id".equals(key)) {
+        id = (String) value;
+      } else if ("name".equals(key)) {
+        name = (String) value;
+      } else if ("version".equals(key)) {
+        version = (String) value;
+      }
+    }
+    if (id == null || name == null || version == null || !LEGAL_ID.matcher(id).matches()) {
+      return;
+    }
+
+    String driverName = driverType.getQualifiedName().toString();
+    PrintWriter out = createSourceFile(driverType);
+    if (out == null) {
+      return;
+    }
+    writeHeader(out, driverType, "DriverInfo", "driver");
+    out.println("public final class " + registrationName(driverType));
+    out.println("    implements " + DRIVER_REGISTRATION + " {");
+    out.println();
+    out.println("  public Class<? extends " + DRIVER + "> getDriverClass() {");
+    out.println("    return " + driverName + ".class;");
+    out.println("  }");
+    out.println();
+    out.println("  public String getId() {");
+    out.println("    return " + elements.getConstantExpression(id) + ";");
+    out.println("  }");
+    out.println();
+    out.println("  public String getName() {");
+    out.println("    return " + elements.getConstantExpression(name) + ";");
+    out.println("  }");
+    out.println();
+    out.println("  public String getVersion() {");
+    out.println("    return " + elements.getConstantExpression(version) + ";");
+    out.println("  }");
+    out.println();
+    out.println("  public " + DRIVER + " newDriver() {");
+    out.println("    return new " + driverName + "();");
+    out.println("  }");
+    out.println("}");
+    out.close();
+  }
+
+  /**
+   * Returns the annotation with the given name on the class, including
+   * inherited annotations, or null if there is none.
+   */
+  private AnnotationMirror findAnnotation(TypeElement type, String annotationName) {
+    for (AnnotationMirror mirror : processingEnv.getElementUtils().getAllAnnotationMirrors(type)) {
+      TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+      if (annotation.getQualifiedName().contentEquals(annotationName)) {
+        return mirror;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether the class, and every class enclosing it, can be referred
+   * to from other classes in its package.
+   */
+  private boolean isAccessible(TypeElement type) {
+    for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+      if (e.getModifiers().contains(Modifier.PRIVATE)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether the class can be instantiated from other classes in its
+   * package with a no-argument constructor that only throws unchecked
+   * exceptions.
+   */
+  private boolean isInstantiable(TypeElement type) {
+    Set<Modifier> modifiers = type.getModifiers();
+    if (!isAccessible(type) || modifiers.contains(Modifier.ABSTRACT)
+        || (type.getNestingKind().isNested() && !modifiers.contains(Modifier.STATIC))) {
+      return false;
+    }
+    for (ExecutableElement constructor
+        : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()
+          && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+        for (TypeMirror thrown : constructor.getThrownTypes()) {
+          if (!isSubtype(thrown, RuntimeException.class.getName())
+              && !isSubtype(thrown, Error.class.getName())) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the builder has a public no-argument {@code build()}
+   * method returning the key version.
+   */
+  private boolean hasBuildMethod(TypeElement builder, TypeElement kvType) {
+    Elements elements = processingEnv.getElementUtils();
+    Types types = processingEnv.getTypeUtils();
+    List<ExecutableElement> methods = ElementFilter.methodsIn(elements.getAllMembers(builder));
+    for (ExecutableElement method : methods) {
+      if (method.getSimpleName().contentEquals("build") && method.getParameters().isEmpty()
+          && method.getModifiers().contains(Modifier.PUBLIC)
+          && method.getReturnType().getKind() == TypeKind.DECLARED
+          && types.isAssignable(types.erasure(method.getReturnType()),
+              types.erasure(kvType.asType()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the class is a subtype of the named type.
+   */
+  private boolean isSubtype(TypeElement type, String superName) {
+    return isSubtype(type.asType(), superName);
+  }
+
+  /**
+   * Returns whether the type is a subtype of the named type.
+   */
+  private boolean isSubtype(TypeMirror type, String superName) {
+    Types types = processingEnv.getTypeUtils();
+    TypeElement superType = processingEnv.getElementUtils().getTypeElement(superName);
+    return superType != null
+        && types.isSubtype(types.erasure(type), types.erasure(superType.asType()));
+  }
+
+  /**
+   * Returns the simple name of the registration generated for the class. This
+   * is the binary name of the class without its package, so that a nested
+   * class {@code Foo.Bar} gets {@code Foo$Bar_Registration} and cannot clash
+   * with the registration of a top-level class {@code Foo_Bar}.
+   */
+  private String registrationName(TypeElement type) {
+    Elements elements = processingEnv.getElementUtils();
+    String binaryName = elements.getBinaryName(type).toString();
+    String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+    if (packageName.length() > 0) {
+      binaryName = binaryName.substring(packageName.length() + 1);
+    }
+    return binaryName + CLASS_SUFFIX;
+  }
+
+  /**
+   * Creates the source file of the registration generated for the class.
+   *
+   * @return a writer for the file, or null if it could not be created (in
+   *     which case a diagnostic has been reported).
+   */
+  private PrintWriter createSourceFile(TypeElement type) {
+    Elements elements = processingEnv.getElementUtils();
+    String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+    String name = registrationName(type);
+    if (packageName.length() > 0) {
+      name = packageName + "." + name;
+    }
+    // A nested class named like the registration would have the same binary
+    // name, as would a hand-written class; leave the class to reflection.
+    Element enclosing = type.getEnclosingElement();
+    String nestedName = type.getSimpleName() + CLASS_SUFFIX;
+    boolean taken = elements.getTypeElement(name) != null;
+    if (enclosing instanceof TypeElement) {
+      for (TypeElement member : ElementFilter.typesIn(enclosing.getEnclosedElements())) {
+        taken |= member.getSimpleName().contentEquals(nestedName);
+      }
+    }
+    if (taken) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+          "Not generating " + name + ", a class with that name already exists;"
+              + " the class will be registered through reflection", type);
+      return null;
+    }
+    Filer filer = processingEnv.getFiler();
+    try {
+      return new PrintWriter(filer.createSourceFile(name, type).openWriter());
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Could not generate " + name + ": " + e.getMessage(), type);
+      return null;
+    }
+  }
+
+  /**
+   * Writes the package declaration and class comment of a generated
+   * registration.
+   */
+  private void writeHeader(PrintWriter out, TypeElement type, String annotation, String what) {
+    String packageName =
+        processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    out.println("// Generated by " + getClass().getName() + ". Do not edit.");
+    out.println();
+    if (packageName.length() > 0) {
+      out.println("package " + packageName + ";");
+      out.println();
+    }
+    out.println("/**");
+    out.println(" * Registration of the {@link " + type.getQualifiedName() + "}");
+    out.println(" * " + what + ", generated from its {@code @" + annotation + "} annotation.");
+    out.println(" */");
+  }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2016 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.k2crypto.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the RegistrationProcessor class. Sample sources are compiled with the processor against
+ * stand-ins of the K2 types, which the processor only knows by name.
+ */
+public class RegistrationProcessorTest {
+
+  // Stand-ins of the K2 and protobuf types referred to by the processor and the generated code
+  private static final JavaFileObject[] STUBS = {
+      source("com.google.k2crypto.keyversions.KeyVersionInfo",
+          "package com.google.k2crypto.keyversions;",
+          "@java.lang.annotation.Inherited",
+          "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)",
+          "public @interface KeyVersionInfo {",
+          "  KeyVersionProto.Type type();",
+          "  Class<?> proto();",
+          "}"),
+      source("com.google.k2crypto.keyversions.KeyVersionProto",
+          "package com.google.k2crypto.keyversions;",
+          "public class KeyVersionProto {",
+          "  public enum Type { SAMPLE }",
+          "}"),
+      source("com.google.k2crypto.keyversions.KeyVersion",
+          "package com.google.k2crypto.keyversions;",
+          "public abstract class KeyVersion {",
+          "  public static abstract class Builder {",
+          "    public abstract KeyVersion build();",
+          "  }",
+          "}"),
+      source("com.google.k2crypto.keyversions.KeyVersionRegistration",
+          "package com.google.k2crypto.keyversions;",
+          "public interface KeyVersionRegistration {",
+          "  Class<? extends KeyVersion> getKeyVersionClass();",
+          "  Class<? extends KeyVersion.Builder> getBuilderClass();",
+          "  KeyVersionProto.Type getType();",
+          "  Class<?> getProtoClass();",
+          "  void registerProtoExtensions(com.google.protobuf.ExtensionRegistry registry);",
+          "  KeyVersion.Builder newBuilder();",
+          "}"),
+      source("com.google.protobuf.ExtensionRegistry",
+          "package com.google.protobuf;",
+          "public class ExtensionRegistry {}"),
+      source("com.google.k2crypto.storage.driver.DriverInfo",
+          "package com.google.k2crypto.storage.driver;",
+          "@java.lang.annotation.Inherited",
+          "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)",
+          "public @interface DriverInfo {",
+          "  String id();",
+          "  String name();",
+          "  String version();",
+          "}"),
+      source("com.google.k2crypto.storage.driver.Driver",
+          "package com.google.k2crypto.storage.driver;",
+          "public interface Driver {}"),
+      source("com.google.k2crypto.storage.driver.ReadableDriver",
+          "package com.google.k2crypto.storage.driver;",
+          "public interface ReadableDriver {}"),
+      source("com.google.k2crypto.storage.driver.WritableDriver",
+          "package com.google.k2crypto.storage.driver;",
+          "public interface WritableDriver {}"),
+      source("com.google.k2crypto.storage.driver.DriverRegistration",
+          "package com.google.k2crypto.storage.driver;",
+          "public interface DriverRegistration {",
+          "  Class<? extends Driver> getDriverClass();",
+          "  String getId();",
+          "  String getName();",
+          "  String getVersion();",
+          "  Driver newDriver();",
+          "}"),
+      source("sample.SampleProto",
+          "package sample;",
+          "public class SampleProto {",
+          "  public static void registerAllExtensions(",
+          "      com.google.protobuf.ExtensionRegistry registry) {}",
+          "}"),
+  };
+
+  // Imports and annotation of the sample key versions
+  private static final String KEY_VERSION_HEADER = "package sample;"
+      + " import com.google.k2crypto.keyversions.*;"
+      + " import com.google.k2crypto.keyversions.KeyVersionProto.Type;";
+  private static final String KEY_VERSION_INFO =
+      "@KeyVersionInfo(type = Type.SAMPLE, proto = SampleProto.class)";
+
+  // Imports of the sample drivers
+  private static final String DRIVER_HEADER =
+      "package sample; import com.google.k2crypto.storage.driver.*;";
+
+  // Directory receiving the generated sources
+  private File sourceDir;
+
+  // Directory receiving the compiled classes
+  private File classDir;
+
+  // Diagnostics reported by the last compilation
+  private DiagnosticCollector<JavaFileObject> diagnostics;
+
+  @Before
+  public void setUp() throws IOException {
+    sourceDir = createTempDir();
+    classDir = createTempDir();
+  }
+
+  @After
+  public void tearDown() {
+    delete(sourceDir);
+    delete(classDir);
+  }
+
+  /**
+   * Tests that a conforming key version gets a registration that compiles and describes it, and
+   * that the processor claims the annotations so that no processing warnings are reported
+   */
+  @Test
+  public void testKeyVersionRegistration() throws Exception {
+    assertTrue(compile(keyVersion("Sample", builder("Sample"))));
+    assertGenerated("Sample");
+    assertTrue(warnings().isEmpty());
+
+    Object registration = newRegistration("Sample");
+    assertEquals("sample.Sample", ((Class<?>) call(registration, "getKeyVersionClass")).getName());
+    assertEquals("sample.Sample$Builder",
+        ((Class<?>) call(registration, "getBuilderClass")).getName());
+    assertEquals("SAMPLE", call(registration, "getType").toString());
+    assertEquals("sample.SampleProto", ((Class<?>) call(registration, "getProtoClass")).getName());
+    assertEquals("sample.Sample$Builder", call(registration, "newBuilder").getClass().getName());
+  }
+
+  /**
+   * Tests that subclasses inheriting the annotation get their own registration
+   */
+  @Test
+  public void testInheritedAnnotation() throws Exception {
+    assertTrue(compile(keyVersion("Sample", builder("Sample")), source("sample.Derived",
+        "package sample;",
+        "public class Derived extends Sample {",
+        "  public static class Builder extends Sample.Builder {",
+        "    public Derived build() { return new Derived(); }",
+        "  }",
+        "}")));
+    assertGenerated("Sample");
+    assertGenerated("Derived");
+  }
+
+  /**
+   * Tests that nested classes get registrations named after their binary name, which cannot clash
+   * with the registration of a top-level class
+   */
+  @Test
+  public void testNestedClassNaming() throws Exception {
+    assertTrue(compile(source("sample.Outer", KEY_VERSION_HEADER,
+        "public class Outer {",
+        "  " + KEY_VERSION_INFO,
+        "  public static class Inner extends KeyVersion {",
+        "    " + builder("Inner"),
+        "  }",
+        "}"), keyVersion("Outer_Inner", builder("Outer_Inner"))));
+    assertGenerated("Outer$Inner");
+    assertGenerated("Outer_Inner");
+    assertEquals("sample.Outer$Inner",
+        ((Class<?>) call(newRegistration("Outer$Inner"), "getKeyVersionClass")).getName());
+  }
+
+  /**
+   * Tests that no registration is generated for key versions that the registry would reject
+   */
+  @Test
+  public void testNonConformingKeyVersions() throws Exception {
+    assertTrue(compile(
+        keyVersion("NoBuilder", ""),
+        keyVersion("PrivateBuilder", "private static class Builder extends KeyVersion.Builder {"
+            + " public PrivateBuilder build() { return null; } }"),
+        keyVersion("InnerBuilder", "public class Builder extends KeyVersion.Builder {"
+            + " public InnerBuilder build() { return null; } }"),
+        keyVersion("AbstractBuilder", "public static abstract class Builder"
+            + " extends KeyVersion.Builder {}"),
+        keyVersion("UnrelatedBuilder", "public static class Builder {"
+            + " public UnrelatedBuilder build() { return null; } }"),
+        keyVersion("CheckedBuilder", "public static class Builder extends KeyVersion.Builder {"
+            + " public Builder() throws Exception {}"
+            + " public CheckedBuilder build() { return null; } }"),
+        keyVersion("WrongBuild", "public static class Builder extends KeyVersion.Builder {"
+            + " public KeyVersion build() { return null; } }"),
+        source("sample.Hidden", KEY_VERSION_HEADER,
+            "public class Hidden {",
+            "  " + KEY_VERSION_INFO,
+            "  private static class Secret extends KeyVersion {",
+            "    " + builder("Secret"),
+            "  }",
+            "}")));
+    for (String name : new String[] {"NoBuilder", "PrivateBuilder", "InnerBuilder",
+        "AbstractBuilder", "UnrelatedBuilder", "CheckedBuilder", "WrongBuild", "Hidden$Secret"}) {
+      assertNotGenerated(name);
+    }
+    assertTrue(warnings().isEmpty());
+  }
+
+  /**
+   * Tests that a conforming driver gets a registration that compiles and describes it
+   */
+  @Test
+  public void testDriverRegistration() throws Exception {
+    assertTrue(compile(driver("SampleDriver", "mem", "implements Driver, ReadableDriver", "")));
+    assertGenerated("SampleDriver");
+    assertTrue(warnings().isEmpty());
+
+    Object registration = newRegistration("SampleDriver");
+    assertEquals("sample.SampleDriver",
+        ((Class<?>) call(registration, "getDriverClass")).getName());
+    assertEquals("mem", call(registration, "getId"));
+    assertEquals("Sample \"driver\"", call(registration, "getName"));
+    assertEquals("1.0", call(registration, "getVersion"));
+    assertEquals("sample.SampleDriver", call(registration, "newDriver").getClass().getName());
+  }
+
+  /**
+   * Tests that no registration is generated for drivers that the registry would reject
+   */
+  @Test
+  public void testNonConformingDrivers() throws Exception {
+    assertTrue(compile(
+        driver("NotReadable", "mem", "implements Driver", ""),
+        driver("NotDriver", "mem", "implements ReadableDriver", ""),
+        driver("PrivateConstructor", "mem", "implements Driver, WritableDriver",
+            "private PrivateConstructor() {}"),
+        driver("ArgConstructor", "mem", "implements Driver, WritableDriver",
+            "public ArgConstructor(int x) {}"),
+        driver("CheckedConstructor", "mem", "implements Driver, WritableDriver",
+            "public CheckedConstructor() throws java.io.IOException {}"),
+        source("sample.AbstractDriver", DRIVER_HEADER,
+            "@DriverInfo(id = \"mem\", name = \"Abstract\", version = \"1.0\")",
+            "public abstract class AbstractDriver implements Driver, ReadableDriver {}")));
+    for (String name : new String[] {"NotReadable", "NotDriver", "PrivateConstructor",
+        "ArgConstructor", "CheckedConstructor", "AbstractDriver"}) {
+      assertNotGenerated(name);
+    }
+  }
+
+  /**
+   * Tests that only drivers with an identifier matching the pattern checked by the registry get a
+   * registration
+   */
+  @Test
+  public void testDriverIdPattern() throws Exception {
+    String[] legal = {"m", "mem", "k2+file-v1.0", "sqlite3"};
+    String[] illegal = {"", "Mem", "1mem", "-mem", "mem_db", "mem db", "m\u00e9m"};
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+    for (int i = 0; i < legal.length; ++i) {
+      sources.add(driver("Legal" + i, legal[i], "implements Driver, ReadableDriver", ""));
+    }
+    for (int i = 0; i < illegal.length; ++i) {
+      sources.add(driver("Illegal" + i, illegal[i], "implements Driver, ReadableDriver", ""));
+    }
+    assertTrue(compile(sources.toArray(new JavaFileObject[sources.size()])));
+    for (int i = 0; i < legal.length; ++i) {
+      assertGenerated("Legal" + i);
+      assertEquals(legal[i], call(newRegistration("Legal" + i), "getId"));
+    }
+    for (int i = 0; i < illegal.length; ++i) {
+      assertNotGenerated("Illegal" + i);
+    }
+  }
+
+  /**
+   * Tests that a registration is not generated, and a warning is reported, when a class with its
+   * name already exists, either as a top-level class or as a nested class next to the annotated one
+   */
+  @Test
+  public void testNameTaken() throws Exception {
+    assertTrue(compile(
+        keyVersion("Taken", builder("Taken")),
+        source("sample.Taken_Registration",
+            "package sample;",
+            "public class Taken_Registration {}"),
+        source("sample.Holder", KEY_VERSION_HEADER,
+            "public class Holder {",
+            "  " + KEY_VERSION_INFO,
+            "  public static class Nested extends KeyVersion {",
+            "    " + builder("Nested"),
+            "  }",
+            "  static class Nested_Registration {}",
+            "}")));
+    assertNotGenerated("Taken");
+    assertNotGenerated("Holder$Nested");
+
+    List<String> warnings = warnings();
+    assertEquals(2, warnings.size());
+    Collections.sort(warnings);
+    assertTrue(warnings.get(0).startsWith("Not generating sample.Holder$Nested_Registration"));
+    assertTrue(warnings.get(1).startsWith("Not generating sample.Taken_Registration"));
+    for (String warning : warnings) {
+      assertTrue(warning.contains("already exists"));
+    }
+  }
+
+  /**
+   * Compiles the sample sources with the stubs and the processor, with processing warnings enabled.
+   *
+   * @return True if and only if the compilation succeeded
+   */
+  private boolean compile(JavaFileObject... samples) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertNotNull("Tests must run on a JDK", compiler);
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>(Arrays.asList(STUBS));
+    sources.addAll(Arrays.asList(samples));
+    List<String> options = Arrays.asList("-Xlint:processing", "-classpath", classDir.getPath(),
+        "-d", classDir.getPath(), "-s", sourceDir.getPath());
+    diagnostics = new DiagnosticCollector<JavaFileObject>();
+    JavaCompiler.CompilationTask task =
+        compiler.getTask(null, null, diagnostics, options, null, sources);
+    task.setProcessors(Collections.singletonList(new RegistrationProcessor()));
+    return task.call();
+  }
+
+  /**
+   * Returns the messages of the warnings reported by the last compilation.
+   */
+  private List<String> warnings() {
+    List<String> warnings = new ArrayList<String>();
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.WARNING
+          || diagnostic.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
+        warnings.add(diagnostic.getMessage(Locale.ENGLISH));
+      }
+    }
+    return warnings;
+  }
+
+  /**
+   * Asserts that a registration was generated for the class with the given binary name in the
+   * sample package.
+   */
+  private void assertGenerated(String name) {
+    assertTrue(name, registrationFile(name).exists());
+  }
+
+  /**
+   * Asserts that no registration was generated for the class with the given binary name in the
+   * sample package.
+   */
+  private void assertNotGenerated(String name) {
+    assertFalse(name, registrationFile(name).exists());
+  }
+
+  /**
+   * Returns the generated source file of the registration of the given class.
+   */
+  private File registrationFile(String name) {
+    return new File(sourceDir, "sample" + File.separator + name + "_Registration.java");
+  }
+
+  /**
+   * Loads and instantiates the compiled registration of the given class.
+   */
+  private Object newRegistration(String name) throws Exception {
+    URLClassLoader loader = new URLClassLoader(new URL[] {classDir.toURI().toURL()});
+    return loader.loadClass("sample." + name + "_Registration").newInstance();
+  }
+
+  /**
+   * Calls a public no-argument method of the object.
+   */
+  private static Object call(Object target, String method) throws Exception {
+    return target.getClass().getMethod(method).invoke(target);
+  }
+
+  /**
+   * Returns a conforming builder of the key version with the given name.
+   */
+  private static String builder(String keyVersion) {
+    return "public static class Builder extends KeyVersion.Builder {"
+        + " public " + keyVersion + " build() { return new " + keyVersion + "(); } }";
+  }
+
+  /**
+   * Returns the source of an annotated key version in the sample package.
+   */
+  private static JavaFileObject keyVersion(String name, String builder) {
+    return source("sample." + name, KEY_VERSION_HEADER,
+        KEY_VERSION_INFO,
+        "public class " + name + " extends KeyVersion {",
+        "  " + builder,
+        "}");
+  }
+
+  /**
+   * Returns the source of an annotated driver in the sample package.
+   */
+  private static JavaFileObject driver(String name, String id, String implementsClause,
+      String body) {
+    return source("sample." + name, DRIVER_HEADER,
+        "@DriverInfo(id = \"" + id + "\", name = \"Sample \\\"driver\\\"\", version = \"1.0\")",
+        "public class " + name + " " + implementsClause + " {",
+        "  " + body,
+        "}");
+  }
+
+  /**
+   * Returns an in-memory source file of the class with the given qualified name.
+   */
+  private static JavaFileObject source(String className, String... lines) {
+    final StringBuilder code = new StringBuilder();
+    for (String line : lines) {
+      code.append(line).append('\n');
+    }
+    URI uri = URI.create(
+        "string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+    return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return code;
+      }
+    };
+  }
+
+  /**
+   * Creates an empty temporary directory.
+   */
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("k2processor", null);
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Could not create " + dir);
+    }
+    return dir;
+  }
+
+  /**
+   * Deletes a file or directory and everything in it.
+   */
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}